@@ -0,0 +1,108 @@
+package ru.perrymason.e2h.benchmarks;
+
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.openjdk.jmh.annotations.*;
+import ru.perrymason.e2h.Excel2Html;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures conversion of a workbook loaded into memory with {@link Excel2Html#writeHtml(Writer)}. Html is counted
+ * and discarded, so only the converter is measured.
+ * <p>Run with {@code -prof gc} to measure the allocation rate.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class ConversionBenchmark {
+
+    @Param({"XLS", "XLSX"})
+    public SyntheticWorkbook.Format format;
+
+    @Param({"1000"})
+    public int rows;
+
+    @Param({"20"})
+    public int columns;
+
+    @Param({"20"})
+    public int styles;
+
+    @Param({"0", "100"})
+    public int mergedRegions;
+
+    @Param({"0", "0.1"})
+    public double formulaDensity;
+
+    @Param({"0", "0.9"})
+    public double sparsity;
+
+    @Param({"NONE", "STANDARD", "CSS_CLASSES", "CACHED_FORMULA_RESULTS", "FAST"})
+    public Profile profile;
+
+    private Workbook workbook;
+    private CellRangeAddress range;
+
+    @Setup(Level.Trial)
+    public void createWorkbook() {
+        SyntheticWorkbook syntheticWorkbook = new SyntheticWorkbook(format, rows, columns, styles, mergedRegions,
+                formulaDensity, sparsity);
+        workbook = syntheticWorkbook.create();
+        range = syntheticWorkbook.getRange();
+    }
+
+    @TearDown(Level.Trial)
+    public void closeWorkbook() throws IOException {
+        workbook.close();
+    }
+
+    @Benchmark
+    public long writeHtml() throws XMLStreamException {
+        Excel2Html converter = Excel2Html.getConverter(workbook.getSheetAt(0), range);
+        converter.replaceOptions(profile.getOptions());
+        CountingWriter writer = new CountingWriter();
+        converter.writeHtml(writer);
+        return writer.getCount();
+    }
+
+    /**
+     * Counts written characters, so that the html isn't optimized away
+     */
+    private static final class CountingWriter extends Writer {
+        private long count;
+
+        @Override
+        public void write(int c) {
+            count++;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ru.perrymason.e2h.benchmarks;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.openjdk.jmh.annotations.*;
+import ru.perrymason.e2h.facade.E2HFileFacade;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures conversion of an Excel file with {@link E2HFileFacade}, from opening the file to writing an html file.
+ * <p>Run with {@code -prof gc} to measure the allocation rate.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class FacadeBenchmark {
+
+    @Param({"XLS", "XLSX"})
+    public SyntheticWorkbook.Format format;
+
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"20"})
+    public int columns;
+
+    @Param({"20"})
+    public int styles;
+
+    @Param({"100"})
+    public int mergedRegions;
+
+    @Param({"0.1"})
+    public double formulaDensity;
+
+    @Param({"0"})
+    public double sparsity;
+
+    @Param({"STANDARD", "FAST"})
+    public Profile profile;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    private File excel;
+    private File html;
+    private CellRangeAddress range;
+
+    @Setup(Level.Trial)
+    public void writeWorkbook() throws IOException {
+        SyntheticWorkbook workbook = new SyntheticWorkbook(format, rows, columns, styles, mergedRegions,
+                formulaDensity, sparsity);
+        excel = workbook.write(File.createTempFile("e2h-benchmark", workbook.getExtension()));
+        html = File.createTempFile("e2h-benchmark", ".html");
+        range = workbook.getRange();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        excel.delete();
+        html.delete();
+    }
+
+    @Benchmark
+    public long openAndConvert() throws IOException, InvalidFormatException, XMLStreamException {
+        E2HFileFacade facade = new E2HFileFacade(excel, streaming);
+        try {
+            facade.selectCellRange(range.getFirstRow(), range.getLastRow(), range.getFirstColumn(),
+                    range.getLastColumn());
+            facade.replaceOptions(profile.getOptions());
+            facade.writeHtml(html);
+        } finally {
+            facade.close();
+        }
+        return html.length();
+    }
+}
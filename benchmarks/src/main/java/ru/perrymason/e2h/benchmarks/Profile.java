@@ -0,0 +1,52 @@
+package ru.perrymason.e2h.benchmarks;
+
+import ru.perrymason.e2h.E2HOption;
+
+import java.util.EnumSet;
+
+/**
+ * Sets of {@link E2HOption}s which benchmarks are run with
+ */
+public enum Profile {
+    /**
+     * Values only
+     */
+    NONE(EnumSet.noneOf(E2HOption.class)),
+    /**
+     * {@link E2HOption#STANDARD_OPTIONS}
+     */
+    STANDARD(E2HOption.STANDARD_OPTIONS),
+    /**
+     * Standard options with styles written as css classes
+     */
+    CSS_CLASSES(E2HOption.STANDARD_OPTIONS, E2HOption.CSS_CLASSES),
+    /**
+     * Standard options with cached formula results instead of evaluated ones
+     */
+    CACHED_FORMULA_RESULTS(without(E2HOption.STANDARD_OPTIONS, E2HOption.EVALUATE_FORMULAS),
+            E2HOption.CACHED_FORMULA_RESULTS),
+    /**
+     * Standard options with all options which make conversion or rendering faster
+     */
+    FAST(without(E2HOption.STANDARD_OPTIONS, E2HOption.EVALUATE_FORMULAS), E2HOption.CACHED_FORMULA_RESULTS,
+            E2HOption.CSS_CLASSES, E2HOption.COLGROUP, E2HOption.SPARSE);
+
+    private final EnumSet<E2HOption> options;
+
+    Profile(EnumSet<E2HOption> options, E2HOption... extraOptions) {
+        this.options = EnumSet.copyOf(options);
+        for (E2HOption option : extraOptions) {
+            this.options.add(option);
+        }
+    }
+
+    public EnumSet<E2HOption> getOptions() {
+        return EnumSet.copyOf(options);
+    }
+
+    private static EnumSet<E2HOption> without(EnumSet<E2HOption> options, E2HOption option) {
+        EnumSet<E2HOption> result = EnumSet.copyOf(options);
+        result.remove(option);
+        return result;
+    }
+}
@@ -0,0 +1,185 @@
+package ru.perrymason.e2h.benchmarks;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generates a workbook with one sheet of synthetic data. Values, styles and merged regions are chosen by a random
+ * generator with a fixed seed, so equal parameters always give the same workbook.
+ */
+public final class SyntheticWorkbook {
+
+    public enum Format {
+        XLS, XLSX
+    }
+
+    private static final long SEED = 20170401L;
+
+    private static final String[] DATA_FORMATS = {"General", "0", "0.00", "#,##0", "#,##0.00", "0%", "yyyy-mm-dd"};
+    private static final BorderStyle[] BORDER_STYLES = {BorderStyle.NONE, BorderStyle.THIN, BorderStyle.MEDIUM,
+            BorderStyle.DASHED, BorderStyle.DOUBLE};
+    private static final short[] COLORS = {IndexedColors.BLACK.getIndex(), IndexedColors.RED.getIndex(),
+            IndexedColors.BLUE.getIndex(), IndexedColors.YELLOW.getIndex(), IndexedColors.LIGHT_GREEN.getIndex(),
+            IndexedColors.GREY_25_PERCENT.getIndex()};
+
+    private final Format format;
+    private final int rows;
+    private final int columns;
+    private final int styles;
+    private final int mergedRegions;
+    private final double formulaDensity;
+    private final double sparsity;
+
+    /**
+     * @param format file format of the workbook
+     * @param rows number of rows of the sheet
+     * @param columns number of columns of the sheet, at most 256 for {@link Format#XLS}
+     * @param styles number of distinct cell styles
+     * @param mergedRegions number of 2x2 merged regions, at most {@code rows / 2}
+     * @param formulaDensity share of cells with formulas, from 0 to 1
+     * @param sparsity share of missing cells, from 0 to 1
+     */
+    SyntheticWorkbook(Format format, int rows, int columns, int styles, int mergedRegions, double formulaDensity,
+                      double sparsity) {
+        this.format = format;
+        this.rows = rows;
+        this.columns = format == Format.XLS ? Math.min(columns, 256) : columns;
+        this.styles = Math.max(styles, 1);
+        this.mergedRegions = Math.min(mergedRegions, rows / 2);
+        this.formulaDensity = formulaDensity;
+        this.sparsity = sparsity;
+    }
+
+    /**
+     * Creates the workbook in memory. Formulas are evaluated, so their cached results are set.
+     */
+    Workbook create() {
+        Random random = new Random(SEED);
+        Workbook workbook = format == Format.XLS ? new HSSFWorkbook() : new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet("Data");
+        CellStyle[] cellStyles = createStyles(workbook, random);
+        for (int rowNum = 0; rowNum < rows; rowNum++) {
+            Row row = sheet.createRow(rowNum);
+            for (int column = 0; column < columns; column++) {
+                if (random.nextDouble() < sparsity) {
+                    continue;
+                }
+                Cell cell = row.createCell(column);
+                cell.setCellStyle(cellStyles[random.nextInt(cellStyles.length)]);
+                if (column > 0 && random.nextDouble() < formulaDensity) {
+                    String left = new CellReference(rowNum, column - 1).formatAsString();
+                    cell.setCellFormula(left + "*2+" + (rowNum + 1));
+                } else {
+                    setValue(cell, random);
+                }
+            }
+        }
+        if (mergedRegions > 0) {
+            int step = rows / mergedRegions;
+            for (int i = 0; i < mergedRegions; i++) {
+                int firstRow = i * step;
+                int firstColumn = random.nextInt(Math.max(columns - 1, 1));
+                sheet.addMergedRegion(new CellRangeAddress(firstRow, firstRow + 1, firstColumn, firstColumn + 1));
+            }
+        }
+        for (int column = 0; column < columns; column++) {
+            sheet.setColumnWidth(column, 2048 + random.nextInt(4096));
+        }
+        workbook.getCreationHelper().createFormulaEvaluator().evaluateAll();
+        return workbook;
+    }
+
+    /**
+     * Creates the workbook and writes it to a file
+     * @param file the file to write
+     * @return {@code file}
+     */
+    File write(File file) throws IOException {
+        Workbook workbook = create();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            workbook.write(out);
+        } finally {
+            out.close();
+            workbook.close();
+        }
+        return file;
+    }
+
+    /**
+     * @return the range of all generated rows and columns
+     */
+    CellRangeAddress getRange() {
+        return new CellRangeAddress(0, rows - 1, 0, columns - 1);
+    }
+
+    /**
+     * @return a file name extension of the format, i.e. {@code ".xlsx"}
+     */
+    String getExtension() {
+        return format == Format.XLS ? ".xls" : ".xlsx";
+    }
+
+    private CellStyle[] createStyles(Workbook workbook, Random random) {
+        DataFormat dataFormat = workbook.createDataFormat();
+        CellStyle[] cellStyles = new CellStyle[styles];
+        for (int i = 0; i < styles; i++) {
+            Font font = workbook.createFont();
+            font.setFontName(random.nextBoolean() ? "Arial" : "Calibri");
+            font.setFontHeightInPoints((short) (8 + random.nextInt(8)));
+            font.setBold(random.nextInt(4) == 0);
+            font.setItalic(random.nextInt(8) == 0);
+            font.setColor(COLORS[random.nextInt(COLORS.length)]);
+
+            CellStyle style = workbook.createCellStyle();
+            style.setFont(font);
+            style.setDataFormat(dataFormat.getFormat(DATA_FORMATS[random.nextInt(DATA_FORMATS.length)]));
+            style.setAlignment(HorizontalAlignment.values()[random.nextInt(4)]);
+            style.setVerticalAlignment(VerticalAlignment.values()[random.nextInt(3)]);
+            BorderStyle border = BORDER_STYLES[random.nextInt(BORDER_STYLES.length)];
+            style.setBorderTop(border);
+            style.setBorderRight(border);
+            style.setBorderBottom(border);
+            style.setBorderLeft(border);
+            if (border != BorderStyle.NONE) {
+                short color = COLORS[random.nextInt(COLORS.length)];
+                style.setTopBorderColor(color);
+                style.setRightBorderColor(color);
+                style.setBottomBorderColor(color);
+                style.setLeftBorderColor(color);
+            }
+            if (random.nextInt(3) == 0) {
+                style.setFillForegroundColor(COLORS[random.nextInt(COLORS.length)]);
+                style.setFillPattern(FillPatternType.SOLID_FOREGROUND);
+            }
+            cellStyles[i] = style;
+        }
+        return cellStyles;
+    }
+
+    private static void setValue(Cell cell, Random random) {
+        switch (random.nextInt(5)) {
+            case 0:
+                cell.setCellValue("Text " + random.nextInt(1000));
+                break;
+            case 1:
+                cell.setCellValue(random.nextBoolean());
+                break;
+            case 2:
+                cell.setCellValue(random.nextInt(100000));
+                break;
+            default:
+                cell.setCellValue(random.nextDouble() * 10000);
+                break;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+
+import java.util.Map;
+
+/**
+ * A <tt>FormulaEvaluator</tt> which doesn't evaluate formulas, but returns results cached in formula cells.
+ * <p>When passed to <tt>DataFormatter</tt>, formula cells are formatted from cached values without running the
+ * formula engine. The evaluator has no state and is shared by all converters.</p>
+ */
+final class CachedFormulaResults implements FormulaEvaluator {
+    static final CachedFormulaResults INSTANCE = new CachedFormulaResults();
+
+    private CachedFormulaResults() {
+    }
+
+    @Override
+    public CellValue evaluate(Cell cell) {
+        if (cell == null) {
+            return null;
+        }
+        CellType cellType = cell.getCellTypeEnum();
+        if (cellType == CellType.FORMULA) {
+            cellType = cell.getCachedFormulaResultTypeEnum();
+        }
+        switch (cellType) {
+            case NUMERIC:
+                return new CellValue(cell.getNumericCellValue());
+            case STRING:
+                return new CellValue(cell.getRichStringCellValue().getString());
+            case BOOLEAN:
+                return CellValue.valueOf(cell.getBooleanCellValue());
+            case ERROR:
+                return CellValue.getError(cell.getErrorCellValue());
+            case BLANK:
+                return null;
+            default:
+                return CellValue.getError(FormulaError.VALUE.getCode());
+        }
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public int evaluateFormulaCell(Cell cell) {
+        return evaluateFormulaCellEnum(cell).getCode();
+    }
+
+    @Override
+    public CellType evaluateFormulaCellEnum(Cell cell) {
+        if (cell == null || cell.getCellTypeEnum() != CellType.FORMULA) {
+            return CellType._NONE;
+        }
+        return cell.getCachedFormulaResultTypeEnum();
+    }
+
+    @Override
+    public Cell evaluateInCell(Cell cell) {
+        return cell;
+    }
+
+    @Override
+    public void evaluateAll() {
+    }
+
+    @Override
+    public void clearAllCachedResultValues() {
+    }
+
+    @Override
+    public void notifySetFormula(Cell cell) {
+    }
+
+    @Override
+    public void notifyDeleteCell(Cell cell) {
+    }
+
+    @Override
+    public void notifyUpdateCell(Cell cell) {
+    }
+
+    @Override
+    public void setupReferencedWorkbooks(Map<String, FormulaEvaluator> workbooks) {
+    }
+
+    @Override
+    public void setIgnoreMissingWorkbooks(boolean ignore) {
+    }
+
+    @Override
+    public void setDebugEvaluationOutputForNextEval(boolean value) {
+    }
+}
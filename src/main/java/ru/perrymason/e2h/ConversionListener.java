@@ -0,0 +1,80 @@
+package ru.perrymason.e2h;
+
+/**
+ * Receives metrics of conversions made by {@link Excel2Html} converters and by
+ * {@link ru.perrymason.e2h.facade.E2HFileFacade}. Override the methods of interest; all of them do nothing by default.
+ * <p>Metrics are collected only if a listener other than {@link #NONE} is set, so the default listener costs
+ * nothing. Methods are called by the thread which runs the conversion, once per conversion. When sheets are converted
+ * concurrently (i.e. by {@link ru.perrymason.e2h.facade.E2HFileFacade#writeHtml(java.util.Map,
+ * java.util.concurrent.Executor)}), methods are called by different threads at the same time.</p>
+ */
+public abstract class ConversionListener {
+    /**
+     * A listener which ignores all metrics
+     */
+    public static final ConversionListener NONE = new ConversionListener() {
+    };
+
+    public enum Phase {
+        /**
+         * Opening of a file by the facade, and loading of its workbook when it's needed for the first time
+         */
+        OPEN,
+        /**
+         * Reading of a cell range into a model, including the {@link #STYLE}, {@link #FORMAT} and
+         * {@link #EVALUATE_FORMULAS} phases
+         */
+        READ,
+        /**
+         * Conversion of cell styles to css
+         */
+        STYLE,
+        /**
+         * Formatting of values of cells without formulas
+         */
+        FORMAT,
+        /**
+         * Evaluation and formatting of formula cells
+         */
+        EVALUATE_FORMULAS,
+        /**
+         * Writing of html. Streaming converters read and write a sheet in one pass, which is reported as this phase.
+         */
+        WRITE
+    }
+
+    /**
+     * Called when a phase of a conversion is completed.
+     * <p>When a range is read by {@link Excel2Html#createModel(java.util.concurrent.Executor)}, the {@link Phase#READ}
+     * phase is the elapsed time, while the durations of its inner phases are summed over all threads.</p>
+     * @param phase the completed phase
+     * @param nanos duration of the phase in nanoseconds
+     */
+    public void phaseCompleted(Phase phase, long nanos) {
+    }
+
+    /**
+     * Called when a cell range is read into a model
+     * @param rows number of rows of the range which exist in the sheet
+     * @param cells number of cells of the range which exist in the sheet and aren't covered by merged regions
+     * @param mergedRegions number of merged regions intersecting the range
+     */
+    public void rangeRead(int rows, int cells, int mergedRegions) {
+    }
+
+    /**
+     * Called when a cell range is read into a model
+     * @param lookups number of cells whose css rule was looked up
+     * @param misses number of lookups which weren't found in the cache, so styling actions were run
+     */
+    public void stylesResolved(int lookups, int misses) {
+    }
+
+    /**
+     * Called when html is written
+     * @param size number of bytes written to a stream or to a file, or number of characters written to a
+     *             <tt>Writer</tt>
+     */
+    public void htmlWritten(long size) {
+    }
+}
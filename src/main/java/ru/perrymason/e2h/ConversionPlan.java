@@ -0,0 +1,158 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * A set of {@link E2HOption}s compiled once: the chain of styling actions to run and a prefix of css class names.
+ * <p>The plan is immutable, so it may be shared by threads and applied to sheets and ranges of any workbooks, i.e.
+ * cached per profile of options. Everything a conversion changes is kept by the converter the plan is applied to:
+ * styling actions bound to the workbook, caches of css rules, the formatter and the formula evaluator.</p>
+ * <pre>
+ * ConversionPlan plan = new ConversionPlan(EnumSet.copyOf(E2HOption.STANDARD_OPTIONS));
+ * ...
+ * plan.getConverter(sheet, range).writeHtml(stream);
+ * </pre>
+ */
+public final class ConversionPlan {
+    /**
+     * Styling actions, in the order they are run
+     */
+    enum Step {
+        HORIZONTAL_ALIGNMENT,
+        VERTICAL_ALIGNMENT,
+        BORDER,
+        BORDER_WITHOUT_COLOR,
+        BORDER_COLOR_ONLY,
+        WIDTH,
+        BACKGROUND_COLOR,
+        FULL_BUNDLED_FONT,
+        BUNDLED_FONT,
+        FONT_FAMILY,
+        FONT_SIZE,
+        FONT_STYLE,
+        FONT_COLOR,
+        ROTATION
+    }
+
+    private final EnumSet<E2HOption> options;
+    private final String cssClassPrefix;
+    private final List<Step> steps;
+
+    /**
+     * Compiles a set of options with the default prefix of css class names {@code "s"}
+     * @param options converter options
+     */
+    public ConversionPlan(EnumSet<E2HOption> options) {
+        this(options, "s");
+    }
+
+    /**
+     * Compiles a set of options
+     * @param options converter options
+     * @param cssClassPrefix a prefix for css class names generated with {@link E2HOption#CSS_CLASSES} option
+     */
+    public ConversionPlan(EnumSet<E2HOption> options, String cssClassPrefix) {
+        if (cssClassPrefix == null || cssClassPrefix.length() == 0) {
+            throw new IllegalArgumentException("Css class prefix must not be empty");
+        }
+        this.options = EnumSet.copyOf(options);
+        this.cssClassPrefix = cssClassPrefix;
+        this.steps = Collections.unmodifiableList(compile(this.options));
+    }
+
+    private static List<Step> compile(EnumSet<E2HOption> options) {
+        List<Step> steps = new ArrayList<Step>();
+        if (options.contains(E2HOption.HORIZONTAL_ALIGNMENT)) {
+            steps.add(Step.HORIZONTAL_ALIGNMENT);
+        }
+        if (options.contains(E2HOption.VERTICAL_ALIGNMENT)) {
+            steps.add(Step.VERTICAL_ALIGNMENT);
+        }
+        if (options.contains(E2HOption.BORDER_STYLE)) {
+            steps.add(options.contains(E2HOption.BORDER_COLOR) ? Step.BORDER : Step.BORDER_WITHOUT_COLOR);
+        } else if (options.contains(E2HOption.BORDER_COLOR)) {
+            // Border-colors without borders
+            steps.add(Step.BORDER_COLOR_ONLY);
+        }
+        if (options.contains(E2HOption.CELL_WIDTH) && !options.contains(E2HOption.COLGROUP)) {
+            steps.add(Step.WIDTH);
+        }
+        if (options.contains(E2HOption.CELL_BACKGROUND_COLOR)) {
+            steps.add(Step.BACKGROUND_COLOR);
+        }
+        if (options.containsAll(EnumSet.of(E2HOption.FONT_SIZE, E2HOption.FONT_FAMILY))) {
+            // We can wrap styles up
+            steps.add(options.contains(E2HOption.FONT_STYLE) ? Step.FULL_BUNDLED_FONT : Step.BUNDLED_FONT);
+        } else {
+            // We should add different styles for every value
+            if (options.contains(E2HOption.FONT_FAMILY)) {
+                steps.add(Step.FONT_FAMILY);
+            }
+            if (options.contains(E2HOption.FONT_SIZE)) {
+                steps.add(Step.FONT_SIZE);
+            }
+            if (options.contains(E2HOption.FONT_STYLE)) {
+                steps.add(Step.FONT_STYLE);
+            }
+        }
+        if (options.contains(E2HOption.FONT_COLOR)) {
+            steps.add(Step.FONT_COLOR);
+        }
+        if (options.contains(E2HOption.TEXT_ROTATION)) {
+            steps.add(Step.ROTATION);
+        }
+        return steps;
+    }
+
+    /**
+     * Creates a new converter of a sheet with the options of this plan
+     * @see Excel2Html#getConverter(Sheet)
+     */
+    public Excel2Html getConverter(Sheet sheet) {
+        Excel2Html excel2Html = Excel2Html.getConverter(sheet);
+        excel2Html.setPlan(this);
+        return excel2Html;
+    }
+
+    /**
+     * Creates a new converter of a cell range with the options of this plan
+     * @see Excel2Html#getConverter(Sheet, CellRangeAddress)
+     */
+    public Excel2Html getConverter(Sheet sheet, CellRangeAddress range) {
+        Excel2Html excel2Html = Excel2Html.getConverter(sheet, range);
+        excel2Html.setPlan(this);
+        return excel2Html;
+    }
+
+    public boolean hasOption(E2HOption option) {
+        return options.contains(option);
+    }
+
+    public EnumSet<E2HOption> getOptions() {
+        return EnumSet.copyOf(options);
+    }
+
+    public String getCssClassPrefix() {
+        return cssClassPrefix;
+    }
+
+    /**
+     * @return styling actions to run
+     */
+    List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return {@code true} if the plan is compiled from given settings
+     */
+    boolean isCompiledFrom(EnumSet<E2HOption> options, String cssClassPrefix) {
+        return this.options.equals(options) && this.cssClassPrefix.equals(cssClassPrefix);
+    }
+}
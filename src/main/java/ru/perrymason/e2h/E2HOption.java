@@ -74,7 +74,43 @@ public enum E2HOption {
     /**
      * If added to the converter, it will specify text-rotation as it is in an Excel sheet.
      */
-    TEXT_ROTATION,;
+    TEXT_ROTATION,
+
+    /**
+     * If added to the converter, it will write a {@code <style>} block before the html table with one css rule for
+     * every distinct cell style and will reference these rules with {@code class} attributes instead of inserting
+     * {@code style} attributes into every cell.
+     * <p>Class names are generated from a prefix (see {@link Excel2Html#setCssClassPrefix(String)}), so different
+     * prefixes should be used for different tables published on the same html page.</p>
+     */
+    CSS_CLASSES,
+
+    /**
+     * If added to the converter, it will display results of formulas cached in an Excel sheet, without evaluating
+     * formulas. Formulas without a cached result will be evaluated if {@link #EVALUATE_FORMULAS} option is also added,
+     * or displayed as strings otherwise.
+     * <p>Workbooks saved by Excel contain results of all formulas, so this option gives the same values as
+     * {@link #EVALUATE_FORMULAS} much faster.</p>
+     */
+    CACHED_FORMULA_RESULTS,
+
+    /**
+     * If added to the converter, it will specify column widths as they are in an Excel sheet once, in a
+     * {@code <colgroup>} block, and will use a fixed table layout. Widths of cells aren't specified, even if
+     * {@link #CELL_WIDTH} option is added.
+     * <p>Browsers render tables with a fixed layout much faster, as they don't need to read the whole table to compute
+     * widths of columns.</p>
+     */
+    COLGROUP,
+
+    /**
+     * If added to the converter, it will write runs of rows missing in an Excel sheet as a single row of the same
+     * height, and runs of missing cells of a row as a single cell with {@code colspan}. Merged cells are written as
+     * usual.
+     * <p>The size of the output and the time of conversion depend on the number of existing cells rather than on the
+     * size of the range, which is useful for large sparse sheets.</p>
+     */
+    SPARSE,;
 
     /**
      * If added to the converter, it will use all font options: {@link #FONT_SIZE}, {@link #FONT_STYLE},
@@ -101,7 +137,8 @@ public enum E2HOption {
     public static final EnumSet<E2HOption> ALIGNMENT = EnumSet.of(VERTICAL_ALIGNMENT, HORIZONTAL_ALIGNMENT);
 
     /**
-     * If added to the converter, it will use all {@link E2HOption} options, except for {@link #USE_TABLE_HEADERS}.
+     * If added to the converter, it will use all {@link E2HOption} options, except for {@link #USE_TABLE_HEADERS},
+     * {@link #CSS_CLASSES}, {@link #CACHED_FORMULA_RESULTS}, {@link #COLGROUP} and {@link #SPARSE}.
      */
     public static final EnumSet<E2HOption> STANDARD_OPTIONS = EnumSet.range(EVALUATE_FORMULAS, TEXT_ROTATION);
 }
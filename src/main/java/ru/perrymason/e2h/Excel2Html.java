@@ -4,37 +4,64 @@ import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
-import ru.perrymason.e2h.styling.*;
-import ru.perrymason.e2h.styling.font.*;
+import ru.perrymason.e2h.styling.StylingAction;
+import ru.perrymason.e2h.styling.font.FontCssCache;
+import ru.perrymason.e2h.styling.font.FontResolver;
 
-import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 
 /**
  * Converts HSSF- and XSSF- sheets to html tables
  */
 public abstract class Excel2Html {
+    /**
+     * Number of rows read by a single task of {@link #createModel(Executor)}
+     */
+    private static final int BAND_ROWS = 2048;
 
     private final Sheet workingSheet;
     private final CellRangeAddress range;
-    private final List<CellRangeAddress> mergedCells;
-    private final List<CellRangeAddress> closedMergedRegions;
-    private final List<StylingAction> stylingAlgorithm;
+    private final MergedRegionIndex mergedRegions;
 
     private final EnumSet<E2HOption> options = EnumSet.noneOf(E2HOption.class);
 
     private DataFormatter dataFormatter;
+    private boolean customDataFormatter;
     private FormulaEvaluator formulaEvaluator;
 
+    private String cssClassPrefix = "s";
+    private FontCssCache fontCssCache;
+    /**
+     * Plan compiled from the options and the prefix of css class names, {@code null} until it's needed
+     */
+    private ConversionPlan plan;
+    private ConversionListener listener = ConversionListener.NONE;
+
+    /**
+     * Widths of the columns of the range, computed once per conversion
+     */
+    private float[] columnWidths;
+
+    /**
+     * Reader of windows written by {@link #writeRows}, and the settings it's created with
+     */
+    private RangeReader windowReader;
+    private DataFormatter windowDataFormatter;
+    private FormulaEvaluator windowFormulaEvaluator;
+
     protected Excel2Html(Sheet sheet) {
         this.workingSheet = sheet;
 
@@ -47,15 +74,7 @@ public abstract class Excel2Html {
 
         this.dataFormatter = new DataFormatter();
 
-        this.mergedCells = new ArrayList<CellRangeAddress>();
-        for (CellRangeAddress merged : sheet.getMergedRegions()) {
-            if (this.range.intersects(merged)) {
-                this.mergedCells.add(merged);
-            }
-        }
-        this.closedMergedRegions = new ArrayList<CellRangeAddress>();
-
-        this.stylingAlgorithm = new ArrayList<StylingAction>();
+        this.mergedRegions = new MergedRegionIndex(sheet, this.range);
     }
 
     protected Excel2Html(Sheet sheet, CellRangeAddress range) {
@@ -65,15 +84,7 @@ public abstract class Excel2Html {
 
         this.range.validate(this.workingSheet.getWorkbook().getSpreadsheetVersion());
 
-        this.mergedCells = new ArrayList<CellRangeAddress>();
-        for (CellRangeAddress merged : sheet.getMergedRegions()) {
-            if (this.range.intersects(merged)) {
-                this.mergedCells.add(merged);
-            }
-        }
-        this.closedMergedRegions = new ArrayList<CellRangeAddress>();
-
-        this.stylingAlgorithm = new ArrayList<StylingAction>();
+        this.mergedRegions = new MergedRegionIndex(sheet, this.range);
     }
 
     /**
@@ -151,6 +162,92 @@ public abstract class Excel2Html {
 
     public void setDataFormatter(DataFormatter dataFormatter) {
         this.dataFormatter = dataFormatter;
+        this.customDataFormatter = true;
+    }
+
+    public FormulaEvaluator getFormulaEvaluator() {
+        return formulaEvaluator;
+    }
+
+    /**
+     * Sets an evaluator of formulas used with {@link E2HOption#EVALUATE_FORMULAS} option. By default a new evaluator
+     * is created for every conversion.
+     * <p>An evaluator caches results of evaluated formulas, so converters of the same workbook sharing an evaluator
+     * evaluate every formula once. The evaluator must be notified when cells of the workbook are changed (see
+     * <tt>FormulaEvaluator.notifyUpdateCell</tt>) or cleared with <tt>clearAllCachedResultValues()</tt>.</p>
+     * @param formulaEvaluator an evaluator of the workbook of the sheet, or {@code null} to create a new one
+     */
+    public void setFormulaEvaluator(FormulaEvaluator formulaEvaluator) {
+        this.formulaEvaluator = formulaEvaluator;
+    }
+
+    public FontCssCache getFontCssCache() {
+        return fontCssCache;
+    }
+
+    /**
+     * Sets a cache of css properties of fonts shared by converters of the same workbook, so the properties of a font
+     * are computed once for all of them. By default they are computed by every conversion.
+     * @param fontCssCache a cache of the workbook of the sheet, or {@code null} to stop sharing the properties
+     */
+    public void setFontCssCache(FontCssCache fontCssCache) {
+        this.fontCssCache = fontCssCache;
+    }
+
+    public String getCssClassPrefix() {
+        return cssClassPrefix;
+    }
+
+    /**
+     * Sets a prefix for css class names generated with {@link E2HOption#CSS_CLASSES} option, i.e. {@code "s"} for
+     * {@code class="s7"}. Default prefix is {@code "s"}.
+     * @param cssClassPrefix a prefix which is a valid css identifier
+     */
+    public void setCssClassPrefix(String cssClassPrefix) {
+        if (cssClassPrefix == null || cssClassPrefix.length() == 0) {
+            throw new IllegalArgumentException("Css class prefix must not be empty");
+        }
+        this.cssClassPrefix = cssClassPrefix;
+    }
+
+    /**
+     * Returns a plan compiled from the current options and prefix of css class names. The plan is compiled again only
+     * when they change.
+     */
+    public ConversionPlan getPlan() {
+        if (plan == null || !plan.isCompiledFrom(options, cssClassPrefix)) {
+            plan = new ConversionPlan(options, cssClassPrefix);
+        }
+        return plan;
+    }
+
+    /**
+     * Replaces the options and the prefix of css class names with the ones of a plan, i.e. of a plan cached by an
+     * application and shared by converters of different threads
+     * @param plan a compiled plan
+     */
+    public void setPlan(ConversionPlan plan) {
+        if (plan == null) {
+            throw new IllegalArgumentException("Plan must not be null");
+        }
+        replaceOptions(plan.getOptions());
+        this.cssClassPrefix = plan.getCssClassPrefix();
+        this.plan = plan;
+    }
+
+    public ConversionListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Sets a listener receiving metrics of conversions. By default metrics aren't collected.
+     * @param listener a listener, or {@link ConversionListener#NONE} to stop collecting metrics
+     */
+    public void setListener(ConversionListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener must not be null");
+        }
+        this.listener = listener;
     }
 
     /**
@@ -160,11 +257,7 @@ public abstract class Excel2Html {
      * @throws XMLStreamException
      */
     public void writeHtml(OutputStream outputStream) throws XMLStreamException {
-        try {
-            writeHtml(new OutputStreamWriter(outputStream, "utf-8"));
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
+        writeHtml(new HtmlWriter(outputStream));
     }
 
     /**
@@ -173,122 +266,288 @@ public abstract class Excel2Html {
      * @throws XMLStreamException
      */
     public void writeHtml(Writer writer) throws XMLStreamException {
-        buildStylingAlgorithm();
-        XMLStreamWriter out = XMLOutputFactory.newInstance().createXMLStreamWriter(writer);
-//        writeHtmlHeaders(out);
-        out.writeStartElement("table");
-        out.writeAttribute("style", "border-collapse: collapse;");
-        int firstRow = range.getFirstRow();
-        if (hasOption(E2HOption.USE_TABLE_HEADERS)) {
-            firstRow += writeTableHeader(out);
-        }
-        for (int rowNum = firstRow; rowNum <= range.getLastRow(); rowNum++) {
-            Row row = workingSheet.getRow(rowNum);
-            if (row == null) {
-                // Write an empty row with default height
-                out.writeStartElement("tr");
-                out.writeAttribute("style", "height:15pt;");
-                out.writeEndElement();
-                continue;
-            }
-            out.writeStartElement("tr");
-            if (hasOption(E2HOption.CELL_HEIGHT)) {
-                out.writeAttribute("style", "height:" + row.getHeightInPoints() + "pt;");
-            }
-            for (int cellNum = range.getFirstColumn(); cellNum <= range.getLastColumn(); cellNum++) {
-                Cell cell = row.getCell(cellNum);
-                if (cell == null) {
-                    // write an empty cell
-                    out.writeStartElement("td");
-                    out.writeEndElement();
-                    continue;
-                }
-                if (isSpanned(cell)) {
-                    continue;
-                }
-                out.writeStartElement("td");
-                writeCell(cell, out);
-                out.writeEndElement();
-            }
-            out.writeEndElement();
+        writeHtml(new HtmlWriter(writer));
+    }
+
+    /**
+     * Writes an html table to the specified channel, i.e. a <tt>FileChannel</tt>, in <tt>UTF-8</tt> encoding.
+     * Characters are encoded directly into a pooled direct buffer, and may be compressed to the gzip format on the fly,
+     * i.e. for a response with <tt>Content-Encoding: gzip</tt>. The channel isn't closed.
+     * <p>A stream may be wrapped with <tt>Channels.newChannel(OutputStream)</tt> to get compressed html.</p>
+     * @param channel
+     * @param gzip whether to compress the html to the gzip format
+     * @throws XMLStreamException
+     */
+    public void writeHtml(WritableByteChannel channel, boolean gzip) throws XMLStreamException {
+        HtmlWriter out = new HtmlWriter(channel, gzip);
+        try {
+            writeHtml(out);
+        } finally {
+            out.release();
         }
-        out.writeEndElement();
-        out.writeEndDocument();
-        out.close();
     }
 
-    private void buildStylingAlgorithm() {
-        final boolean evaluateFormulas = hasOption(E2HOption.EVALUATE_FORMULAS);
-        if (evaluateFormulas) {
-            formulaEvaluator = workingSheet.getWorkbook().getCreationHelper().createFormulaEvaluator();
+    /**
+     * Writes the range the same way as a model created by {@link #createModel()}, but without keeping the whole range
+     * in memory: rows are read and written by bands of {@value #BAND_ROWS} rows. With
+     * {@link E2HOption#CSS_CLASSES} option css rules of all cells are resolved before the rows are read, as the style
+     * sheet is written before the table.
+     */
+    private void writeHtml(HtmlWriter out) throws XMLStreamException {
+        long start = System.nanoTime();
+        RangeReader reader = new RangeReader(false);
+        SheetModel.Builder model = newModelBuilder();
+        SheetModel.Builder.Band header = model.newBand();
+        int firstRow = readTableHeader(reader, header, model);
+        if (reader.plan.hasOption(E2HOption.CSS_CLASSES)) {
+            // Rules get the same ids as in a model, the ones of header rows first
+            reader.readRows(firstRow, range.getLastRow(), null);
         }
+        model.addBand(header, reader.getRules());
+        long readNanos = System.nanoTime() - start;
+        buildModel(model).writeHead(out);
+
+        // A run of empty rows at the end of a band is written with the next band
+        int nextRow = firstRow;
+        for (int fromRow = firstRow; fromRow <= range.getLastRow(); fromRow += BAND_ROWS) {
+            long readStart = System.nanoTime();
+            int toRow = Math.min(fromRow + BAND_ROWS - 1, range.getLastRow());
+            model.clearRows();
+            SheetModel.Builder.Band band = model.newBand();
+            reader.readRows(fromRow, toRow, band);
+            model.addBand(band, reader.getRules());
+            SheetModel rows = buildModel(model);
+            readNanos += System.nanoTime() - readStart;
+            nextRow = rows.writeRows(nextRow, toRow, out);
+        }
+        SheetModel.writeTableEnd(out);
+        if (listener != ConversionListener.NONE) {
+            fireRangeRead(Collections.singletonList(reader), readNanos);
+            listener.phaseCompleted(ConversionListener.Phase.WRITE, System.nanoTime() - start - readNanos);
+            listener.htmlWritten(out.getSize());
+        }
+    }
 
-        if (hasOption(E2HOption.HORIZONTAL_ALIGNMENT)) {
-            stylingAlgorithm.add(new HorizontalAlignmentStylingAction() {
-                @Override
-                protected boolean isEvaluateFormulas() {
-                    return evaluateFormulas;
-                }
-            });
+    /**
+     * Writes rows of the range from {@code fromRow} to {@code toRow} as html table rows without a table to the
+     * specified <tt>OutputStream</tt>, i.e. for a viewer which loads rows of a large sheet on demand.
+     * <p>Note that this method uses <tt>UTF-8</tt> encoding for characters</p>
+     * @param fromRow index of the first row of the window (0-based)
+     * @param toRow index of the last row of the window (inclusive)
+     * @param outputStream
+     * @throws XMLStreamException
+     * @see #writeRows(int, int, Writer)
+     */
+    public void writeRows(int fromRow, int toRow, OutputStream outputStream) throws XMLStreamException {
+        writeRows(fromRow, toRow, new HtmlWriter(outputStream));
+    }
+
+    /**
+     * Writes rows of the range from {@code fromRow} to {@code toRow} as html table rows without a table using the
+     * specified <tt>Writer</tt>, i.e. for a viewer which loads rows of a large sheet on demand.
+     * <p>Column widths, css rules of cell styles and the formula evaluator are kept between windows while the options,
+     * the formatter and the evaluator of the converter don't change, and merged regions are looked up by rows, so the
+     * time of writing a window depends on its size only. Merged regions crossing the bounds of a window are cut by it,
+     * the same way as by the range. Rows are written with <tt>style</tt> attributes, even with
+     * {@link E2HOption#CSS_CLASSES} option, and {@link E2HOption#USE_TABLE_HEADERS} option is ignored.</p>
+     * @param fromRow index of the first row of the window (0-based)
+     * @param toRow index of the last row of the window (inclusive)
+     * @param writer
+     * @throws XMLStreamException
+     * @throws IllegalArgumentException if the rows are out of the range
+     */
+    public void writeRows(int fromRow, int toRow, Writer writer) throws XMLStreamException {
+        writeRows(fromRow, toRow, new HtmlWriter(writer));
+    }
+
+    private void writeRows(int fromRow, int toRow, HtmlWriter out) throws XMLStreamException {
+        if (fromRow < range.getFirstRow() || toRow > range.getLastRow() || fromRow > toRow) {
+            throw new IllegalArgumentException("Rows " + fromRow + ".." + toRow + " are out of range ("
+                    + range.getFirstRow() + ".." + range.getLastRow() + ")");
+        }
+        if (windowReader == null || windowReader.plan != getPlan() || dataFormatter != windowDataFormatter
+                || formulaEvaluator != windowFormulaEvaluator) {
+            readColumnWidths();
+            windowReader = new RangeReader(false);
+            windowDataFormatter = dataFormatter;
+            windowFormulaEvaluator = formulaEvaluator;
         }
+        CellRangeAddress window = new CellRangeAddress(fromRow, toRow, range.getFirstColumn(), range.getLastColumn());
+        MergedRegionIndex windowRegions = mergedRegions.getWindow(window);
+        SheetModel.Builder model = newModelBuilder(window, windowRegions);
+        model.endHeader();
+        SheetModel.Builder.Band band = model.newBand();
+        windowReader.readRows(fromRow, toRow, windowRegions, band);
+        model.addBand(band, windowReader.getRules());
+        ConversionPlan plan = windowReader.plan;
+        model.build(null, plan.hasOption(E2HOption.CELL_HEIGHT), false, plan.hasOption(E2HOption.SPARSE))
+                .writeRows(out);
+        out.close();
+    }
 
-        if (hasOption(E2HOption.VERTICAL_ALIGNMENT)) {
-            stylingAlgorithm.add(new VerticalAlignmentStylingAction());
+    /**
+     * Reads the cell range with current options and creates a model, which can be written as an html table without
+     * access to the workbook.
+     * @return a new model of the cell range
+     */
+    public SheetModel createModel() {
+        long start = System.nanoTime();
+        RangeReader reader = new RangeReader(false);
+        SheetModel.Builder model = newModelBuilder();
+        SheetModel.Builder.Band band = model.newBand();
+        int firstRow = readTableHeader(reader, band, model);
+        reader.readRows(firstRow, range.getLastRow(), band);
+        model.addBand(band, reader.getRules());
+        SheetModel sheetModel = buildModel(model);
+        if (listener != ConversionListener.NONE) {
+            fireRangeRead(Collections.singletonList(reader), System.nanoTime() - start);
         }
+        return sheetModel;
+    }
 
-        if (hasOption(E2HOption.BORDER_STYLE)) {
-            if (hasOption(E2HOption.BORDER_COLOR)) {
-                stylingAlgorithm.add(getBorderStylingAction());
-            } else {
-                stylingAlgorithm.add(new BorderStylingAction() {
+    /**
+     * Reads the cell range with current options and creates a model, splitting the rows of the range into bands of
+     * {@value #BAND_ROWS} rows which are read concurrently by an executor. Bands are merged in order, so the model
+     * doesn't differ from the one created by {@link #createModel()}.
+     * <p>Every band has its own styling algorithm, formula evaluator and <tt>DataFormatter</tt>. A formatter set with
+     * {@link #setDataFormatter} and an evaluator set with {@link #setFormulaEvaluator} are shared by the bands and are
+     * used by one band at a time. The workbook must not be modified until the model is created.</p>
+     * @param executor an executor reading bands
+     * @return a new model of the cell range
+     * @throws InterruptedException if the current thread is interrupted while waiting for bands
+     */
+    public SheetModel createModel(Executor executor) throws InterruptedException {
+        long start = System.nanoTime();
+        List<RangeReader> readers = new ArrayList<RangeReader>();
+        RangeReader headerReader = new RangeReader(false);
+        readers.add(headerReader);
+        final SheetModel.Builder model = newModelBuilder();
+        SheetModel.Builder.Band header = model.newBand();
+        int firstRow = readTableHeader(headerReader, header, model);
+        model.addBand(header, headerReader.getRules());
+
+        int bandCount = Math.max((range.getLastRow() - firstRow + BAND_ROWS) / BAND_ROWS, 0);
+        final SheetModel.Builder.Band[] bands = new SheetModel.Builder.Band[bandCount];
+        final String[][] rules = new String[bandCount][];
+        CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < bandCount; i++) {
+                // Readers are created by the current thread, as styling algorithms read the workbook when created
+                final RangeReader reader = new RangeReader(true);
+                readers.add(reader);
+                final int band = i;
+                final int from = firstRow + i * BAND_ROWS;
+                final int to = Math.min(from + BAND_ROWS - 1, range.getLastRow());
+                bands[band] = model.newBand();
+                futures.add(completionService.submit(new Callable<Void>() {
                     @Override
-                    protected String getBorderColor(XSSFCellBorder.BorderSide border, CellStyle cellStyle) {
-                        return "";
+                    public Void call() {
+                        reader.readRows(from, to, bands[band]);
+                        rules[band] = reader.getRules();
+                        return null;
                     }
-                });
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    completionService.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(false);
             }
-        } else if (hasOption(E2HOption.BORDER_COLOR)) {
-            // Border-colors without borders
-            stylingAlgorithm.add(getBorderColorOnlyStylingAction());
         }
-
-        if (hasOption(E2HOption.CELL_WIDTH)) {
-            stylingAlgorithm.add(new WidthStylingAction());
+        for (int i = 0; i < bandCount; i++) {
+            model.addBand(bands[i], rules[i]);
         }
-
-        if (hasOption(E2HOption.CELL_BACKGROUND_COLOR)) {
-            stylingAlgorithm.add(getBackgroundColorStylingAction());
+        SheetModel sheetModel = buildModel(model);
+        if (listener != ConversionListener.NONE) {
+            fireRangeRead(readers, System.nanoTime() - start);
         }
+        return sheetModel;
+    }
 
-        if (hasOption(EnumSet.of(E2HOption.FONT_SIZE, E2HOption.FONT_FAMILY))) {
-            // We can wrap styles up
-            if (hasOption(E2HOption.FONT_STYLE)) {
-                stylingAlgorithm.add(new FullBundledFontStylingAction(getFontResolver()));
-            } else {
-                stylingAlgorithm.add(new BundledFontStylingAction(getFontResolver()));
-            }
-        } else {
-            // We should add different styles for every value
-            if (hasOption(E2HOption.FONT_FAMILY)) {
-                stylingAlgorithm.add(new FontFamilyStylingAction(getFontResolver()));
-            }
+    /**
+     * Passes metrics collected by readers of a range to the listener
+     * @param nanos time of reading
+     */
+    private void fireRangeRead(List<RangeReader> readers, long nanos) {
+        int rows = 0;
+        int cells = 0;
+        int lookups = 0;
+        int misses = 0;
+        long styleNanos = 0;
+        long formatNanos = 0;
+        long formulaNanos = 0;
+        for (RangeReader reader : readers) {
+            rows += reader.rows;
+            cells += reader.cells;
+            lookups += reader.stylingAlgorithm.getLookups() - reader.resolvedLookups;
+            misses += reader.stylingAlgorithm.getMisses();
+            styleNanos += reader.styleNanos;
+            formatNanos += reader.formatNanos;
+            formulaNanos += reader.formulaNanos;
+        }
+        listener.phaseCompleted(ConversionListener.Phase.STYLE, styleNanos);
+        listener.phaseCompleted(ConversionListener.Phase.FORMAT, formatNanos);
+        listener.phaseCompleted(ConversionListener.Phase.EVALUATE_FORMULAS, formulaNanos);
+        listener.phaseCompleted(ConversionListener.Phase.READ, nanos);
+        listener.rangeRead(rows, cells, mergedRegions.size());
+        listener.stylesResolved(lookups, misses);
+    }
 
-            if (hasOption(E2HOption.FONT_SIZE)) {
-                stylingAlgorithm.add(new FontSizeStylingAction(getFontResolver()));
-            }
+    private SheetModel.Builder newModelBuilder() {
+        readColumnWidths();
+        return newModelBuilder(range, mergedRegions);
+    }
 
-            if (hasOption(E2HOption.FONT_STYLE)) {
-                stylingAlgorithm.add(new FontStyleStylingAction(getFontResolver()));
-            }
+    private void readColumnWidths() {
+        float[] widths = new float[range.getLastColumn() - range.getFirstColumn() + 1];
+        for (int cellNum = Math.max(range.getFirstColumn(), 0); cellNum <= range.getLastColumn(); cellNum++) {
+            widths[cellNum - range.getFirstColumn()] = workingSheet.getColumnWidthInPixels(cellNum);
         }
+        columnWidths = widths;
+    }
 
-        if (hasOption(E2HOption.FONT_COLOR)) {
-            stylingAlgorithm.add(getFontColorStylingAction());
+    /**
+     * Creates a builder of a model of rows of the range, with column widths read by {@link #readColumnWidths()}
+     */
+    private SheetModel.Builder newModelBuilder(CellRangeAddress rows, MergedRegionIndex mergedRegions) {
+        SheetModel.Builder model = new SheetModel.Builder(rows, mergedRegions);
+        for (int cellNum = Math.max(range.getFirstColumn(), 0); cellNum <= range.getLastColumn(); cellNum++) {
+            model.setColumnWidth(cellNum, columnWidths[cellNum - range.getFirstColumn()]);
         }
+        return model;
+    }
 
-        if (hasOption(E2HOption.TEXT_ROTATION)) {
-            stylingAlgorithm.add(getRotationStylingAction());
+    private SheetModel buildModel(SheetModel.Builder model) {
+        ConversionPlan plan = getPlan();
+        return model.build(plan.hasOption(E2HOption.CSS_CLASSES) ? plan.getCssClassPrefix() : null,
+                plan.hasOption(E2HOption.CELL_HEIGHT), plan.hasOption(E2HOption.COLGROUP),
+                plan.hasOption(E2HOption.SPARSE));
+    }
+
+    /**
+     * Reads header rows if {@link E2HOption#USE_TABLE_HEADERS} is set and finishes the header of the model
+     * @return the first row after the header
+     */
+    private int readTableHeader(RangeReader reader, SheetModel.Builder.Band band, SheetModel.Builder model) {
+        int firstRow = range.getFirstRow();
+        if (getPlan().hasOption(E2HOption.USE_TABLE_HEADERS)) {
+            firstRow += reader.readTableHeader(band);
         }
+        model.endHeader();
+        return firstRow;
     }
 
     protected abstract String getCssColor(Color color);
@@ -305,104 +564,286 @@ public abstract class Excel2Html {
 
     protected abstract StylingAction getRotationStylingAction();
 
-//    private void writeHtmlHeaders(XMLStreamWriter out) throws XMLStreamException {
-//        out.writeStartElement("html");
-//
-//        out.writeStartElement("head");
-//        out.writeStartElement("meta");
-//        out.writeAttribute("charset", "UTF-8");
-//        out.writeEndElement();
-//        out.writeEndElement();
-//    }
-
-    private int writeTableHeader(XMLStreamWriter out) throws XMLStreamException {
-        int headerRows = 1;
-        for (int i = 0; i < headerRows; i++) {
-            out.writeStartElement("tr");
-            Row row = workingSheet.getRow(range.getFirstRow() + i);
-            if (hasOption(E2HOption.CELL_HEIGHT)) {
-                out.writeAttribute("style", "height:" + row.getHeightInPoints() + "pt;");
+    /**
+     * Creates a new {@link StylingAlgorithm} for a reader of the range. By default format-specific actions are created
+     * by the hooks of the converter, such as {@link #getBorderStylingAction()}.
+     */
+    StylingAlgorithm createStylingAlgorithm() {
+        return new StylingAlgorithm() {
+            @Override
+            protected String getCssColor(Color color) {
+                return Excel2Html.this.getCssColor(color);
+            }
+
+            @Override
+            protected StylingAction getBorderStylingAction() {
+                return Excel2Html.this.getBorderStylingAction();
             }
-            for (Cell cell : row) {
-                if (isSpanned(cell)) {
-                    continue;
-                }
-                out.writeStartElement("th");
-                CellSpans spans = writeCell(cell, out);
-                if (spans != null) {
-                    headerRows = Math.max(headerRows, spans.rowspan);
-                }
-                out.writeEndElement();
+
+            @Override
+            protected StylingAction getBorderColorOnlyStylingAction() {
+                return Excel2Html.this.getBorderColorOnlyStylingAction();
+            }
+
+            @Override
+            protected StylingAction getBackgroundColorStylingAction() {
+                return Excel2Html.this.getBackgroundColorStylingAction();
+            }
+
+            @Override
+            protected FontResolver getFontResolver() {
+                return Excel2Html.this.getFontResolver();
+            }
+
+            @Override
+            protected StylingAction getFontColorStylingAction() {
+                return Excel2Html.this.getFontColorStylingAction();
+            }
+
+            @Override
+            protected StylingAction getRotationStylingAction() {
+                return Excel2Html.this.getRotationStylingAction();
             }
-            out.writeEndElement();
+
+            @Override
+            protected float getColumnWidthInPixels(int columnIndex) {
+                return Excel2Html.this.getColumnWidthInPixels(columnIndex);
+            }
+        };
+    }
+
+    /**
+     * @return {@code true} if a result of the formula is cached in a formula cell. By default every formula cell is
+     * supposed to have a result.
+     */
+    boolean hasCachedFormulaResult(Cell cell) {
+        return true;
+    }
+
+    Sheet getWorkingSheet() {
+        return workingSheet;
+    }
+
+    /**
+     * @return width of a column in pixels, without looking it up in the sheet for the columns of the range
+     */
+    float getColumnWidthInPixels(int columnIndex) {
+        float[] widths = columnWidths;
+        int i = columnIndex - range.getFirstColumn();
+        if (widths != null && columnIndex >= 0 && i >= 0 && i < widths.length) {
+            return widths[i];
         }
-        return headerRows;
+        return workingSheet.getColumnWidthInPixels(columnIndex);
     }
 
-    private CellSpans writeCell(Cell cell, XMLStreamWriter out) throws XMLStreamException {
-        CellSpans cellSpans = getCellSpans(cell);
-        if (cellSpans != null) {
-            if (cellSpans.colspan > 1) {
-                out.writeAttribute("colspan", String.valueOf(cellSpans.colspan));
+    /**
+     * Reads cells of the range with its own styling algorithm, so that different readers can read different rows
+     * concurrently. A formatter and an evaluator set to the converter are shared by concurrent readers and are used
+     * while holding the lock of the converter.
+     */
+    private final class RangeReader {
+        private final ConversionPlan plan;
+        private final StylingAlgorithm stylingAlgorithm;
+        private final DataFormatter dataFormatter;
+        private final boolean sharedDataFormatter;
+        private final FormulaEvaluator formulaEvaluator;
+        private final boolean sharedFormulaEvaluator;
+        private final boolean cachedFormulaResults;
+        private final boolean sparse;
+        /**
+         * Compiled number formats, {@code null} if a custom formatter is set, as it may format numbers differently
+         */
+        private final NumberFormats numberFormats;
+
+        /**
+         * Whether to measure time of styling and formatting of cells for the listener
+         */
+        private final boolean timed;
+        private int rows;
+        private int cells;
+        private long styleNanos;
+        private long formatNanos;
+        private long formulaNanos;
+        /**
+         * Style lookups of cells which are only resolved, not read
+         */
+        private int resolvedLookups;
+
+        /**
+         * @param concurrent whether other readers read the range at the same time
+         */
+        RangeReader(boolean concurrent) {
+            sharedDataFormatter = concurrent && customDataFormatter;
+            dataFormatter = concurrent && !customDataFormatter ? new DataFormatter() : Excel2Html.this.dataFormatter;
+            plan = getPlan();
+            if (!plan.hasOption(E2HOption.EVALUATE_FORMULAS)) {
+                formulaEvaluator = null;
+            } else if (Excel2Html.this.formulaEvaluator != null) {
+                formulaEvaluator = Excel2Html.this.formulaEvaluator;
+            } else {
+                formulaEvaluator = workingSheet.getWorkbook().getCreationHelper().createFormulaEvaluator();
             }
-            if (cellSpans.rowspan > 1) {
-                out.writeAttribute("rowspan", String.valueOf(cellSpans.rowspan));
+            sharedFormulaEvaluator = concurrent && formulaEvaluator != null
+                    && formulaEvaluator == Excel2Html.this.formulaEvaluator;
+            cachedFormulaResults = plan.hasOption(E2HOption.CACHED_FORMULA_RESULTS);
+            sparse = plan.hasOption(E2HOption.SPARSE);
+            numberFormats = customDataFormatter
+                    ? null : new NumberFormats(dataFormatter, workingSheet.getWorkbook().getNumCellStyles());
+            timed = listener != ConversionListener.NONE;
+            stylingAlgorithm = createStylingAlgorithm();
+            stylingAlgorithm.build(plan, workingSheet.getWorkbook().getNumCellStyles(), fontCssCache);
+        }
+
+        /**
+         * Reads header rows, i.e. the first row of the range and the rows merged with it
+         * @return number of header rows
+         */
+        int readTableHeader(SheetModel.Builder.Band band) {
+            int headerRows = 1;
+            for (int i = 0; i < headerRows; i++) {
+                Row row = workingSheet.getRow(range.getFirstRow() + i);
+                if (row == null) {
+                    band.addHeaderRow(SheetModel.MISSING_ROW);
+                    continue;
+                }
+                rows++;
+                band.addHeaderRow(row.getHeightInPoints());
+                for (Cell cell : row) {
+                    if (mergedRegions.isSpanned(cell.getRowIndex(), cell.getColumnIndex())) {
+                        continue;
+                    }
+                    CellSpans spans = mergedRegions.getCellSpans(cell.getRowIndex(), cell.getColumnIndex());
+                    if (spans != null) {
+                        headerRows = Math.max(headerRows, spans.rowspan);
+                    }
+                    CellStyle cellStyle = cell.getCellStyle();
+                    CellType cellType = cell.getCellTypeEnum();
+                    band.addHeaderCell(cell.getColumnIndex(), getStyleId(cell, cellStyle, cellType, spans),
+                            getCellValue(cell, cellStyle, cellType));
+                }
             }
+            return headerRows;
+        }
+
+        /**
+         * Reads rows of the range from {@code fromRow} to {@code toRow}. Merged regions are resolved by their
+         * positions, so regions crossing the bounds are read the same way as by a single reader.
+         * @param band a band storing the rows, or {@code null} to resolve css rules of the cells without reading them
+         */
+        void readRows(int fromRow, int toRow, SheetModel.Builder.Band band) {
+            readRows(fromRow, toRow, mergedRegions, band);
         }
-        encodeCellStyle(cell, cellSpans, out);
-        encodeCellValue(cell, out);
-        return cellSpans;
-    }
 
-    private boolean isSpanned(Cell cell) {
-        for (CellRangeAddress rangeAddress : closedMergedRegions) {
-            if (rangeAddress.isInRange(cell.getRowIndex(), cell.getColumnIndex())) {
-                return true;
+        /**
+         * Reads rows with merged regions of a window, which are cut by its bounds, so the first row of the window
+         * reads the cells starting regions crossing its top
+         * @param mergedRegions merged regions of the rows, the same as the ones of the model storing them
+         */
+        void readRows(int fromRow, int toRow, MergedRegionIndex mergedRegions, SheetModel.Builder.Band band) {
+            for (int rowNum = fromRow; rowNum <= toRow; rowNum++) {
+                Row row = workingSheet.getRow(rowNum);
+                if (row == null) {
+                    continue;
+                }
+                if (band != null) {
+                    rows++;
+                    band.setRow(rowNum, row.getHeightInPoints());
+                }
+                MergedRegionIndex.RowSpans rowSpans = mergedRegions.getRowSpans(rowNum);
+                if (sparse) {
+                    // Only existing cells of the row
+                    for (Cell cell : row) {
+                        int cellNum = cell.getColumnIndex();
+                        if (cellNum >= range.getFirstColumn() && cellNum <= range.getLastColumn()) {
+                            readCell(cellNum, cell, rowSpans, band);
+                        }
+                    }
+                    continue;
+                }
+                for (int cellNum = range.getFirstColumn(); cellNum <= range.getLastColumn(); cellNum++) {
+                    Cell cell = row.getCell(cellNum);
+                    if (cell != null) {
+                        readCell(cellNum, cell, rowSpans, band);
+                    }
+                }
             }
         }
-        return false;
-    }
 
-    private void encodeCellStyle(Cell cell, CellSpans cellSpans, XMLStreamWriter out) throws XMLStreamException {
-        CellStyle cellStyle = cell.getCellStyle();
-        StringBuilder htmlStyle = new StringBuilder();
-        for (StylingAction action : stylingAlgorithm) {
-            action.perform(cell, cellStyle, cellSpans, htmlStyle);
+        private void readCell(int cellNum, Cell cell, MergedRegionIndex.RowSpans rowSpans,
+                              SheetModel.Builder.Band band) {
+            if (rowSpans != null && rowSpans.isSpanned(cellNum)) {
+                return;
+            }
+            CellSpans cellSpans = rowSpans == null ? null : rowSpans.getCellSpans(cellNum);
+            CellStyle cellStyle = cell.getCellStyle();
+            CellType cellType = cell.getCellTypeEnum();
+            if (band == null) {
+                resolvedLookups++;
+                stylingAlgorithm.getStyleId(cellStyle, cellType, cellNum, cellSpans);
+                return;
+            }
+            band.setCell(cellNum, getStyleId(cell, cellStyle, cellType, cellSpans),
+                    getCellValue(cell, cellStyle, cellType));
         }
-        if (htmlStyle.length() > 0) {
-            out.writeAttribute("style", htmlStyle.toString());
+
+        String[] getRules() {
+            return stylingAlgorithm.getRules();
         }
-    }
 
-    private CellSpans getCellSpans(Cell cell) {
-        if (mergedCells.size() == 0) {
-            return null;
+        private int getStyleId(Cell cell, CellStyle cellStyle, CellType cellType, CellSpans cellSpans) {
+            cells++;
+            if (!timed) {
+                return stylingAlgorithm.getStyleId(cellStyle, cellType, cell.getColumnIndex(), cellSpans);
+            }
+            long start = System.nanoTime();
+            int styleId = stylingAlgorithm.getStyleId(cellStyle, cellType, cell.getColumnIndex(), cellSpans);
+            styleNanos += System.nanoTime() - start;
+            return styleId;
         }
-        CellRangeAddress merged = null;
-        for (CellRangeAddress rangeAddress : mergedCells) {
-            if (rangeAddress.isInRange(cell.getRowIndex(), cell.getColumnIndex())) {
-                merged = rangeAddress;
-                break;
+
+        private String getCellValue(Cell cell, CellStyle cellStyle, CellType cellType) {
+            if (!timed) {
+                return formatCellValue(cell, cellStyle, cellType);
+            }
+            long start = System.nanoTime();
+            String value = formatCellValue(cell, cellStyle, cellType);
+            if (cellType == CellType.FORMULA) {
+                formulaNanos += System.nanoTime() - start;
+            } else {
+                formatNanos += System.nanoTime() - start;
             }
+            return value;
         }
-        if (merged != null) {
-            mergedCells.remove(merged);
-            closedMergedRegions.add(merged);
-            CellSpans spans = new CellSpans();
-            spans.rowspan = Math.min(merged.getLastRow(), range.getLastRow()) - cell.getRowIndex() + 1;
-            spans.colspan = Math.min(merged.getLastColumn(), range.getLastColumn()) - cell.getColumnIndex() + 1;
-            return spans;
+
+        private String formatCellValue(Cell cell, CellStyle cellStyle, CellType cellType) {
+            if (cellType == CellType.NUMERIC && numberFormats != null) {
+                String value = numberFormats.format(cell, cellStyle);
+                if (value != null) {
+                    return value;
+                }
+            }
+            FormulaEvaluator evaluator = formulaEvaluator;
+            boolean formula = cellType == CellType.FORMULA;
+            if (formula && cachedFormulaResults && hasCachedFormulaResult(cell)) {
+                evaluator = CachedFormulaResults.INSTANCE;
+            }
+            if (sharedDataFormatter || formula && sharedFormulaEvaluator && evaluator == formulaEvaluator) {
+                synchronized (Excel2Html.this) {
+                    return dataFormatter.formatCellValue(cell, evaluator);
+                }
+            }
+            return dataFormatter.formatCellValue(cell, evaluator);
         }
-        return null;
     }
 
-    private void encodeCellValue(Cell cell, XMLStreamWriter out) throws XMLStreamException {
-        out.writeCharacters(dataFormatter.formatCellValue(cell, formulaEvaluator));
-    }
+    public static class CellSpans {
+        final int colspan;
+        final int rowspan;
 
-    public class CellSpans {
-        int colspan;
-        int rowspan;
+        CellSpans(int colspan, int rowspan) {
+            this.colspan = colspan;
+            this.rowspan = rowspan;
+        }
 
         public int getColspan() {
             return colspan;
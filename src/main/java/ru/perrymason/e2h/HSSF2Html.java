@@ -1,139 +1,88 @@
 package ru.perrymason.e2h;
 
-import org.apache.poi.hssf.usermodel.HSSFCellStyle;
-import org.apache.poi.hssf.usermodel.HSSFFont;
-import org.apache.poi.hssf.usermodel.HSSFPalette;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.hssf.util.HSSFColor;
-import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Color;
+import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
-import ru.perrymason.e2h.styling.*;
+import ru.perrymason.e2h.styling.StylingAction;
 import ru.perrymason.e2h.styling.font.FontResolver;
-import ru.perrymason.e2h.styling.font.FontStylingAction;
 
 /**
- * Implements HSSF-specific options such as getting colors, fonts, rotation, etc.
+ * Converts HSSF-sheets using {@link HSSFStylingAlgorithm}
  */
-class HSSF2Html extends Excel2Html implements FontResolver {
+class HSSF2Html extends Excel2Html {
 
-    private final HSSFWorkbook workbook;
-    private final HSSFPalette palette;
+    /**
+     * An algorithm providing format-specific actions for the hooks, created when they are called
+     */
+    private StylingAlgorithm hooks;
 
     HSSF2Html(Sheet sheet) {
         super(sheet);
-        workbook = (HSSFWorkbook) sheet.getWorkbook();
-        palette = workbook.getCustomPalette();
     }
 
     HSSF2Html(Sheet sheet, CellRangeAddress range) {
         super(sheet, range);
-        workbook = (HSSFWorkbook) sheet.getWorkbook();
-        palette = workbook.getCustomPalette();
     }
 
     @Override
-    protected String getCssColor(Color color) {
-        // TODO
-        if (color == null) {
-            return "black";
+    StylingAlgorithm createStylingAlgorithm() {
+        return new HSSFStylingAlgorithm((HSSFWorkbook) getWorkingSheet().getWorkbook()) {
+            @Override
+            protected float getColumnWidthInPixels(int columnIndex) {
+                return HSSF2Html.this.getColumnWidthInPixels(columnIndex);
+            }
+        };
+    }
+
+    /**
+     * A formula record of a 97-2003 workbook always contains a result of the formula
+     */
+    @Override
+    boolean hasCachedFormulaResult(Cell cell) {
+        return true;
+    }
+
+    private StylingAlgorithm getHooks() {
+        if (hooks == null) {
+            hooks = createStylingAlgorithm();
         }
-        HSSFColor hssfColor = (HSSFColor) color;
-        return "rgb(" + hssfColor.getTriplet()[0] + "," + hssfColor.getTriplet()[1] + "," + hssfColor.getTriplet()[2] + ")";
+        return hooks;
+    }
+
+    @Override
+    protected String getCssColor(Color color) {
+        return getHooks().getCssColor(color);
     }
 
     @Override
     protected StylingAction getBorderStylingAction() {
-        return new BorderStylingAction() {
-            @Override
-            protected String getBorderColor(XSSFCellBorder.BorderSide border, CellStyle cellStyle) {
-                switch (border) {
-                    case TOP:
-                        return " " + getCssColor(palette.getColor(cellStyle.getTopBorderColor()));
-                    case RIGHT:
-                        return " " + getCssColor(palette.getColor(cellStyle.getRightBorderColor()));
-                    case BOTTOM:
-                        return " " + getCssColor(palette.getColor(cellStyle.getBottomBorderColor()));
-                    case LEFT:
-                        return " " + getCssColor(palette.getColor(cellStyle.getLeftBorderColor()));
-                }
-                return "";
-            }
-        };
+        return getHooks().getBorderStylingAction();
     }
 
     @Override
     protected StylingAction getBorderColorOnlyStylingAction() {
-        return new BorderColorOnlyStylingAction() {
-            @Override
-            protected String getBorderColor(XSSFCellBorder.BorderSide border, CellStyle cellStyle) {
-                switch (border) {
-                    case TOP:
-                        return getCssColor(palette.getColor(cellStyle.getTopBorderColor()));
-                    case RIGHT:
-                        return getCssColor(palette.getColor(cellStyle.getRightBorderColor()));
-                    case BOTTOM:
-                        return getCssColor(palette.getColor(cellStyle.getBottomBorderColor()));
-                    case LEFT:
-                        return getCssColor(palette.getColor(cellStyle.getLeftBorderColor()));
-                }
-                return "";
-            }
-        };
+        return getHooks().getBorderColorOnlyStylingAction();
     }
 
     @Override
     protected StylingAction getBackgroundColorStylingAction() {
-        return new BackgroundColorStylingAction() {
-            @Override
-            protected String getBackgroundColor(CellStyle cellStyle) {
-                HSSFCellStyle style = (HSSFCellStyle) cellStyle;
-                HSSFColor color = palette.getColor(style.getFillForegroundColor());
-                if (color == null) {
-                    color = palette.getColor(style.getFillBackgroundColor());
-                }
-                if (color != null && !color.equals(HSSFColor.AUTOMATIC.getInstance())) {
-                    return getCssColor(color);
-                }
-                return "";
-            }
-        };
+        return getHooks().getBackgroundColorStylingAction();
     }
 
     @Override
     protected FontResolver getFontResolver() {
-        return this;
+        return getHooks().getFontResolver();
     }
 
     @Override
     protected StylingAction getFontColorStylingAction() {
-        return new FontStylingAction(this) {
-            @Override
-            public void perform(Cell cell, CellStyle cellStyle, CellSpans cellSpans, StringBuilder htmlStyle) {
-                HSSFFont font = (HSSFFont) getFont(cellStyle);
-                String color = getCssColor(font.getHSSFColor(workbook));
-                htmlStyle.append("color:").append(color).append(";");
-            }
-        };
+        return getHooks().getFontColorStylingAction();
     }
 
     @Override
     protected StylingAction getRotationStylingAction() {
-        return new RotationStylingAction() {
-            @Override
-            protected short getCssRotation(short rotation) {
-                return (short) -rotation;
-            }
-        };
-    }
-
-    @Override
-    public Font getFont(CellStyle cellStyle) {
-        return ((HSSFCellStyle) cellStyle).getFont(workbook);
-    }
-
-    @Override
-    public String getDefaultFontFamilies() {
-        return HSSFFont.FONT_ARIAL + ",sans-serif";
+        return getHooks().getRotationStylingAction();
     }
 }
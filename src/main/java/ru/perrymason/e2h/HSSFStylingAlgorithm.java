@@ -0,0 +1,156 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.hssf.usermodel.HSSFCellStyle;
+import org.apache.poi.hssf.usermodel.HSSFFont;
+import org.apache.poi.hssf.usermodel.HSSFPalette;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.hssf.util.HSSFColor;
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
+import ru.perrymason.e2h.styling.*;
+import ru.perrymason.e2h.styling.font.FontResolver;
+import ru.perrymason.e2h.styling.font.FontStylingAction;
+
+/**
+ * Implements HSSF-specific styling actions such as getting colors, fonts, rotation, etc.
+ */
+abstract class HSSFStylingAlgorithm extends StylingAlgorithm implements FontResolver {
+
+    private final HSSFWorkbook workbook;
+    /**
+     * Css colors by palette index, {@code null} if there is no color with the index
+     */
+    private final String[] paletteColors;
+
+    HSSFStylingAlgorithm(HSSFWorkbook workbook) {
+        this.workbook = workbook;
+        HSSFPalette palette = workbook.getCustomPalette();
+        this.paletteColors = new String[HSSFColor.AUTOMATIC.index + 1];
+        for (short i = 0; i < paletteColors.length; i++) {
+            HSSFColor color = palette.getColor(i);
+            if (color != null) {
+                paletteColors[i] = getCssColor(color);
+            }
+        }
+    }
+
+    /**
+     * Converts an RGB triplet of a palette color to a css color. Palette colors have no alpha channel.
+     * @return css color, {@code "black"} for a missing color
+     */
+    @Override
+    protected String getCssColor(Color color) {
+        if (color == null) {
+            return "black";
+        }
+        short[] triplet = ((HSSFColor) color).getTriplet();
+        return "rgb(" + triplet[0] + "," + triplet[1] + "," + triplet[2] + ")";
+    }
+
+    /**
+     * @param index palette index of a color
+     * @return css color, or {@code null} if there is no color with the index
+     */
+    private String getPaletteColor(short index) {
+        return index >= 0 && index < paletteColors.length ? paletteColors[index] : null;
+    }
+
+    private String getCssColor(short index) {
+        String color = getPaletteColor(index);
+        return color != null ? color : "black";
+    }
+
+    @Override
+    protected StylingAction getBorderStylingAction() {
+        return new BorderStylingAction() {
+            @Override
+            protected String getBorderColor(XSSFCellBorder.BorderSide border, CellStyle cellStyle) {
+                switch (border) {
+                    case TOP:
+                        return " " + getCssColor(cellStyle.getTopBorderColor());
+                    case RIGHT:
+                        return " " + getCssColor(cellStyle.getRightBorderColor());
+                    case BOTTOM:
+                        return " " + getCssColor(cellStyle.getBottomBorderColor());
+                    case LEFT:
+                        return " " + getCssColor(cellStyle.getLeftBorderColor());
+                }
+                return "";
+            }
+        };
+    }
+
+    @Override
+    protected StylingAction getBorderColorOnlyStylingAction() {
+        return new BorderColorOnlyStylingAction() {
+            @Override
+            protected String getBorderColor(XSSFCellBorder.BorderSide border, CellStyle cellStyle) {
+                switch (border) {
+                    case TOP:
+                        return getCssColor(cellStyle.getTopBorderColor());
+                    case RIGHT:
+                        return getCssColor(cellStyle.getRightBorderColor());
+                    case BOTTOM:
+                        return getCssColor(cellStyle.getBottomBorderColor());
+                    case LEFT:
+                        return getCssColor(cellStyle.getLeftBorderColor());
+                }
+                return "";
+            }
+        };
+    }
+
+    @Override
+    protected StylingAction getBackgroundColorStylingAction() {
+        return new BackgroundColorStylingAction() {
+            @Override
+            protected String getBackgroundColor(CellStyle cellStyle) {
+                short index = cellStyle.getFillForegroundColor();
+                String color = getPaletteColor(index);
+                if (color == null) {
+                    index = cellStyle.getFillBackgroundColor();
+                    color = getPaletteColor(index);
+                }
+                if (color != null && index != HSSFColor.AUTOMATIC.index) {
+                    return color;
+                }
+                return "";
+            }
+        };
+    }
+
+    @Override
+    protected FontResolver getFontResolver() {
+        return this;
+    }
+
+    @Override
+    protected StylingAction getFontColorStylingAction() {
+        return new FontStylingAction(this) {
+            @Override
+            protected String getFontCss(Font font) {
+                return "color:" + getCssColor(font.getColor()) + ";";
+            }
+        };
+    }
+
+    @Override
+    protected StylingAction getRotationStylingAction() {
+        return new RotationStylingAction() {
+            @Override
+            protected short getCssRotation(short rotation) {
+                return (short) -rotation;
+            }
+        };
+    }
+
+    @Override
+    public Font getFont(CellStyle cellStyle) {
+        return ((HSSFCellStyle) cellStyle).getFont(workbook);
+    }
+
+    @Override
+    public String getDefaultFontFamilies() {
+        return HSSFFont.FONT_ARIAL + ",sans-serif";
+    }
+}
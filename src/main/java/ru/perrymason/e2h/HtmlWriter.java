@@ -0,0 +1,465 @@
+package ru.perrymason.e2h;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes html elements to a <tt>Writer</tt>, or to an <tt>OutputStream</tt> or a <tt>WritableByteChannel</tt> in
+ * <tt>UTF-8</tt> encoding.
+ * <p>Characters are collected in a buffer which is reused while the table is written, and are encoded directly into a
+ * byte buffer when written to a stream or to a channel. Channels are written from direct buffers, which are pooled, as
+ * they are expensive to allocate; html written to a channel may be compressed to the gzip format on the fly.</p>
+ * <p>Text and attribute values are escaped like by <tt>XMLStreamWriter</tt>: {@code <}, {@code >} and {@code &} are
+ * replaced with entities, and {@code "} too in attribute values. Surrogate characters are written unchanged to a
+ * <tt>Writer</tt>. When encoding characters, a surrogate pair is written as a single character reference of its code
+ * point, i.e. {@code &#x1f600;}, and an unpaired surrogate as a reference of the char.</p>
+ * <p>Methods throw <tt>XMLStreamException</tt> wrapping an <tt>IOException</tt> of the underlying writer, so the
+ * converters keep their exceptions. The underlying writer isn't closed by {@link #close()}.</p>
+ */
+final class HtmlWriter {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
+    /**
+     * Direct buffers of closed channel writers, reused by writers of all threads
+     */
+    private static final Queue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger POOLED_BUFFERS = new AtomicInteger();
+    /**
+     * Header of a gzip member without a file name and modification time
+     */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final Writer writer;
+    private final OutputStream stream;
+    private final WritableByteChannel channel;
+    private final char[] chars = new char[BUFFER_SIZE];
+    private final byte[] bytes;
+    /**
+     * A direct buffer of bytes written to the channel, {@code null} after the writer is closed
+     */
+    private ByteBuffer buffer;
+    /**
+     * Compressor of bytes written to the channel in gzip format, with a checksum of the uncompressed bytes
+     */
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final byte[] deflated;
+    private int length;
+    private long size;
+
+    private final List<String> elements = new ArrayList<String>();
+    private boolean startTagOpen;
+    private boolean emptyElement;
+
+    HtmlWriter(Writer writer) {
+        this.writer = writer;
+        this.stream = null;
+        this.channel = null;
+        this.bytes = null;
+        this.deflater = null;
+        this.crc = null;
+        this.deflated = null;
+    }
+
+    HtmlWriter(OutputStream stream) {
+        this.writer = null;
+        this.stream = stream;
+        this.channel = null;
+        // At most 3 bytes per char
+        this.bytes = new byte[BUFFER_SIZE * 3];
+        this.deflater = null;
+        this.crc = null;
+        this.deflated = null;
+    }
+
+    /**
+     * Creates a writer to a channel. The writer must be closed to finish the output and to release its buffer, or
+     * released with {@link #release()} if the output fails.
+     * @param gzip whether to compress the html to the gzip format
+     */
+    HtmlWriter(WritableByteChannel channel, boolean gzip) {
+        this.writer = null;
+        this.stream = null;
+        this.channel = channel;
+        this.buffer = acquireBuffer();
+        if (gzip) {
+            // Deflater accepts only arrays, so characters are encoded into an array first
+            this.bytes = new byte[BUFFER_SIZE * 3];
+            this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            this.crc = new CRC32();
+            this.deflated = new byte[BUFFER_SIZE];
+            buffer.put(GZIP_HEADER);
+        } else {
+            this.bytes = null;
+            this.deflater = null;
+            this.crc = null;
+            this.deflated = null;
+        }
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = BUFFER_POOL.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+        }
+        POOLED_BUFFERS.decrementAndGet();
+        return buffer;
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        if (POOLED_BUFFERS.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            BUFFER_POOL.offer(buffer);
+        } else {
+            POOLED_BUFFERS.decrementAndGet();
+        }
+    }
+
+    void writeStartElement(String name) throws XMLStreamException {
+        closeStartTag();
+        write('<');
+        write(name);
+        elements.add(name);
+        startTagOpen = true;
+    }
+
+    /**
+     * Writes an element without content, i.e. {@code <col/>}. Attributes may be written after this method.
+     */
+    void writeEmptyElement(String name) throws XMLStreamException {
+        closeStartTag();
+        write('<');
+        write(name);
+        startTagOpen = true;
+        emptyElement = true;
+    }
+
+    void writeAttribute(String name, String value) throws XMLStreamException {
+        write(' ');
+        write(name);
+        write('=');
+        write('"');
+        writeEscaped(value, true);
+        write('"');
+    }
+
+    void writeAttribute(String name, int value) throws XMLStreamException {
+        write(' ');
+        write(name);
+        write('=');
+        write('"');
+        writeInt(value);
+        write('"');
+    }
+
+    void writeCharacters(String text) throws XMLStreamException {
+        closeStartTag();
+        writeEscaped(text, false);
+    }
+
+    void writeEndElement() throws XMLStreamException {
+        closeStartTag();
+        write('<');
+        write('/');
+        write(elements.remove(elements.size() - 1));
+        write('>');
+    }
+
+    /**
+     * Writes html which is already escaped, i.e. a fragment written by another <tt>HtmlWriter</tt> to a
+     * <tt>Writer</tt>. Surrogate characters are written as character references when encoding characters.
+     */
+    void writeRaw(String html) throws XMLStreamException {
+        closeStartTag();
+        for (int i = 0; i < html.length(); i++) {
+            char c = html.charAt(i);
+            if (writer == null && c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                i = writeCodePoint(html, i);
+            } else {
+                write(c);
+            }
+        }
+    }
+
+    /**
+     * Closes all open elements
+     */
+    void writeEndDocument() throws XMLStreamException {
+        while (!elements.isEmpty()) {
+            writeEndElement();
+        }
+    }
+
+    /**
+     * Writes buffered characters and flushes the underlying writer
+     */
+    void flush() throws XMLStreamException {
+        try {
+            flushBuffer();
+            if (stream != null) {
+                stream.flush();
+            } else if (writer != null) {
+                writer.flush();
+            } else {
+                drain();
+            }
+        } catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    /**
+     * Flushes the writer. A channel writer also finishes compressed output and releases its buffer.
+     */
+    void close() throws XMLStreamException {
+        if (channel == null) {
+            flush();
+            return;
+        }
+        if (buffer == null) {
+            return;
+        }
+        try {
+            flushBuffer();
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    put(deflated, deflater.deflate(deflated));
+                }
+                putInt((int) crc.getValue());
+                putInt((int) deflater.getBytesRead());
+            }
+            drain();
+        } catch (IOException e) {
+            throw new XMLStreamException(e);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Releases the buffer and the compressor of a channel writer which isn't closed, i.e. after a failure, without
+     * writing anything. Does nothing for other writers and for a closed writer.
+     */
+    void release() {
+        if (buffer == null) {
+            return;
+        }
+        if (deflater != null) {
+            deflater.end();
+        }
+        releaseBuffer(buffer);
+        buffer = null;
+    }
+
+    /**
+     * @return number of characters written to the underlying writer or number of bytes written to the stream or to
+     * the channel
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Writes the end of a start tag which may still get attributes, so the written html is complete
+     */
+    void closeStartTag() throws XMLStreamException {
+        if (startTagOpen) {
+            if (emptyElement) {
+                write('/');
+                emptyElement = false;
+            }
+            write('>');
+            startTagOpen = false;
+        }
+    }
+
+    private void writeEscaped(String value, boolean attribute) throws XMLStreamException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    write("&lt;");
+                    break;
+                case '>':
+                    write("&gt;");
+                    break;
+                case '&':
+                    write("&amp;");
+                    break;
+                case '"':
+                    if (attribute) {
+                        write("&quot;");
+                    } else {
+                        write(c);
+                    }
+                    break;
+                default:
+                    if (writer == null && c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                        i = writeCodePoint(value, i);
+                    } else {
+                        write(c);
+                    }
+            }
+        }
+    }
+
+    /**
+     * Writes a character reference of a surrogate char or of a surrogate pair starting at a given index
+     * @return index of the last written char
+     */
+    private int writeCodePoint(String s, int index) throws XMLStreamException {
+        char c = s.charAt(index);
+        int codePoint = c;
+        if (Character.isHighSurrogate(c) && index + 1 < s.length() && Character.isLowSurrogate(s.charAt(index + 1))) {
+            codePoint = Character.toCodePoint(c, s.charAt(++index));
+        }
+        write("&#x");
+        write(Integer.toHexString(codePoint));
+        write(';');
+        return index;
+    }
+
+    private void writeInt(int value) throws XMLStreamException {
+        if (value < 0) {
+            write(String.valueOf(value));
+            return;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            write((char) ('0' + value / divisor % 10));
+        }
+    }
+
+    private void write(String s) throws XMLStreamException {
+        for (int i = 0; i < s.length(); i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    private void write(char c) throws XMLStreamException {
+        if (length == chars.length) {
+            try {
+                flushBuffer();
+            } catch (IOException e) {
+                throw new XMLStreamException(e);
+            }
+        }
+        chars[length++] = c;
+    }
+
+    /**
+     * Writes buffered characters. Surrogates are never buffered when encoding characters, so every char is encoded
+     * separately.
+     */
+    private void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.write(chars, 0, length);
+            size += length;
+            length = 0;
+            return;
+        }
+        if (channel != null && deflater == null) {
+            encodeToBuffer();
+            length = 0;
+            return;
+        }
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                bytes[n++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[n++] = (byte) (0xC0 | c >> 6);
+                bytes[n++] = (byte) (0x80 | c & 0x3F);
+            } else {
+                bytes[n++] = (byte) (0xE0 | c >> 12);
+                bytes[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[n++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        length = 0;
+        if (stream != null) {
+            stream.write(bytes, 0, n);
+            size += n;
+            return;
+        }
+        crc.update(bytes, 0, n);
+        deflater.setInput(bytes, 0, n);
+        while (!deflater.needsInput()) {
+            put(deflated, deflater.deflate(deflated));
+        }
+    }
+
+    /**
+     * Encodes buffered characters directly into the buffer of the channel
+     */
+    private void encodeToBuffer() throws IOException {
+        for (int i = 0; i < length; i++) {
+            if (buffer.remaining() < 3) {
+                drain();
+            }
+            char c = chars[i];
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    private void put(byte[] array, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(length - offset, buffer.remaining());
+            buffer.put(array, offset, n);
+            offset += n;
+        }
+    }
+
+    /**
+     * Puts an int in little-endian order, as numbers of the gzip trailer are stored
+     */
+    private void putInt(int value) throws IOException {
+        if (buffer.remaining() < 4) {
+            drain();
+        }
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) (value >>> i * 8));
+        }
+    }
+
+    /**
+     * Writes the buffer to the channel
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,160 @@
+package ru.perrymason.e2h;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Writes html tables of successive {@link SheetModel}s of the same cell range, re-rendering only the rows which have
+ * changed since the previous model.
+ * <p>The renderer keeps the previous model, and a fingerprint and an html fragment of each of its rows. Fingerprints
+ * are computed from row heights, merged cells, css rules and values, which is much cheaper than writing html. The
+ * fragment of a row with an unchanged fingerprint is reused after the row is compared with the row of the previous
+ * model, so a collision of fingerprints never reuses a wrong fragment. A model is still read from the workbook as a
+ * whole.</p>
+ * <p>If the range, the number of header rows or the options affecting rows change, all of the rows are re-rendered.
+ * With {@link E2HOption#SPARSE} the fragment of the first row of a run of empty rows holds the whole run, and the
+ * fragments of the other rows of the run are empty.</p>
+ * <p>The renderer isn't thread-safe.</p>
+ */
+public final class IncrementalRenderer {
+    private String layout;
+    private SheetModel model;
+    private String head;
+    private long[] fingerprints;
+    private String[] rows;
+
+    private final StringWriter fragment = new StringWriter();
+    private final HtmlWriter fragmentWriter = new HtmlWriter(fragment);
+
+    /**
+     * Rows changed by a model since the previous one
+     */
+    public static final class Patch {
+        private final boolean full;
+        private final String head;
+        private final SortedMap<Integer, String> rows;
+
+        private Patch(boolean full, String head, SortedMap<Integer, String> rows) {
+            this.full = full;
+            this.head = head;
+            this.rows = Collections.unmodifiableSortedMap(rows);
+        }
+
+        /**
+         * @return {@code true} if there is no previous model of the same layout, so the patch holds all of the rows
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * @return html before the rows: a style sheet, the start tag of the table and header rows, or {@code null} if
+         * it hasn't changed
+         */
+        public String getHead() {
+            return head;
+        }
+
+        /**
+         * @return html fragments of the changed rows by their indexes in the sheet (0-based)
+         */
+        public SortedMap<Integer, String> getRows() {
+            return rows;
+        }
+    }
+
+    /**
+     * Compares a model with the previous one and renders its changed rows. The model becomes the previous one.
+     * @param model a model of the cell range
+     * @return the changed rows
+     * @throws XMLStreamException
+     */
+    public Patch update(SheetModel model) throws XMLStreamException {
+        String modelLayout = model.getLayout();
+        boolean full = !modelLayout.equals(layout);
+        long[] modelFingerprints = model.getRowFingerprints();
+        String[] modelRows = new String[modelFingerprints.length];
+        SortedMap<Integer, String> changed = new TreeMap<Integer, String>();
+        int firstBodyRow = model.getFirstBodyRow();
+        for (int i = 0; i < modelRows.length; i++) {
+            if (!full && fingerprints[i] == modelFingerprints[i] && model.rowEquals(firstBodyRow + i, this.model)) {
+                modelRows[i] = rows[i];
+            } else {
+                model.writeBodyRow(firstBodyRow + i, fragmentWriter);
+                modelRows[i] = takeFragment();
+                changed.put(firstBodyRow + i, modelRows[i]);
+            }
+        }
+        // The head holds a whole style sheet, but doesn't depend on the number of rows
+        HtmlWriter headWriter = new HtmlWriter(fragment);
+        model.writeHead(headWriter);
+        headWriter.closeStartTag();
+        headWriter.flush();
+        String modelHead = fragment.toString();
+        fragment.getBuffer().setLength(0);
+
+        Patch patch = new Patch(full, full || !modelHead.equals(head) ? modelHead : null, changed);
+        layout = modelLayout;
+        this.model = model;
+        head = modelHead;
+        fingerprints = modelFingerprints;
+        rows = modelRows;
+        return patch;
+    }
+
+    private String takeFragment() throws XMLStreamException {
+        fragmentWriter.flush();
+        String html = fragment.toString();
+        fragment.getBuffer().setLength(0);
+        return html;
+    }
+
+    /**
+     * Writes an html table of a model to the specified <tt>OutputStream</tt>, the same as
+     * {@link SheetModel#writeHtml(OutputStream)}. Only the rows changed since the previous model are rendered.
+     * <p>Note that this method uses <tt>UTF-8</tt> encoding for characters</p>
+     * @param model a model of the cell range
+     * @param outputStream
+     * @throws XMLStreamException
+     */
+    public void writeHtml(SheetModel model, OutputStream outputStream) throws XMLStreamException {
+        writeHtml(model, new HtmlWriter(outputStream));
+    }
+
+    /**
+     * Writes an html table of a model using the specified <tt>Writer</tt>, the same as
+     * {@link SheetModel#writeHtml(Writer)}. Only the rows changed since the previous model are rendered.
+     * @param model a model of the cell range
+     * @param writer
+     * @throws XMLStreamException
+     */
+    public void writeHtml(SheetModel model, Writer writer) throws XMLStreamException {
+        writeHtml(model, new HtmlWriter(writer));
+    }
+
+    private void writeHtml(SheetModel model, HtmlWriter out) throws XMLStreamException {
+        update(model);
+        out.writeRaw(head);
+        for (String row : rows) {
+            out.writeRaw(row);
+        }
+        out.writeRaw("</table>");
+        out.close();
+    }
+
+    /**
+     * Forgets the previous model, so the next one is rendered completely
+     */
+    public void reset() {
+        layout = null;
+        model = null;
+        head = null;
+        fingerprints = null;
+        rows = null;
+    }
+}
@@ -0,0 +1,178 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of merged regions intersecting a cell range.
+ * <p>Every merged region is cut by the range and is written as a single cell at its top-left corner (with colspan and
+ * rowspan), all other cells of the region are skipped. For every row of the range covered by merged regions the index
+ * keeps a bitmap of skipped cells and spans of the cells which start merged regions, so both checks are done without
+ * scanning the regions. The index is immutable after creation.</p>
+ */
+final class MergedRegionIndex {
+    private final Map<Integer, RowSpans> rows = new HashMap<Integer, RowSpans>();
+    /**
+     * Rows covered by merged regions in ascending order
+     */
+    private final int[] coveredRows;
+    private final int size;
+
+    MergedRegionIndex(Sheet sheet, CellRangeAddress range) {
+        this(sheet.getMergedRegions(), range);
+    }
+
+    MergedRegionIndex(List<CellRangeAddress> mergedRegions, CellRangeAddress range) {
+        int count = 0;
+        for (CellRangeAddress merged : mergedRegions) {
+            if (!range.intersects(merged)) {
+                continue;
+            }
+            count++;
+            int firstRow = Math.max(merged.getFirstRow(), range.getFirstRow());
+            int lastRow = Math.min(merged.getLastRow(), range.getLastRow());
+            int firstColumn = Math.max(merged.getFirstColumn(), range.getFirstColumn());
+            int lastColumn = Math.min(merged.getLastColumn(), range.getLastColumn());
+
+            Excel2Html.CellSpans spans = new Excel2Html.CellSpans(lastColumn - firstColumn + 1, lastRow - firstRow + 1);
+            CellRangeAddress region = new CellRangeAddress(firstRow, lastRow, firstColumn, lastColumn);
+            for (int row = firstRow; row <= lastRow; row++) {
+                RowSpans rowSpans = rows.get(row);
+                if (rowSpans == null) {
+                    rowSpans = new RowSpans();
+                    rows.put(row, rowSpans);
+                }
+                rowSpans.regions.add(region);
+                if (row == firstRow) {
+                    rowSpans.starts.set(firstColumn);
+                    rowSpans.spans.put(firstColumn, spans);
+                    rowSpans.spanned.set(firstColumn + 1, lastColumn + 1);
+                } else {
+                    rowSpans.spanned.set(firstColumn, lastColumn + 1);
+                }
+            }
+        }
+        this.size = count;
+        this.coveredRows = new int[rows.size()];
+        int i = 0;
+        for (Integer row : rows.keySet()) {
+            coveredRows[i++] = row;
+        }
+        Arrays.sort(coveredRows);
+    }
+
+    /**
+     * @return number of indexed merged regions
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Creates an index of merged regions intersecting a window of rows of the range, without scanning all of the
+     * regions. Regions crossing the bounds of the window are cut by it.
+     * @param window a cell range inside the range of this index
+     */
+    MergedRegionIndex getWindow(CellRangeAddress window) {
+        Set<CellRangeAddress> regions = Collections.newSetFromMap(new IdentityHashMap<CellRangeAddress, Boolean>());
+        List<CellRangeAddress> list = new ArrayList<CellRangeAddress>();
+        for (int row = window.getFirstRow(); row <= window.getLastRow(); row++) {
+            RowSpans rowSpans = rows.get(row);
+            if (rowSpans != null) {
+                for (CellRangeAddress region : rowSpans.regions) {
+                    if (regions.add(region)) {
+                        list.add(region);
+                    }
+                }
+            }
+        }
+        return new MergedRegionIndex(list, window);
+    }
+
+    /**
+     * @return merged cells of a given row or {@code null} if the row doesn't intersect any merged region
+     */
+    RowSpans getRowSpans(int row) {
+        return rows.get(row);
+    }
+
+    /**
+     * @return the first row from a given one which is covered by merged regions, or {@code Integer.MAX_VALUE}
+     */
+    int getNextCoveredRow(int row) {
+        int i = Arrays.binarySearch(coveredRows, row);
+        i = i < 0 ? -i - 1 : i;
+        return i < coveredRows.length ? coveredRows[i] : Integer.MAX_VALUE;
+    }
+
+    boolean isSpanned(int row, int column) {
+        RowSpans rowSpans = rows.get(row);
+        return rowSpans != null && rowSpans.isSpanned(column);
+    }
+
+    Excel2Html.CellSpans getCellSpans(int row, int column) {
+        RowSpans rowSpans = rows.get(row);
+        return rowSpans == null ? null : rowSpans.getCellSpans(column);
+    }
+
+    static final class RowSpans {
+        private final BitSet spanned = new BitSet();
+        private final BitSet starts = new BitSet();
+        private final Map<Integer, Excel2Html.CellSpans> spans = new HashMap<Integer, Excel2Html.CellSpans>();
+        /**
+         * Merged regions covering the row, cut by the range
+         */
+        private final List<CellRangeAddress> regions = new ArrayList<CellRangeAddress>(1);
+
+        /**
+         * @return {@code true} if a cell is covered by a merged region which starts in another cell
+         */
+        boolean isSpanned(int column) {
+            return spanned.get(column);
+        }
+
+        /**
+         * @return spans of a cell which starts a merged region, or {@code null} for any other cell
+         */
+        Excel2Html.CellSpans getCellSpans(int column) {
+            return starts.get(column) ? spans.get(column) : null;
+        }
+
+        /**
+         * @return the first column from a given one which is either covered by a merged region or starts it, or
+         * {@code -1} if there is no such column
+         */
+        int getNextMergedColumn(int column) {
+            int spannedColumn = spanned.nextSetBit(Math.max(column, 0));
+            int startColumn = starts.nextSetBit(Math.max(column, 0));
+            if (spannedColumn < 0 || startColumn < 0) {
+                return Math.max(spannedColumn, startColumn);
+            }
+            return Math.min(spannedColumn, startColumn);
+        }
+
+        /**
+         * @return the first column from a given one which isn't covered by a merged region starting in another cell
+         */
+        int getNextUnspannedColumn(int column) {
+            return spanned.nextClearBit(Math.max(column, 0));
+        }
+
+        /**
+         * @return merged regions covering the row, cut by the range
+         */
+        List<CellRangeAddress> getRegions() {
+            return regions;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+
+import java.text.DecimalFormat;
+import java.text.FieldPosition;
+import java.text.Format;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Formats values of numeric cells with formats compiled once per cell style.
+ * <p><tt>DataFormatter</tt> looks up the format of every cell by its format string and applies an E-notation regex to
+ * every result. Here formats are compiled from the formatter once per data format string and are cached by cell
+ * style index. Integer values of <i>General</i>, {@code 0} and {@code #,##0} formats are written digit by digit,
+ * other plain decimal formats (i.e. {@code 0.00}, {@code #,##0.0}) are applied to a reused buffer. The result is the
+ * same as of <tt>DataFormatter.formatCellValue</tt>, all other formats (dates, percents, fractions, etc.) are left to
+ * the formatter.</p>
+ * <p>Compiled formats aren't thread-safe, so every reader has its own instance.</p>
+ */
+final class NumberFormats {
+    private static final Pattern DECIMAL_FORMAT = Pattern.compile("(#,##)?0+(\\.0+)?");
+    private static final Pattern E_NOTATION = Pattern.compile("E(\\d)");
+
+    /**
+     * Values which are formatted by both a compiled format and a digit writer to check that the results are the same
+     */
+    private static final double[] PROBES = {0, 7, -7, 1234567, -1234567, 9876543210d, -9876543210d};
+
+    private static final NumberFormat UNSUPPORTED = new NumberFormat(null, false, false, '\0');
+
+    private final DataFormatter dataFormatter;
+    private final Map<String, NumberFormat> formats = new HashMap<String, NumberFormat>();
+    private NumberFormat[] formatsByStyle;
+
+    private final StringBuffer buffer = new StringBuffer();
+    private final FieldPosition fieldPosition = new FieldPosition(0);
+    private final char[] digits = new char[32];
+
+    NumberFormats(DataFormatter dataFormatter, int numCellStyles) {
+        this.dataFormatter = dataFormatter;
+        this.formatsByStyle = new NumberFormat[Math.max(numCellStyles, 1)];
+    }
+
+    /**
+     * @param cell a numeric cell
+     * @param cellStyle style of the cell
+     * @return the formatted value of the cell, or {@code null} if the cell must be formatted by <tt>DataFormatter</tt>
+     */
+    String format(Cell cell, CellStyle cellStyle) {
+        if (cellStyle == null) {
+            return null;
+        }
+        int styleIndex = cellStyle.getIndex() & 0xFFFF;
+        if (styleIndex >= formatsByStyle.length) {
+            formatsByStyle = Arrays.copyOf(formatsByStyle, Math.max(styleIndex + 1, formatsByStyle.length * 2));
+        }
+        NumberFormat format = formatsByStyle[styleIndex];
+        if (format == null) {
+            format = getFormat(cell, cellStyle);
+            formatsByStyle[styleIndex] = format;
+        }
+        if (format.format == null) {
+            return null;
+        }
+        double value = cell.getNumericCellValue();
+        if (format.writeIntegers && isInteger(value, format.general ? 1E11 : 1E15)) {
+            return writeInteger((long) value, format.groupingSeparator);
+        }
+        buffer.setLength(0);
+        String result = format.format.format(Double.valueOf(value), buffer, fieldPosition).toString();
+        if (result.indexOf('E') >= 0) {
+            // The same as DataFormatter does to match Excel's E-notation
+            result = E_NOTATION.matcher(result).replaceFirst("E+$1");
+        }
+        return result;
+    }
+
+    private NumberFormat getFormat(Cell cell, CellStyle cellStyle) {
+        String formatString = cellStyle.getDataFormatString();
+        if (formatString == null || DateUtil.isADateFormat(cellStyle.getDataFormat(), formatString)) {
+            return UNSUPPORTED;
+        }
+        NumberFormat format = formats.get(formatString);
+        if (format == null) {
+            format = compile(cell, formatString);
+            formats.put(formatString, format);
+        }
+        return format;
+    }
+
+    private NumberFormat compile(Cell cell, String formatString) {
+        boolean general = "General".equalsIgnoreCase(formatString) || "@".equals(formatString);
+        if (!general && !DECIMAL_FORMAT.matcher(formatString).matches()) {
+            return UNSUPPORTED;
+        }
+        Format format = dataFormatter.createFormat(cell);
+        if (format == null) {
+            return UNSUPPORTED;
+        }
+        if (general) {
+            return new NumberFormat(format, true, isIntegerFormat(format, '\0', 1E11), '\0');
+        }
+        if (!(format instanceof DecimalFormat)) {
+            return UNSUPPORTED;
+        }
+        DecimalFormat decimalFormat = (DecimalFormat) format;
+        char groupingSeparator = decimalFormat.isGroupingUsed()
+                ? decimalFormat.getDecimalFormatSymbols().getGroupingSeparator() : '\0';
+        boolean writeIntegers = decimalFormat.getMaximumFractionDigits() == 0
+                && decimalFormat.getMinimumIntegerDigits() == 1
+                && (groupingSeparator == '\0' || decimalFormat.getGroupingSize() == 3)
+                && isIntegerFormat(format, groupingSeparator, 1E15);
+        return new NumberFormat(format, false, writeIntegers, groupingSeparator);
+    }
+
+    /**
+     * @return {@code true} if the format writes integers the same as {@link #writeInteger}
+     */
+    private boolean isIntegerFormat(Format format, char groupingSeparator, double limit) {
+        for (double probe : PROBES) {
+            if (isInteger(probe, limit)
+                    && !format.format(probe).equals(writeInteger((long) probe, groupingSeparator))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isInteger(double value, double limit) {
+        // Negative zero is written as "-0"
+        return value == Math.floor(value) && Math.abs(value) < limit
+                && (value != 0 || Double.doubleToRawLongBits(value) == 0);
+    }
+
+    private String writeInteger(long value, char groupingSeparator) {
+        long rest = Math.abs(value);
+        int pos = digits.length;
+        int count = 0;
+        do {
+            if (groupingSeparator != '\0' && count > 0 && count % 3 == 0) {
+                digits[--pos] = groupingSeparator;
+            }
+            digits[--pos] = (char) ('0' + rest % 10);
+            rest /= 10;
+            count++;
+        } while (rest > 0);
+        if (value < 0) {
+            digits[--pos] = '-';
+        }
+        return new String(digits, pos, digits.length - pos);
+    }
+
+    private static final class NumberFormat {
+        /**
+         * The compiled format, {@code null} if the format isn't supported
+         */
+        private final Format format;
+        private final boolean general;
+        private final boolean writeIntegers;
+        private final char groupingSeparator;
+
+        private NumberFormat(Format format, boolean general, boolean writeIntegers, char groupingSeparator) {
+            this.format = format;
+            this.general = general;
+            this.writeIntegers = writeIntegers;
+            this.groupingSeparator = groupingSeparator;
+        }
+    }
+}
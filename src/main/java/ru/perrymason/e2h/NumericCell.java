@@ -0,0 +1,228 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Hyperlink;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellAddress;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * A numeric value read by a streaming converter, presented as a cell, so it's formatted by {@link NumberFormats} and
+ * <tt>DataFormatter.formatCellValue</tt> the same as a cell of a workbook loaded by {@link Excel2Html}.
+ * <p><tt>DataFormatter.formatRawCellContents</tt> rounds numbers to 15 significant digits before applying a format,
+ * while a cell is formatted with its exact value, i.e. 30864.195 is written as "30,864.20" and "30,864.19" with
+ * {@code #,##0.00} format.</p>
+ * <p>Only the value, the style and the date of the cell are supported, the cell is reused for every value.</p>
+ */
+final class NumericCell implements Cell {
+    private final boolean date1904;
+    private double value;
+    private CellStyle cellStyle;
+
+    /**
+     * @param date1904 whether the workbook uses the 1904 date windowing
+     */
+    NumericCell(boolean date1904) {
+        this.date1904 = date1904;
+    }
+
+    NumericCell set(double value, CellStyle cellStyle) {
+        this.value = value;
+        this.cellStyle = cellStyle;
+        return this;
+    }
+
+    @Override
+    public double getNumericCellValue() {
+        return value;
+    }
+
+    @Override
+    public Date getDateCellValue() {
+        return DateUtil.getJavaDate(value, date1904);
+    }
+
+    @Override
+    public CellStyle getCellStyle() {
+        return cellStyle;
+    }
+
+    @Override
+    public int getCellType() {
+        return CellType.NUMERIC.getCode();
+    }
+
+    @Override
+    public CellType getCellTypeEnum() {
+        return CellType.NUMERIC;
+    }
+
+    @Override
+    public int getCachedFormulaResultType() {
+        throw new IllegalStateException("Only formula cells have cached results");
+    }
+
+    @Override
+    public CellType getCachedFormulaResultTypeEnum() {
+        throw new IllegalStateException("Only formula cells have cached results");
+    }
+
+    @Override
+    public int getColumnIndex() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getRowIndex() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Sheet getSheet() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Row getRow() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setCellType(int cellType) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setCellType(CellType cellType) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setCellValue(double value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setCellValue(Date value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setCellValue(Calendar value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setCellValue(RichTextString value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setCellValue(String value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setCellFormula(String formula) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getCellFormula() {
+        throw new IllegalStateException("Cannot get a formula value from a numeric cell");
+    }
+
+    @Override
+    public RichTextString getRichStringCellValue() {
+        throw new IllegalStateException("Cannot get a text value from a numeric cell");
+    }
+
+    @Override
+    public String getStringCellValue() {
+        throw new IllegalStateException("Cannot get a text value from a numeric cell");
+    }
+
+    @Override
+    public void setCellValue(boolean value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setCellErrorValue(byte value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean getBooleanCellValue() {
+        throw new IllegalStateException("Cannot get a boolean value from a numeric cell");
+    }
+
+    @Override
+    public byte getErrorCellValue() {
+        throw new IllegalStateException("Cannot get an error value from a numeric cell");
+    }
+
+    @Override
+    public void setCellStyle(CellStyle style) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setAsActiveCell() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CellAddress getAddress() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setCellComment(Comment comment) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Comment getCellComment() {
+        return null;
+    }
+
+    @Override
+    public void removeCellComment() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Hyperlink getHyperlink() {
+        return null;
+    }
+
+    @Override
+    public void setHyperlink(Hyperlink link) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removeHyperlink() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CellRangeAddress getArrayFormulaRange() {
+        throw new IllegalStateException("The cell isn't part of an array formula");
+    }
+
+    @Override
+    public boolean isPartOfArrayFormulaGroup() {
+        return false;
+    }
+}
@@ -0,0 +1,857 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.util.CellRangeAddress;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cell range of a sheet prepared for writing as an html table, created by {@link Excel2Html#createModel()}.
+ * <p>The model doesn't refer to the workbook: cell styles are converted to css rules, cell values are formatted and
+ * merged regions are resolved when the model is created. Existing cells are stored row by row as arrays of columns,
+ * css rule ids and value ids, row heights and column widths as arrays of numbers.</p>
+ * <p>The model is immutable, so it may be written many times and by different threads, and the workbook may be closed
+ * after the model is created.</p>
+ */
+public final class SheetModel {
+    static final float MISSING_ROW = -1;
+    /**
+     * Parameters of the 64-bit FNV-1a hash used for row fingerprints
+     */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int firstRow;
+    private final int lastRow;
+    private final int firstColumn;
+    private final int lastColumn;
+    private final MergedRegionIndex mergedRegions;
+    private final float[] columnWidths;
+
+    private final int headerRows;
+    /**
+     * Heights of the header rows in points, {@link #MISSING_ROW} for rows which don't exist in the sheet
+     */
+    private final float[] headerHeights;
+    /**
+     * Cells of a header row {@code i} are stored from {@code headerRowStarts[i]} to {@code headerRowStarts[i + 1]}
+     */
+    private final int[] headerRowStarts;
+    private final int[] headerColumns;
+    private final int[] headerStyles;
+    private final int[] headerValues;
+
+    /**
+     * Rows after the header rows which exist in the sheet, in ascending order, and their heights in points
+     */
+    private final int[] bodyRows;
+    private final float[] bodyHeights;
+    /**
+     * Cells of a row {@code bodyRows[i]} are stored from {@code rowStarts[i]} to {@code rowStarts[i + 1]}, in order of
+     * columns. Only cells which exist in the sheet are stored, so the model of a sparse range takes memory
+     * proportional to the number of its cells.
+     */
+    private final int[] rowStarts;
+    private final int[] cellColumns;
+    /**
+     * Css rule ids of the stored cells, {@code -1} for cells without css
+     */
+    private final int[] cellStyles;
+    private final int[] cellValues;
+
+    private final String[] values;
+    private final String[] styles;
+    private final String[] cssClasses;
+    private final boolean cellHeight;
+    private final boolean colgroup;
+    private final boolean sparse;
+
+    private SheetModel(Builder builder, String[] styles, String cssClassPrefix, boolean cellHeight,
+                       boolean colgroup, boolean sparse) {
+        this.firstRow = builder.firstRow;
+        this.lastRow = builder.lastRow;
+        this.firstColumn = builder.firstColumn;
+        this.lastColumn = builder.lastColumn;
+        this.mergedRegions = builder.mergedRegions;
+        this.columnWidths = builder.columnWidths;
+        this.headerRows = builder.headerRows;
+        this.headerHeights = new float[builder.headerHeights.size()];
+        for (int i = 0; i < headerHeights.length; i++) {
+            headerHeights[i] = builder.headerHeights.get(i);
+        }
+        this.headerRowStarts = toArray(builder.headerRowStarts);
+        this.headerColumns = toArray(builder.headerColumns);
+        this.headerStyles = toArray(builder.headerStyles);
+        this.headerValues = toArray(builder.headerValues);
+        this.bodyRows = Arrays.copyOf(builder.rows, builder.rowCount);
+        this.bodyHeights = Arrays.copyOf(builder.heights, builder.rowCount);
+        this.rowStarts = Arrays.copyOf(builder.rowStarts, builder.rowCount + 1);
+        rowStarts[builder.rowCount] = builder.cellCount;
+        this.cellColumns = Arrays.copyOf(builder.cellColumns, builder.cellCount);
+        this.cellStyles = Arrays.copyOf(builder.cellStyles, builder.cellCount);
+        this.cellValues = Arrays.copyOf(builder.cellValues, builder.cellCount);
+        this.values = builder.values.toArray(new String[builder.values.size()]);
+        this.styles = styles;
+        if (cssClassPrefix != null) {
+            this.cssClasses = new String[styles.length];
+            for (int id = 0; id < styles.length; id++) {
+                cssClasses[id] = cssClassPrefix + id;
+            }
+        } else {
+            this.cssClasses = null;
+        }
+        this.cellHeight = cellHeight;
+        this.colgroup = colgroup;
+        this.sparse = sparse;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * @return the cell range of the model
+     */
+    public CellRangeAddress getRange() {
+        return new CellRangeAddress(firstRow, lastRow, firstColumn, lastColumn);
+    }
+
+    /**
+     * @return width of a column of the range in pixels
+     */
+    float getColumnWidthInPixels(int column) {
+        return columnWidths[column - firstColumn];
+    }
+
+    /**
+     * Writes an html table to the specified <tt>OutputStream</tt>
+     * <p>Note that this method uses <tt>UTF-8</tt> encoding for characters</p>
+     * @param outputStream
+     * @throws XMLStreamException
+     */
+    public void writeHtml(OutputStream outputStream) throws XMLStreamException {
+        writeHtml(new HtmlWriter(outputStream));
+    }
+
+    /**
+     * Writes an html table using the specified <tt>Writer</tt>
+     * @param writer
+     * @throws XMLStreamException
+     */
+    public void writeHtml(Writer writer) throws XMLStreamException {
+        writeHtml(new HtmlWriter(writer));
+    }
+
+    /**
+     * Writes an html table to the specified channel, i.e. a <tt>FileChannel</tt>, in <tt>UTF-8</tt> encoding.
+     * Characters are encoded directly into a pooled direct buffer, and may be compressed to the gzip format on the fly,
+     * i.e. for a response with <tt>Content-Encoding: gzip</tt>. The channel isn't closed.
+     * <p>A stream may be wrapped with <tt>Channels.newChannel(OutputStream)</tt> to get compressed html.</p>
+     * @param channel
+     * @param gzip whether to compress the html to the gzip format
+     * @throws XMLStreamException
+     */
+    public void writeHtml(WritableByteChannel channel, boolean gzip) throws XMLStreamException {
+        HtmlWriter out = new HtmlWriter(channel, gzip);
+        try {
+            writeHtml(out);
+        } finally {
+            out.release();
+        }
+    }
+
+    void writeHtml(HtmlWriter out) throws XMLStreamException {
+//        writeHtmlHeaders(out);
+        writeHead(out);
+        writeRows(out);
+        writeTableEnd(out);
+    }
+
+    /**
+     * Closes the table and the writer
+     */
+    static void writeTableEnd(HtmlWriter out) throws XMLStreamException {
+        out.writeEndElement();
+        out.writeEndDocument();
+        out.close();
+    }
+
+    /**
+     * Writes the rows after the header rows
+     */
+    void writeRows(HtmlWriter out) throws XMLStreamException {
+        writeRows(getFirstBodyRow(), lastRow, out);
+    }
+
+    /**
+     * Writes rows from {@code fromRow} to {@code toRow}, which are the only rows stored by the model. In sparse mode,
+     * a run of empty rows reaching {@code toRow} isn't written unless it ends the range, as it may continue in the
+     * rows after {@code toRow}.
+     * @return the first row which isn't written
+     */
+    int writeRows(int fromRow, int toRow, HtmlWriter out) throws XMLStreamException {
+        int rowNum = fromRow;
+        while (rowNum <= toRow) {
+            if (sparse && isEmptyRow(rowNum)) {
+                int endRow = getEmptyRowsEnd(rowNum);
+                if (endRow > toRow && toRow < lastRow) {
+                    return rowNum;
+                }
+                writeEmptyRows(endRow - rowNum, out);
+                rowNum = endRow;
+            } else {
+                writeRow(rowNum, out);
+                rowNum++;
+            }
+        }
+        return rowNum;
+    }
+
+    /**
+     * Writes everything before the rows after the header rows: the style sheet, the start of the table and the header
+     * rows. The table is left open.
+     */
+    void writeHead(HtmlWriter out) throws XMLStreamException {
+        if (cssClasses != null) {
+            writeStyleSheet(out);
+        }
+        writeTableStart(colgroup ? columnWidths : null, out);
+        for (int i = 0; i < headerRows; i++) {
+            writeHeaderRow(i, out);
+        }
+    }
+
+    /**
+     * @return index of the first row after the header rows
+     */
+    int getFirstBodyRow() {
+        return firstRow + headerRows;
+    }
+
+    /**
+     * Returns a key of everything which affects the way rows are written, except for the rows themselves. Rows with
+     * equal {@link #getRowFingerprints() fingerprints} are written the same way by models with equal layouts.
+     */
+    String getLayout() {
+        return getRange().formatAsString() + ';' + headerRows + ';' + (cssClasses != null) + ';' + cellHeight + ';'
+                + sparse;
+    }
+
+    /**
+     * Computes 64-bit fingerprints of the rows after the header rows from their heights, merged cells, css rules and
+     * values. In sparse mode, the fingerprint of the first row of a run of empty rows depends on the length of the
+     * run, while the other rows of the run have the same fingerprint, as they aren't written.
+     */
+    long[] getRowFingerprints() {
+        long[] styleHashes = new long[styles.length];
+        for (int id = 0; id < styles.length; id++) {
+            styleHashes[id] = hash(cssClasses != null ? cssClasses[id] : styles[id]);
+        }
+        long[] valueHashes = new long[values.length];
+        for (int id = 0; id < values.length; id++) {
+            valueHashes[id] = hash(values[id]);
+        }
+        int firstBodyRow = getFirstBodyRow();
+        long[] fingerprints = new long[Math.max(lastRow - firstBodyRow + 1, 0)];
+        int rowNum = firstBodyRow;
+        while (rowNum <= lastRow) {
+            if (sparse && isEmptyRow(rowNum)) {
+                // The other rows of the run keep zero fingerprints
+                int toRow = getEmptyRowsEnd(rowNum);
+                fingerprints[rowNum - firstBodyRow] = mix(FNV_OFFSET, toRow - rowNum);
+                rowNum = toRow;
+                continue;
+            }
+            int i = Arrays.binarySearch(bodyRows, rowNum);
+            long h = mix(FNV_OFFSET, Float.floatToIntBits(i >= 0 ? bodyHeights[i] : MISSING_ROW));
+            MergedRegionIndex.RowSpans rowSpans = mergedRegions.getRowSpans(rowNum);
+            if (rowSpans != null) {
+                for (CellRangeAddress region : rowSpans.getRegions()) {
+                    h = mix(h, (long) region.getFirstRow() << 32 | region.getLastRow());
+                    h = mix(h, (long) region.getFirstColumn() << 32 | region.getLastColumn());
+                }
+            }
+            if (i >= 0) {
+                for (int cell = rowStarts[i]; cell < rowStarts[i + 1]; cell++) {
+                    int styleId = cellStyles[cell];
+                    h = mix(h, cellColumns[cell]);
+                    h = mix(h, styleId < 0 ? styleId : styleHashes[styleId]);
+                    h = mix(h, valueHashes[cellValues[cell]]);
+                }
+            }
+            fingerprints[rowNum - firstBodyRow] = h;
+            rowNum++;
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Returns {@code true} if a row after the header rows is written the same way by this model and by another model
+     * of the same {@link #getLayout() layout}, comparing everything the fingerprint of the row is computed from.
+     */
+    boolean rowEquals(int rowNum, SheetModel other) {
+        if (sparse && isEmptyRow(rowNum)) {
+            if (!other.isEmptyRow(rowNum)) {
+                return false;
+            }
+            boolean runStart = rowNum == getFirstBodyRow() || !isEmptyRow(rowNum - 1);
+            boolean otherRunStart = rowNum == other.getFirstBodyRow() || !other.isEmptyRow(rowNum - 1);
+            return runStart == otherRunStart
+                    && (!runStart || getEmptyRowsEnd(rowNum) == other.getEmptyRowsEnd(rowNum));
+        }
+        int i = Arrays.binarySearch(bodyRows, rowNum);
+        int j = Arrays.binarySearch(other.bodyRows, rowNum);
+        if ((i >= 0 ? bodyHeights[i] : MISSING_ROW) != (j >= 0 ? other.bodyHeights[j] : MISSING_ROW)) {
+            return false;
+        }
+        if (!regionsEqual(mergedRegions.getRowSpans(rowNum), other.mergedRegions.getRowSpans(rowNum))) {
+            return false;
+        }
+        int cells = i >= 0 ? rowStarts[i + 1] - rowStarts[i] : 0;
+        int otherCells = j >= 0 ? other.rowStarts[j + 1] - other.rowStarts[j] : 0;
+        if (cells != otherCells) {
+            return false;
+        }
+        for (int k = 0; k < cells; k++) {
+            int cell = rowStarts[i] + k;
+            int otherCell = other.rowStarts[j] + k;
+            if (cellColumns[cell] != other.cellColumns[otherCell]
+                    || !values[cellValues[cell]].equals(other.values[other.cellValues[otherCell]])
+                    || !equal(getCss(cellStyles[cell]), other.getCss(other.cellStyles[otherCell]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the css class or the css rule written for a css rule id, or {@code null} for a cell without css
+     */
+    private String getCss(int styleId) {
+        if (styleId < 0) {
+            return null;
+        }
+        return cssClasses != null ? cssClasses[styleId] : styles[styleId];
+    }
+
+    private static boolean equal(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    private static boolean regionsEqual(MergedRegionIndex.RowSpans rowSpans, MergedRegionIndex.RowSpans other) {
+        if (rowSpans == null || other == null) {
+            return rowSpans == other;
+        }
+        List<CellRangeAddress> regions = rowSpans.getRegions();
+        List<CellRangeAddress> otherRegions = other.getRegions();
+        if (regions.size() != otherRegions.size()) {
+            return false;
+        }
+        for (int i = 0; i < regions.size(); i++) {
+            CellRangeAddress region = regions.get(i);
+            CellRangeAddress otherRegion = otherRegions.get(i);
+            if (region.getFirstRow() != otherRegion.getFirstRow() || region.getLastRow() != otherRegion.getLastRow()
+                    || region.getFirstColumn() != otherRegion.getFirstColumn()
+                    || region.getLastColumn() != otherRegion.getLastColumn()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(String s) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long mix(long h, long value) {
+        h = (h ^ value) * FNV_PRIME;
+        return h ^ h >>> 29;
+    }
+
+    /**
+     * Writes a row after the header rows the same way as {@link #writeHtml(HtmlWriter)}. In sparse mode, the first row
+     * of a run of empty rows is written as the whole run, and the other rows of the run aren't written.
+     */
+    void writeBodyRow(int rowNum, HtmlWriter out) throws XMLStreamException {
+        if (sparse && isEmptyRow(rowNum)) {
+            if (rowNum > getFirstBodyRow() && isEmptyRow(rowNum - 1)) {
+                return;
+            }
+            writeEmptyRows(getEmptyRowsEnd(rowNum) - rowNum, out);
+        } else {
+            writeRow(rowNum, out);
+        }
+    }
+
+//    private void writeHtmlHeaders(HtmlWriter out) throws XMLStreamException {
+//        out.writeStartElement("html");
+//
+//        out.writeStartElement("head");
+//        out.writeStartElement("meta");
+//        out.writeAttribute("charset", "UTF-8");
+//        out.writeEndElement();
+//        out.writeEndElement();
+//    }
+
+    /**
+     * Starts an html table. If column widths are given, they are written in a {@code <colgroup>} block and the table
+     * gets a fixed layout.
+     * @param columnWidths widths of the columns of the table in pixels, or {@code null}
+     */
+    static void writeTableStart(float[] columnWidths, HtmlWriter out) throws XMLStreamException {
+        out.writeStartElement("table");
+        if (columnWidths == null) {
+            out.writeAttribute("style", "border-collapse: collapse;");
+            return;
+        }
+        // A fixed layout is used by browsers only for tables with a specified width
+        float tableWidth = 0;
+        for (float width : columnWidths) {
+            tableWidth += width;
+        }
+        out.writeAttribute("style", "border-collapse: collapse;table-layout:fixed;width:" + tableWidth + "px;");
+        out.writeStartElement("colgroup");
+        for (float width : columnWidths) {
+            out.writeEmptyElement("col");
+            out.writeAttribute("style", "width:" + width + "px;");
+        }
+        out.writeEndElement();
+    }
+
+    private void writeStyleSheet(HtmlWriter out) throws XMLStreamException {
+        if (styles.length > 0) {
+            StringBuilder styleSheet = new StringBuilder();
+            for (int id = 0; id < styles.length; id++) {
+                styleSheet.append('.').append(cssClasses[id]).append('{').append(styles[id]).append('}');
+            }
+            out.writeStartElement("style");
+            out.writeCharacters(styleSheet.toString());
+            out.writeEndElement();
+        }
+    }
+
+    private void writeHeaderRow(int i, HtmlWriter out) throws XMLStreamException {
+        out.writeStartElement("tr");
+        writeRowHeight(headerHeights[i], out);
+        int rowNum = firstRow + i;
+        for (int cell = headerRowStarts[i]; cell < headerRowStarts[i + 1]; cell++) {
+            out.writeStartElement("th");
+            writeCell(headerStyles[cell], headerValues[cell],
+                    mergedRegions.getCellSpans(rowNum, headerColumns[cell]), out);
+            out.writeEndElement();
+        }
+        out.writeEndElement();
+    }
+
+    /**
+     * @return {@code true} if a row doesn't exist in the sheet and isn't covered by merged regions
+     */
+    private boolean isEmptyRow(int rowNum) {
+        return Arrays.binarySearch(bodyRows, rowNum) < 0 && mergedRegions.getRowSpans(rowNum) == null;
+    }
+
+    /**
+     * @return the row after a run of empty rows starting with a given one, found without visiting the rows of the run
+     */
+    private int getEmptyRowsEnd(int rowNum) {
+        int next = Arrays.binarySearch(bodyRows, rowNum);
+        next = next < 0 ? -next - 1 : next;
+        int nextExisting = next < bodyRows.length ? bodyRows[next] : Integer.MAX_VALUE;
+        return Math.min(Math.min(nextExisting, mergedRegions.getNextCoveredRow(rowNum)), lastRow + 1);
+    }
+
+    /**
+     * Writes rows which don't exist in the sheet and aren't covered by merged regions as a single row of the same
+     * height
+     * @param count number of rows
+     */
+    static void writeEmptyRows(int count, HtmlWriter out) throws XMLStreamException {
+        out.writeStartElement("tr");
+        // Empty rows have default height
+        out.writeAttribute("style", "height:" + 15 * count + "pt;");
+        out.writeEndElement();
+    }
+
+    /**
+     * Writes cells which don't exist in the sheet, skipping cells covered by merged regions. In sparse mode only the
+     * merged cells of the row are visited.
+     * @param rowSpans merged cells of the row
+     * @param fromColumn the first column
+     * @param toColumn the column after the last one
+     * @param sparse whether to write adjacent cells which aren't merged as a single cell with colspan
+     */
+    static void writeEmptyCells(MergedRegionIndex.RowSpans rowSpans, int fromColumn, int toColumn, boolean sparse,
+                                HtmlWriter out) throws XMLStreamException {
+        if (sparse) {
+            int column = fromColumn;
+            while (column < toColumn) {
+                int merged = rowSpans == null ? -1 : rowSpans.getNextMergedColumn(column);
+                if (merged < 0 || merged >= toColumn) {
+                    writeEmptyCell(toColumn - column, out);
+                    return;
+                }
+                writeEmptyCell(merged - column, out);
+                if (rowSpans.isSpanned(merged)) {
+                    column = Math.min(rowSpans.getNextUnspannedColumn(merged), toColumn);
+                    continue;
+                }
+                out.writeStartElement("td");
+                writeCellSpans(rowSpans.getCellSpans(merged), out);
+                out.writeEndElement();
+                column = merged + 1;
+            }
+            return;
+        }
+        for (int column = fromColumn; column < toColumn; column++) {
+            if (rowSpans != null && rowSpans.isSpanned(column)) {
+                continue;
+            }
+            out.writeStartElement("td");
+            writeCellSpans(rowSpans == null ? null : rowSpans.getCellSpans(column), out);
+            out.writeEndElement();
+        }
+    }
+
+    /**
+     * Writes a cell spanning a given number of empty columns, if any
+     */
+    private static void writeEmptyCell(int colspan, HtmlWriter out) throws XMLStreamException {
+        if (colspan > 0) {
+            out.writeStartElement("td");
+            if (colspan > 1) {
+                out.writeAttribute("colspan", colspan);
+            }
+            out.writeEndElement();
+        }
+    }
+
+    static void writeCellSpans(Excel2Html.CellSpans cellSpans, HtmlWriter out) throws XMLStreamException {
+        if (cellSpans != null) {
+            if (cellSpans.colspan > 1) {
+                out.writeAttribute("colspan", cellSpans.colspan);
+            }
+            if (cellSpans.rowspan > 1) {
+                out.writeAttribute("rowspan", cellSpans.rowspan);
+            }
+        }
+    }
+
+    private void writeRow(int rowNum, HtmlWriter out) throws XMLStreamException {
+        int i = Arrays.binarySearch(bodyRows, rowNum);
+        MergedRegionIndex.RowSpans rowSpans = mergedRegions.getRowSpans(rowNum);
+        out.writeStartElement("tr");
+        writeRowHeight(i >= 0 ? bodyHeights[i] : MISSING_ROW, out);
+        if (i < 0 && rowSpans == null) {
+            out.writeEndElement();
+            return;
+        }
+        int cell = i >= 0 ? rowStarts[i] : 0;
+        int end = i >= 0 ? rowStarts[i + 1] : 0;
+        if (sparse) {
+            // Only the existing cells, and the merged cells between them
+            int column = firstColumn;
+            for (; cell < end; cell++) {
+                int cellColumn = cellColumns[cell];
+                writeEmptyCells(rowSpans, column, cellColumn, true, out);
+                column = cellColumn + 1;
+                if (rowSpans == null || !rowSpans.isSpanned(cellColumn)) {
+                    out.writeStartElement("td");
+                    writeCell(cellStyles[cell], cellValues[cell],
+                            rowSpans == null ? null : rowSpans.getCellSpans(cellColumn), out);
+                    out.writeEndElement();
+                }
+            }
+            writeEmptyCells(rowSpans, column, lastColumn + 1, true, out);
+            out.writeEndElement();
+            return;
+        }
+        for (int column = firstColumn; column <= lastColumn; column++) {
+            int styleId = -1;
+            int valueId = -1;
+            if (cell < end && cellColumns[cell] == column) {
+                styleId = cellStyles[cell];
+                valueId = cellValues[cell];
+                cell++;
+            }
+            if (rowSpans != null && rowSpans.isSpanned(column)) {
+                continue;
+            }
+            out.writeStartElement("td");
+            writeCell(styleId, valueId, rowSpans == null ? null : rowSpans.getCellSpans(column), out);
+            out.writeEndElement();
+        }
+        out.writeEndElement();
+    }
+
+    private void writeRowHeight(float rowHeight, HtmlWriter out) throws XMLStreamException {
+        if (rowHeight == MISSING_ROW) {
+            // An empty row with default height
+            out.writeAttribute("style", "height:15pt;");
+        } else if (cellHeight) {
+            out.writeAttribute("style", "height:" + rowHeight + "pt;");
+        }
+    }
+
+    private void writeCell(int styleId, int valueId, Excel2Html.CellSpans cellSpans, HtmlWriter out)
+            throws XMLStreamException {
+        writeCellSpans(cellSpans, out);
+        if (styleId >= 0) {
+            if (cssClasses != null) {
+                out.writeAttribute("class", cssClasses[styleId]);
+            } else {
+                out.writeAttribute("style", styles[styleId]);
+            }
+        }
+        if (valueId >= 0) {
+            out.writeCharacters(values[valueId]);
+        }
+    }
+
+    /**
+     * Returns a capacity of an array for a given number of elements, growing by half of the current capacity
+     * @throws IllegalStateException if the number of elements exceeds the maximal size of an array
+     */
+    private static int grow(int capacity, int required) {
+        if (required < 0 || required > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many rows or cells for a sheet model");
+        }
+        long newCapacity = Math.max((long) capacity + (capacity >> 1), required);
+        return (int) Math.min(newCapacity, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Collects cells of a model in the order they are written: header rows first, then the other rows of the range.
+     * <p>Cells are stored by {@link Band}s. Bands of different rows may be filled by different threads, every band
+     * numbers css rules and values on its own, and the ids are replaced with the ids of the model when the band is
+     * added. Equal rules and values are stored once. Only rows and cells which exist in the sheet are stored.</p>
+     */
+    static final class Builder {
+        private final int firstRow;
+        private final int lastRow;
+        private final int firstColumn;
+        private final int lastColumn;
+        private final MergedRegionIndex mergedRegions;
+        private final float[] columnWidths;
+
+        private int headerRows;
+        private final List<Float> headerHeights = new ArrayList<Float>();
+        private final List<Integer> headerRowStarts = new ArrayList<Integer>();
+        private final List<Integer> headerColumns = new ArrayList<Integer>();
+        private final List<Integer> headerStyles = new ArrayList<Integer>();
+        private final List<Integer> headerValues = new ArrayList<Integer>();
+
+        private int rowCount;
+        private int[] rows = new int[16];
+        private float[] heights = new float[16];
+        private int[] rowStarts = new int[17];
+        private int cellCount;
+        private int[] cellColumns = new int[64];
+        private int[] cellStyles = new int[64];
+        private int[] cellValues = new int[64];
+
+        private final List<String> styles = new ArrayList<String>();
+        private final Map<String, Integer> styleIds = new HashMap<String, Integer>();
+        private final List<String> values = new ArrayList<String>();
+        private final Map<String, Integer> valueIds = new HashMap<String, Integer>();
+
+        Builder(CellRangeAddress range, MergedRegionIndex mergedRegions) {
+            this.firstRow = range.getFirstRow();
+            this.lastRow = range.getLastRow();
+            this.firstColumn = range.getFirstColumn();
+            this.lastColumn = range.getLastColumn();
+            this.mergedRegions = mergedRegions;
+            this.columnWidths = new float[lastColumn - firstColumn + 1];
+        }
+
+        void setColumnWidth(int column, float widthInPixels) {
+            columnWidths[column - firstColumn] = widthInPixels;
+        }
+
+        /**
+         * Creates a band for cells of some rows. Header rows are stored by a band created before {@link #endHeader()},
+         * the other rows by any bands created after it.
+         */
+        Band newBand() {
+            return new Band(headerColumns.size());
+        }
+
+        /**
+         * Finishes header rows
+         */
+        void endHeader() {
+            headerRowStarts.add(headerColumns.size());
+        }
+
+        /**
+         * Replaces ids of css rules and values of a filled band with the ids of the model and appends its rows. Bands
+         * must be added in order of their rows, so the ids are the same as if the range was stored by a single band.
+         * @param band a band created by this builder
+         * @param rules css rules of the band by their ids in the band
+         */
+        void addBand(Band band, String[] rules) {
+            int[] styleMap = new int[rules.length];
+            for (int id = 0; id < rules.length; id++) {
+                styleMap[id] = getId(rules[id], styles, styleIds);
+            }
+            int[] valueMap = new int[band.values.size()];
+            for (int id = 0; id < valueMap.length; id++) {
+                valueMap[id] = getId(band.values.get(id), values, valueIds);
+            }
+            for (int cell = band.headerCells; cell < headerColumns.size(); cell++) {
+                int styleId = headerStyles.get(cell);
+                headerStyles.set(cell, styleId < 0 ? styleId : styleMap[styleId]);
+                headerValues.set(cell, valueMap[headerValues.get(cell)]);
+            }
+            if (rowCount + band.rowCount >= rows.length) {
+                int capacity = grow(rows.length, rowCount + band.rowCount + 1);
+                rows = Arrays.copyOf(rows, capacity);
+                heights = Arrays.copyOf(heights, capacity);
+                rowStarts = Arrays.copyOf(rowStarts, capacity + 1);
+            }
+            for (int i = 0; i < band.rowCount; i++) {
+                rows[rowCount + i] = band.rows[i];
+                heights[rowCount + i] = band.heights[i];
+                rowStarts[rowCount + i] = cellCount + band.rowStarts[i];
+            }
+            rowCount += band.rowCount;
+            if (cellCount + band.cellCount > cellColumns.length) {
+                int capacity = grow(cellColumns.length, cellCount + band.cellCount);
+                cellColumns = Arrays.copyOf(cellColumns, capacity);
+                cellStyles = Arrays.copyOf(cellStyles, capacity);
+                cellValues = Arrays.copyOf(cellValues, capacity);
+            }
+            for (int cell = 0; cell < band.cellCount; cell++) {
+                int styleId = band.cellStyles[cell];
+                cellColumns[cellCount + cell] = band.cellColumns[cell];
+                cellStyles[cellCount + cell] = styleId < 0 ? styleId : styleMap[styleId];
+                cellValues[cellCount + cell] = valueMap[band.cellValues[cell]];
+            }
+            cellCount += band.cellCount;
+        }
+
+        /**
+         * Removes stored cells and values, keeping css rules, so that rows of a large range are written by parts with
+         * the same css rule ids. Header rows can't be written after it.
+         */
+        void clearRows() {
+            for (int i = 0; i < headerRowStarts.size(); i++) {
+                headerRowStarts.set(i, 0);
+            }
+            headerColumns.clear();
+            headerStyles.clear();
+            headerValues.clear();
+            rowCount = 0;
+            cellCount = 0;
+            values.clear();
+            valueIds.clear();
+        }
+
+        private static int getId(String value, List<String> list, Map<String, Integer> ids) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = list.size();
+                list.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        /**
+         * @param cssClassPrefix a prefix of css class names, if css classes are used
+         * @param cellHeight whether to write row heights
+         * @param colgroup whether to write column widths in a {@code <colgroup>} block
+         * @param sparse whether to collapse rows and cells which don't exist in the sheet
+         */
+        SheetModel build(String cssClassPrefix, boolean cellHeight, boolean colgroup, boolean sparse) {
+            return new SheetModel(this, styles.toArray(new String[styles.size()]), cssClassPrefix, cellHeight,
+                    colgroup, sparse);
+        }
+
+        /**
+         * Stores cells of some rows with css rule ids of a single styling algorithm and its own value ids. A band
+         * must be filled by one thread at a time, different bands must store different rows. Rows must be set in
+         * ascending order, and cells of a row after the row, in order of their columns.
+         */
+        final class Band {
+            private final int headerCells;
+            private final List<String> values = new ArrayList<String>();
+            private final Map<String, Integer> valueIds = new HashMap<String, Integer>();
+
+            private int rowCount;
+            private int[] rows = new int[16];
+            private float[] heights = new float[16];
+            private int[] rowStarts = new int[16];
+            private int cellCount;
+            private int[] cellColumns = new int[64];
+            private int[] cellStyles = new int[64];
+            private int[] cellValues = new int[64];
+
+            private Band(int headerCells) {
+                this.headerCells = headerCells;
+            }
+
+            /**
+             * Starts the next header row
+             * @param heightInPoints height of the row or {@link #MISSING_ROW} if the row doesn't exist in the sheet
+             */
+            void addHeaderRow(float heightInPoints) {
+                headerRows++;
+                headerHeights.add(heightInPoints);
+                headerRowStarts.add(headerColumns.size());
+            }
+
+            void addHeaderCell(int column, int styleId, String value) {
+                headerColumns.add(column);
+                headerStyles.add(styleId);
+                headerValues.add(getId(value, values, valueIds));
+            }
+
+            /**
+             * Starts a row after the header rows which exists in the sheet
+             */
+            void setRow(int rowNum, float heightInPoints) {
+                if (rowCount == rows.length) {
+                    int capacity = grow(rows.length, rowCount + 1);
+                    rows = Arrays.copyOf(rows, capacity);
+                    heights = Arrays.copyOf(heights, capacity);
+                    rowStarts = Arrays.copyOf(rowStarts, capacity);
+                }
+                rows[rowCount] = rowNum;
+                heights[rowCount] = heightInPoints;
+                rowStarts[rowCount] = cellCount;
+                rowCount++;
+            }
+
+            /**
+             * Adds a cell to the last row set
+             */
+            void setCell(int column, int styleId, String value) {
+                if (cellCount == cellColumns.length) {
+                    int capacity = grow(cellColumns.length, cellCount + 1);
+                    cellColumns = Arrays.copyOf(cellColumns, capacity);
+                    cellStyles = Arrays.copyOf(cellStyles, capacity);
+                    cellValues = Arrays.copyOf(cellValues, capacity);
+                }
+                cellColumns[cellCount] = column;
+                cellStyles[cellCount] = styleId;
+                cellValues[cellCount] = getId(value, values, valueIds);
+                cellCount++;
+            }
+        }
+    }
+}
@@ -0,0 +1,795 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.hssf.eventusermodel.AbortableHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.eventusermodel.HSSFUserException;
+import org.apache.poi.hssf.model.HSSFFormulaParser;
+import org.apache.poi.hssf.model.InternalWorkbook;
+import org.apache.poi.hssf.record.*;
+import org.apache.poi.hssf.usermodel.HSSFCellStyle;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.poifs.filesystem.DirectoryNode;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.ptg.ExpPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.ptg.TblPtg;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.CellReference;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts a sheet of a 97-2003 (.xls) workbook to an html table without loading the workbook into memory.
+ * <p>The workbook stream is read with {@link HSSFEventFactory}. Records of the workbook globals (fonts, formats,
+ * extended formats, palette and shared strings) are read once when the converter is created, and are used with the same
+ * styling as {@link Excel2Html} converter. The sheet is read in two passes: the first one collects column widths and
+ * merged regions, the second one writes html rows as soon as their records are read, so memory consumption doesn't
+ * depend on the number of cells. With {@link E2HOption#CSS_CLASSES} option there is one more pass collecting css
+ * rules.</p>
+ * <p>The result is the same as of {@link Excel2Html} converter with the same options, except for formulas: with
+ * {@link E2HOption#EVALUATE_FORMULAS} or {@link E2HOption#CACHED_FORMULA_RESULTS} option cached formula results
+ * stored in the file are written.</p>
+ */
+public final class StreamingHSSF2Html {
+
+    private final DirectoryNode directory;
+    private final InternalWorkbook globals;
+    /**
+     * A workbook without sheets, which provides cell styles, fonts and the palette of the file
+     */
+    private final HSSFWorkbook workbook;
+    private final int sheetIndex;
+    private final CellRangeAddress range;
+
+    private final EnumSet<E2HOption> options = EnumSet.noneOf(E2HOption.class);
+
+    private DataFormatter dataFormatter;
+    private boolean customDataFormatter;
+    private String cssClassPrefix = "s";
+
+    /**
+     * Creates a new converter for a given sheet of a 97-2003 workbook.
+     * @param directory root directory of the workbook file system, e.g. {@code NPOIFSFileSystem.getRoot()}
+     * @param sheetIndex index of the sheet (0-based)
+     * @throws IOException if an error occurs while reading the workbook
+     */
+    public StreamingHSSF2Html(DirectoryNode directory, int sheetIndex) throws IOException {
+        this(directory, sheetIndex, null);
+    }
+
+    /**
+     * Creates a new converter for a given sheet of a 97-2003 workbook. This converter will create an html table only
+     * for cells specified in range.
+     * @param directory root directory of the workbook file system, e.g. {@code NPOIFSFileSystem.getRoot()}
+     * @param sheetIndex index of the sheet (0-based)
+     * @param range a <tt>CellRangeAddress</tt> which this class will convert to html table (i.e. "C3:G18")
+     * @throws IOException if an error occurs while reading the workbook
+     */
+    public StreamingHSSF2Html(DirectoryNode directory, int sheetIndex, CellRangeAddress range) throws IOException {
+        if (range != null) {
+            range.validate(SpreadsheetVersion.EXCEL97);
+        }
+        this.directory = directory;
+        this.globals = readGlobals(directory);
+        if (sheetIndex < 0 || sheetIndex >= globals.getNumSheets()) {
+            throw new IllegalArgumentException("Sheet index (" + sheetIndex + ") is out of range");
+        }
+        this.workbook = HSSFWorkbook.create(globals);
+        this.sheetIndex = sheetIndex;
+        this.range = range;
+        this.dataFormatter = new DataFormatter();
+    }
+
+    /**
+     * Returns names of all sheets of a 97-2003 workbook in the order they are stored in the workbook.
+     * @param directory root directory of the workbook file system, e.g. {@code NPOIFSFileSystem.getRoot()}
+     * @throws IOException if an error occurs while reading the workbook
+     */
+    public static List<String> getSheetNames(DirectoryNode directory) throws IOException {
+        InternalWorkbook globals = readGlobals(directory);
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < globals.getNumSheets(); i++) {
+            names.add(globals.getSheetName(i));
+        }
+        return names;
+    }
+
+    public boolean addOption(E2HOption option) {
+        return this.options.add(option);
+    }
+
+    public boolean addOption(EnumSet<E2HOption> options) {
+        return this.options.addAll(options);
+    }
+
+    public boolean removeOption(E2HOption option) {
+        return this.options.remove(option);
+    }
+
+    public boolean removeOption(EnumSet<E2HOption> options) {
+        return this.options.removeAll(options);
+    }
+
+    public boolean hasOption(E2HOption option) {
+        return this.options.contains(option);
+    }
+
+    public boolean hasOption(EnumSet<E2HOption> options) {
+        return this.options.containsAll(options);
+    }
+
+    public EnumSet<E2HOption> getOptions() {
+        return EnumSet.copyOf(this.options);
+    }
+
+    public void replaceOptions(EnumSet<E2HOption> options) {
+        this.options.clear();
+        this.options.addAll(options);
+    }
+
+    public DataFormatter getDataFormatter() {
+        return dataFormatter;
+    }
+
+    public void setDataFormatter(DataFormatter dataFormatter) {
+        this.dataFormatter = dataFormatter;
+        this.customDataFormatter = true;
+    }
+
+    public String getCssClassPrefix() {
+        return cssClassPrefix;
+    }
+
+    /**
+     * Sets a prefix for css class names generated with {@link E2HOption#CSS_CLASSES} option.
+     * @see Excel2Html#setCssClassPrefix(String)
+     */
+    public void setCssClassPrefix(String cssClassPrefix) {
+        if (cssClassPrefix == null || cssClassPrefix.length() == 0) {
+            throw new IllegalArgumentException("Css class prefix must not be empty");
+        }
+        this.cssClassPrefix = cssClassPrefix;
+    }
+
+    /**
+     * Writes an html table to the specified <tt>OutputStream</tt>
+     * <p>Note that this method uses <tt>UTF-8</tt> encoding for characters</p>
+     * @param outputStream
+     * @throws XMLStreamException
+     * @throws IOException if an error occurs while reading the sheet
+     */
+    public void writeHtml(OutputStream outputStream) throws XMLStreamException, IOException {
+        writeHtml(new HtmlWriter(outputStream));
+    }
+
+    /**
+     * Writes an html table using the specified <tt>Writer</tt>
+     * @param writer
+     * @throws XMLStreamException
+     * @throws IOException if an error occurs while reading the sheet
+     */
+    public void writeHtml(Writer writer) throws XMLStreamException, IOException {
+        writeHtml(new HtmlWriter(writer));
+    }
+
+    /**
+     * Writes an html table to the specified channel, i.e. a <tt>FileChannel</tt>, in <tt>UTF-8</tt> encoding.
+     * Characters are encoded directly into a pooled direct buffer, and may be compressed to the gzip format on the fly,
+     * i.e. for a response with <tt>Content-Encoding: gzip</tt>. The channel isn't closed.
+     * <p>A stream may be wrapped with <tt>Channels.newChannel(OutputStream)</tt> to get compressed html.</p>
+     * @param channel
+     * @param gzip whether to compress the html to the gzip format
+     * @throws XMLStreamException
+     * @throws IOException if an error occurs while reading the sheet
+     */
+    public void writeHtml(WritableByteChannel channel, boolean gzip) throws XMLStreamException, IOException {
+        HtmlWriter out = new HtmlWriter(channel, gzip);
+        try {
+            writeHtml(out);
+        } finally {
+            out.release();
+        }
+    }
+
+    private void writeHtml(HtmlWriter out) throws XMLStreamException, IOException {
+        final SheetLayout layout = new SheetLayout();
+        processRecords(directory, layout);
+        CellRangeAddress tableRange = range != null ? range : layout.getUsedRange();
+
+        StylingAlgorithm stylingAlgorithm = new HSSFStylingAlgorithm(workbook) {
+            @Override
+            protected float getColumnWidthInPixels(int columnIndex) {
+                return layout.getColumnWidthInPixels(columnIndex);
+            }
+        };
+        stylingAlgorithm.build(new ConversionPlan(options, cssClassPrefix), workbook.getNumCellStyles());
+        MergedRegionIndex mergedRegions = new MergedRegionIndex(layout.mergedRegions, tableRange);
+
+        if (hasOption(E2HOption.CSS_CLASSES)) {
+            processRecords(directory, new SheetWriter(tableRange, mergedRegions, stylingAlgorithm, null));
+            stylingAlgorithm.writeStyleSheet(out);
+        }
+        SheetModel.writeTableStart(hasOption(E2HOption.COLGROUP)
+                ? stylingAlgorithm.getColumnWidthsInPixels(tableRange) : null, out);
+        processRecords(directory, new SheetWriter(tableRange, mergedRegions, stylingAlgorithm, out));
+        out.writeEndElement();
+        out.writeEndDocument();
+        out.close();
+    }
+
+    /**
+     * Reads records of the workbook globals, i.e. all records up to the first <tt>EOF</tt> record
+     */
+    private static InternalWorkbook readGlobals(DirectoryNode directory) throws IOException {
+        final List<Record> records = new ArrayList<Record>();
+        try {
+            processRecords(directory, new AbortableHSSFListener() {
+                @Override
+                public short abortableProcessRecord(Record record) throws HSSFUserException {
+                    records.add(record);
+                    if (record.getSid() == EOFRecord.sid) {
+                        throw new StopProcessingException();
+                    }
+                    return 0;
+                }
+            });
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+        }
+        return InternalWorkbook.createWorkbook(records);
+    }
+
+    private static void processRecords(DirectoryNode directory, AbortableHSSFListener listener)
+            throws XMLStreamException, IOException {
+        HSSFRequest request = new HSSFRequest();
+        request.addListenerForAllRecords(listener);
+        try {
+            new HSSFEventFactory().abortableProcessWorkbookEvents(request, directory);
+        } catch (StopProcessingException e) {
+            // The rest of the workbook isn't needed
+        } catch (HSSFUserException e) {
+            if (e.getCause() instanceof XMLStreamException) {
+                throw (XMLStreamException) e.getCause();
+            }
+            throw new IOException("Can't read workbook records", e);
+        }
+    }
+
+    /**
+     * Thrown to stop processing records after the last needed one
+     */
+    private static final class StopProcessingException extends HSSFUserException {
+    }
+
+    /**
+     * Passes records of the converted sheet to {@link #processSheetRecord(Record)}, skipping records of the workbook
+     * globals, of other sheets and of charts embedded into the sheet.
+     */
+    private abstract class SheetListener extends AbortableHSSFListener {
+        private int depth;
+        private int substream = -1;
+
+        @Override
+        public short abortableProcessRecord(Record record) throws HSSFUserException {
+            if (record.getSid() == BOFRecord.sid) {
+                if (depth++ == 0) {
+                    substream++;
+                }
+                return 0;
+            }
+            // The first substream contains the workbook globals
+            boolean sheetRecord = substream == sheetIndex + 1;
+            try {
+                if (record.getSid() == EOFRecord.sid) {
+                    if (--depth == 0 && sheetRecord) {
+                        endSheet();
+                        throw new StopProcessingException();
+                    }
+                } else if (depth == 1 && sheetRecord) {
+                    processSheetRecord(record);
+                }
+            } catch (XMLStreamException e) {
+                throw new HSSFUserException(e);
+            }
+            return 0;
+        }
+
+        protected abstract void processSheetRecord(Record record) throws XMLStreamException, HSSFUserException;
+
+        protected abstract void endSheet() throws XMLStreamException, HSSFUserException;
+    }
+
+    /**
+     * Collects column widths, row sizes and merged regions of a sheet
+     */
+    private final class SheetLayout extends SheetListener {
+        // Pixels per 1/256 of a character width, see HSSFSheet#getColumnWidthInPixels
+        private static final float PX_DEFAULT = 32.00f;
+        private static final float PX_MODIFIED = 36.56f;
+
+        private final List<CellRangeAddress> mergedRegions = new ArrayList<CellRangeAddress>();
+        private final List<ColumnInfoRecord> columnInfos = new ArrayList<ColumnInfoRecord>();
+        private int defaultColumnWidth = DefaultColWidthRecord.DEFAULT_COLUMN_WIDTH;
+
+        private int firstRowNum = -1;
+        private int lastRowNum = -1;
+        private int firstCellRowNum = -1;
+        private int firstCellNum = -1;
+        private int lastCellNum = -1;
+
+        @Override
+        protected void processSheetRecord(Record record) {
+            switch (record.getSid()) {
+                case RowRecord.sid:
+                    addRow(((RowRecord) record).getRowNumber());
+                    break;
+                case MulBlankRecord.sid:
+                    MulBlankRecord blanks = (MulBlankRecord) record;
+                    addCell(blanks.getRow(), blanks.getFirstColumn());
+                    addCell(blanks.getRow(), blanks.getLastColumn());
+                    break;
+                case ColumnInfoRecord.sid:
+                    columnInfos.add((ColumnInfoRecord) record);
+                    break;
+                case DefaultColWidthRecord.sid:
+                    defaultColumnWidth = ((DefaultColWidthRecord) record).getColWidth();
+                    break;
+                case MergeCellsRecord.sid:
+                    MergeCellsRecord merged = (MergeCellsRecord) record;
+                    for (int i = 0; i < merged.getNumAreas(); i++) {
+                        mergedRegions.add(merged.getAreaAt(i));
+                    }
+                    break;
+                default:
+                    if (record instanceof CellValueRecordInterface) {
+                        CellValueRecordInterface cell = (CellValueRecordInterface) record;
+                        addCell(cell.getRow(), cell.getColumn());
+                    }
+            }
+        }
+
+        @Override
+        protected void endSheet() {
+        }
+
+        private void addRow(int rowNum) {
+            if (firstRowNum < 0 || rowNum < firstRowNum) {
+                firstRowNum = rowNum;
+            }
+            lastRowNum = Math.max(lastRowNum, rowNum);
+        }
+
+        private void addCell(int rowNum, int column) {
+            addRow(rowNum);
+            if (firstCellRowNum < 0 || rowNum < firstCellRowNum) {
+                firstCellRowNum = rowNum;
+                firstCellNum = column;
+                lastCellNum = column + 1;
+            } else if (rowNum == firstCellRowNum) {
+                firstCellNum = Math.min(firstCellNum, column);
+                lastCellNum = Math.max(lastCellNum, column + 1);
+            }
+        }
+
+        CellRangeAddress getUsedRange() {
+            if (firstRowNum < 0) {
+                throw new IllegalArgumentException("Worksheet must contain at least 1 row");
+            }
+            if (firstCellRowNum != firstRowNum) {
+                // The first row has no cells
+                return new CellRangeAddress(firstRowNum, lastRowNum, -1, -1);
+            }
+            return new CellRangeAddress(firstRowNum, lastRowNum, firstCellNum, lastCellNum);
+        }
+
+        /**
+         * @see org.apache.poi.hssf.usermodel.HSSFSheet#getColumnWidthInPixels(int)
+         */
+        float getColumnWidthInPixels(int columnIndex) {
+            int defaultWidth = defaultColumnWidth * 256;
+            int width = defaultWidth;
+            for (ColumnInfoRecord columnInfo : columnInfos) {
+                if (columnInfo.containsColumn(columnIndex)) {
+                    width = columnInfo.getColumnWidth();
+                    break;
+                }
+            }
+            return width / (width == defaultWidth ? PX_DEFAULT : PX_MODIFIED);
+        }
+    }
+
+    /**
+     * Writes rows of a range as their records are read. If created without <tt>HtmlWriter</tt>, only collects
+     * css rules of the cells.
+     */
+    private final class SheetWriter extends SheetListener {
+        private final CellRangeAddress range;
+        private final MergedRegionIndex mergedRegions;
+        private final StylingAlgorithm stylingAlgorithm;
+        private final HtmlWriter out;
+        private final HSSFCellStyle[] cellStyles;
+        private final NumberFormats numberFormats;
+        private final NumericCell numericCell = new NumericCell(globals.isUsing1904DateWindowing());
+        private final boolean cachedFormulaResults;
+        private final boolean sparse;
+
+        /**
+         * Heights of the rows which are read but not written yet. Row records are stored in blocks before cells of the
+         * rows, so there are only a few of them at a time.
+         */
+        private final Map<Integer, Short> rowHeights = new HashMap<Integer, Short>();
+        /**
+         * Shared, array and table formulas by their first cell
+         */
+        private final Map<CellReference, SharedValueRecordBase> sharedFormulas =
+                new HashMap<CellReference, SharedValueRecordBase>();
+
+        private int headerRows;
+        private short defaultRowHeight = DefaultRowHeightRecord.DEFAULT_ROW_HEIGHT;
+
+        private int currentRow = -1;
+        private int nextWrittenRow;
+        private boolean rowInRange;
+        private boolean headerRow;
+        private MergedRegionIndex.RowSpans rowSpans;
+        private int nextWrittenColumn;
+
+        private FormulaRecord formula;
+        private String formulaStringValue;
+
+        SheetWriter(CellRangeAddress range, MergedRegionIndex mergedRegions, StylingAlgorithm stylingAlgorithm,
+                    HtmlWriter out) {
+            this.range = range;
+            this.mergedRegions = mergedRegions;
+            this.stylingAlgorithm = stylingAlgorithm;
+            this.out = out;
+            this.cellStyles = new HSSFCellStyle[workbook.getNumCellStyles()];
+            this.numberFormats = out == null || customDataFormatter
+                    ? null : new NumberFormats(dataFormatter, workbook.getNumCellStyles());
+            this.cachedFormulaResults = hasOption(E2HOption.EVALUATE_FORMULAS)
+                    || hasOption(E2HOption.CACHED_FORMULA_RESULTS);
+            this.sparse = hasOption(E2HOption.SPARSE);
+            this.headerRows = hasOption(E2HOption.USE_TABLE_HEADERS) ? 1 : 0;
+            this.nextWrittenRow = range.getFirstRow();
+        }
+
+        @Override
+        protected void processSheetRecord(Record record) throws XMLStreamException, HSSFUserException {
+            if (formula != null) {
+                // A formula record may be followed by records of its shared formula and its string result
+                if (record instanceof SharedValueRecordBase) {
+                    SharedValueRecordBase shared = (SharedValueRecordBase) record;
+                    sharedFormulas.put(new CellReference(shared.getFirstRow(), shared.getFirstColumn()), shared);
+                    return;
+                }
+                if (record.getSid() == StringRecord.sid) {
+                    formulaStringValue = ((StringRecord) record).getString();
+                    return;
+                }
+                writeFormula();
+            }
+            switch (record.getSid()) {
+                case DefaultRowHeightRecord.sid:
+                    defaultRowHeight = ((DefaultRowHeightRecord) record).getRowHeight();
+                    break;
+                case RowRecord.sid:
+                    RowRecord row = (RowRecord) record;
+                    if (row.getRowNumber() >= nextWrittenRow && row.getRowNumber() <= range.getLastRow()) {
+                        rowHeights.put(row.getRowNumber(), row.getHeight());
+                    }
+                    break;
+                case FormulaRecord.sid:
+                    formula = (FormulaRecord) record;
+                    formulaStringValue = "";
+                    break;
+                case MulBlankRecord.sid:
+                    MulBlankRecord blanks = (MulBlankRecord) record;
+                    for (int i = 0; i < blanks.getNumColumns(); i++) {
+                        cell(blanks.getRow(), blanks.getFirstColumn() + i, blanks.getXFAt(i), CellType.BLANK, null);
+                    }
+                    break;
+                case NumberRecord.sid:
+                    writeCell((CellValueRecordInterface) record, CellType.NUMERIC);
+                    break;
+                case LabelSSTRecord.sid:
+                case LabelRecord.sid:
+                    writeCell((CellValueRecordInterface) record, CellType.STRING);
+                    break;
+                case BoolErrRecord.sid:
+                    writeCell((CellValueRecordInterface) record,
+                            ((BoolErrRecord) record).isBoolean() ? CellType.BOOLEAN : CellType.ERROR);
+                    break;
+                case BlankRecord.sid:
+                    writeCell((CellValueRecordInterface) record, CellType.BLANK);
+                    break;
+            }
+        }
+
+        @Override
+        protected void endSheet() throws XMLStreamException, HSSFUserException {
+            if (formula != null) {
+                writeFormula();
+            }
+            if (rowInRange) {
+                endRow();
+            }
+            writeRows(range.getLastRow() + 1);
+        }
+
+        private void writeFormula() throws XMLStreamException, HSSFUserException {
+            FormulaRecord record = formula;
+            formula = null;
+            writeCell(record, CellType.FORMULA);
+        }
+
+        private void writeCell(CellValueRecordInterface record, CellType cellType)
+                throws XMLStreamException, HSSFUserException {
+            cell(record.getRow(), record.getColumn(), record.getXFIndex(), cellType, record);
+        }
+
+        private void cell(int rowNum, int column, short xfIndex, CellType cellType, CellValueRecordInterface record)
+                throws XMLStreamException, HSSFUserException {
+            if (rowNum != currentRow) {
+                if (rowNum < currentRow) {
+                    // Cells must be ordered by rows
+                    return;
+                }
+                if (rowInRange) {
+                    endRow();
+                }
+                if (rowNum > range.getLastRow()) {
+                    writeRows(range.getLastRow() + 1);
+                    throw new StopProcessingException();
+                }
+                currentRow = rowNum;
+                if (rowNum >= range.getFirstRow()) {
+                    writeRows(rowNum);
+                    startRow(rowNum);
+                }
+            }
+            if (!rowInRange) {
+                return;
+            }
+            if (headerRow) {
+                if (rowSpans != null && rowSpans.isSpanned(column)) {
+                    return;
+                }
+                Excel2Html.CellSpans spans = rowSpans == null ? null : rowSpans.getCellSpans(column);
+                if (spans != null) {
+                    headerRows = Math.max(headerRows, spans.getRowspan());
+                }
+                writeCell("th", column, xfIndex, cellType, record, spans);
+                return;
+            }
+            if (column < nextWrittenColumn || column > range.getLastColumn()) {
+                return;
+            }
+            writeEmptyCells(column);
+            nextWrittenColumn = column + 1;
+            if (rowSpans != null && rowSpans.isSpanned(column)) {
+                return;
+            }
+            writeCell("td", column, xfIndex, cellType, record, rowSpans == null ? null : rowSpans.getCellSpans(column));
+        }
+
+        private void startRow(int rowNum) throws XMLStreamException {
+            Short height = rowHeights.remove(rowNum);
+            headerRow = rowNum < range.getFirstRow() + headerRows;
+            rowSpans = mergedRegions.getRowSpans(rowNum);
+            nextWrittenColumn = range.getFirstColumn();
+            rowInRange = true;
+            if (out != null) {
+                out.writeStartElement("tr");
+                if (hasOption(E2HOption.CELL_HEIGHT)) {
+                    out.writeAttribute("style", "height:" + getHeightInPoints(height) + "pt;");
+                }
+            }
+        }
+
+        /**
+         * @see org.apache.poi.hssf.usermodel.HSSFRow#getHeight()
+         */
+        private float getHeightInPoints(Short rowHeight) {
+            // A row created by its cells has default record height
+            short height = rowHeight != null ? rowHeight : DefaultRowHeightRecord.DEFAULT_ROW_HEIGHT;
+            if ((height & 0x8000) != 0) {
+                height = defaultRowHeight;
+            } else {
+                height &= 0x7FFF;
+            }
+            return (float) height / 20;
+        }
+
+        private void endRow() throws XMLStreamException {
+            if (!headerRow) {
+                writeEmptyCells(range.getLastColumn() + 1);
+            }
+            if (out != null) {
+                out.writeEndElement();
+            }
+            nextWrittenRow++;
+            rowInRange = false;
+        }
+
+        /**
+         * Writes rows without cells up to (excluding) a given row
+         */
+        private void writeRows(int toRow) throws XMLStreamException {
+            while (nextWrittenRow < toRow) {
+                if (rowHeights.containsKey(nextWrittenRow)) {
+                    // The row exists, but has no cells
+                    startRow(nextWrittenRow);
+                    endRow();
+                    continue;
+                }
+                if (nextWrittenRow < range.getFirstRow() + headerRows) {
+                    // A missing header row is written without cells, like the one of Excel2Html
+                    if (out != null) {
+                        out.writeStartElement("tr");
+                        out.writeAttribute("style", "height:15pt;");
+                        out.writeEndElement();
+                    }
+                    nextWrittenRow++;
+                    continue;
+                }
+                rowSpans = mergedRegions.getRowSpans(nextWrittenRow);
+                if (sparse && rowSpans == null) {
+                    int toEmptyRow = Math.min(toRow, mergedRegions.getNextCoveredRow(nextWrittenRow));
+                    // Rows of the stored row records are few
+                    for (Integer rowNum : rowHeights.keySet()) {
+                        if (rowNum > nextWrittenRow && rowNum < toEmptyRow) {
+                            toEmptyRow = rowNum;
+                        }
+                    }
+                    int emptyRows = toEmptyRow - nextWrittenRow;
+                    if (out != null) {
+                        SheetModel.writeEmptyRows(emptyRows, out);
+                    }
+                    nextWrittenRow += emptyRows;
+                    continue;
+                }
+                if (out != null) {
+                    // Write an empty row with default height
+                    out.writeStartElement("tr");
+                    out.writeAttribute("style", "height:15pt;");
+                }
+                if (rowSpans != null) {
+                    nextWrittenColumn = range.getFirstColumn();
+                    writeEmptyCells(range.getLastColumn() + 1);
+                }
+                if (out != null) {
+                    out.writeEndElement();
+                }
+                nextWrittenRow++;
+            }
+        }
+
+        /**
+         * Writes cells missing in the current row up to (excluding) a given column
+         */
+        private void writeEmptyCells(int toColumn) throws XMLStreamException {
+            if (nextWrittenColumn < toColumn) {
+                if (out != null) {
+                    SheetModel.writeEmptyCells(rowSpans, nextWrittenColumn, toColumn, sparse, out);
+                }
+                nextWrittenColumn = toColumn;
+            }
+        }
+
+        private void writeCell(String tag, int column, short xfIndex, CellType cellType,
+                               CellValueRecordInterface record, Excel2Html.CellSpans cellSpans)
+                throws XMLStreamException {
+            HSSFCellStyle cellStyle = getCellStyle(xfIndex);
+            int styleId = stylingAlgorithm.getStyleId(cellStyle, cellType, column, cellSpans);
+            if (out == null) {
+                return;
+            }
+            out.writeStartElement(tag);
+            writeCellSpans(cellSpans);
+            stylingAlgorithm.writeStyleAttribute(styleId, out);
+            out.writeCharacters(getCellValue(record, cellStyle));
+            out.writeEndElement();
+        }
+
+        private void writeCellSpans(Excel2Html.CellSpans cellSpans) throws XMLStreamException {
+            if (cellSpans != null) {
+                if (cellSpans.getColspan() > 1) {
+                    out.writeAttribute("colspan", cellSpans.getColspan());
+                }
+                if (cellSpans.getRowspan() > 1) {
+                    out.writeAttribute("rowspan", cellSpans.getRowspan());
+                }
+            }
+        }
+
+        /**
+         * @see DataFormatter#formatCellValue(org.apache.poi.ss.usermodel.Cell)
+         */
+        private String getCellValue(CellValueRecordInterface record, HSSFCellStyle cellStyle) {
+            if (record instanceof NumberRecord) {
+                return formatNumber(((NumberRecord) record).getValue(), cellStyle);
+            } else if (record instanceof LabelSSTRecord) {
+                return globals.getSSTString(((LabelSSTRecord) record).getSSTIndex()).getString();
+            } else if (record instanceof LabelRecord) {
+                return ((LabelRecord) record).getValue();
+            } else if (record instanceof BoolErrRecord) {
+                BoolErrRecord boolErr = (BoolErrRecord) record;
+                if (boolErr.isBoolean()) {
+                    return boolErr.getBooleanValue() ? "TRUE" : "FALSE";
+                }
+                return FormulaError.forInt(boolErr.getErrorValue()).getString();
+            } else if (record instanceof FormulaRecord) {
+                FormulaRecord formulaRecord = (FormulaRecord) record;
+                if (!cachedFormulaResults) {
+                    return HSSFFormulaParser.toFormulaString(workbook, getFormulaTokens(formulaRecord));
+                }
+                switch (CellType.forInt(formulaRecord.getCachedResultType())) {
+                    case NUMERIC:
+                        return formatNumber(formulaRecord.getValue(), cellStyle);
+                    case STRING:
+                        return formulaStringValue;
+                    case BOOLEAN:
+                        return formulaRecord.getCachedBooleanValue() ? "TRUE" : "FALSE";
+                    case ERROR:
+                        return FormulaError.forInt(formulaRecord.getCachedErrorValue()).getString();
+                }
+            }
+            return "";
+        }
+
+        /**
+         * Formats a number the same as {@link Excel2Html} formats a numeric cell. Unlike
+         * <tt>DataFormatter.formatRawCellContents</tt>, the number isn't rounded to 15 significant digits.
+         */
+        private String formatNumber(double value, HSSFCellStyle cellStyle) {
+            numericCell.set(value, cellStyle);
+            String formatted = numberFormats == null ? null : numberFormats.format(numericCell, cellStyle);
+            return formatted != null ? formatted : dataFormatter.formatCellValue(numericCell);
+        }
+
+        /**
+         * @see org.apache.poi.hssf.record.aggregates.FormulaRecordAggregate#getFormulaTokens()
+         */
+        private Ptg[] getFormulaTokens(FormulaRecord formulaRecord) {
+            Ptg[] tokens = formulaRecord.getParsedExpression();
+            if (tokens.length == 1 && (tokens[0] instanceof ExpPtg || tokens[0] instanceof TblPtg)) {
+                CellReference first;
+                if (tokens[0] instanceof ExpPtg) {
+                    first = new CellReference(((ExpPtg) tokens[0]).getRow(), ((ExpPtg) tokens[0]).getColumn());
+                } else {
+                    first = new CellReference(((TblPtg) tokens[0]).getRow(), ((TblPtg) tokens[0]).getColumn());
+                }
+                SharedValueRecordBase shared = sharedFormulas.get(first);
+                if (shared instanceof SharedFormulaRecord) {
+                    return ((SharedFormulaRecord) shared).getFormulaTokens(formulaRecord);
+                } else if (shared instanceof ArrayRecord) {
+                    return ((ArrayRecord) shared).getFormulaTokens();
+                }
+            }
+            return tokens;
+        }
+
+        private HSSFCellStyle getCellStyle(short xfIndex) {
+            int index = xfIndex >= 0 && xfIndex < cellStyles.length ? xfIndex : 0;
+            HSSFCellStyle cellStyle = cellStyles[index];
+            if (cellStyle == null) {
+                cellStyle = workbook.getCellStyleAt(index);
+                cellStyles[index] = cellStyle;
+            }
+            return cellStyle;
+        }
+    }
+}
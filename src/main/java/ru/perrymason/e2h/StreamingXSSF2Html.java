@@ -0,0 +1,773 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import java.io.*;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Converts a sheet of an XLSX package to an html table without loading the workbook into memory.
+ * <p>The sheet is read with a SAX parser in two passes: the first one collects column widths and merged regions, the
+ * second one writes html rows as soon as they are parsed. Only cell styles, shared strings, column widths and merged
+ * regions are kept in memory, so memory consumption doesn't depend on the number of cells. With
+ * {@link E2HOption#CSS_CLASSES} option there is one more pass collecting css rules.</p>
+ * <p>The result is the same as of {@link Excel2Html} converter with the same options, except for formulas: a workbook
+ * isn't available to evaluate them, so with {@link E2HOption#EVALUATE_FORMULAS} or
+ * {@link E2HOption#CACHED_FORMULA_RESULTS} option cached formula results stored in the file are written. Formulas
+ * without cached results are written as text, as well as all formulas without these options, except for cells sharing
+ * a formula of another cell, which have no formula text in the file.</p>
+ */
+public final class StreamingXSSF2Html {
+
+    private static final String NS_SPREADSHEETML = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+
+    private final PackagePart sheetPart;
+    private final StylesTable stylesTable;
+    private final ReadOnlySharedStringsTable sharedStrings;
+    /**
+     * Whether the workbook uses the 1904 date windowing
+     */
+    private final boolean date1904;
+    private final CellRangeAddress range;
+
+    private final EnumSet<E2HOption> options = EnumSet.noneOf(E2HOption.class);
+
+    private DataFormatter dataFormatter;
+    private boolean customDataFormatter;
+    private String cssClassPrefix = "s";
+
+    /**
+     * Creates a new converter for a given sheet of an XLSX package.
+     * @param xlsx an XLSX package, should be opened for reading
+     * @param sheetIndex index of the sheet (0-based)
+     * @throws IOException if an error occurs while reading the package
+     * @throws InvalidFormatException if the package isn't a valid XLSX workbook
+     */
+    public StreamingXSSF2Html(OPCPackage xlsx, int sheetIndex) throws IOException, InvalidFormatException {
+        this(xlsx, sheetIndex, null);
+    }
+
+    /**
+     * Creates a new converter for a given sheet of an XLSX package. This converter will create an html table only for
+     * cells specified in range.
+     * @param xlsx an XLSX package, should be opened for reading
+     * @param sheetIndex index of the sheet (0-based)
+     * @param range a <tt>CellRangeAddress</tt> which this class will convert to html table (i.e. "C3:G18")
+     * @throws IOException if an error occurs while reading the package
+     * @throws InvalidFormatException if the package isn't a valid XLSX workbook
+     */
+    public StreamingXSSF2Html(OPCPackage xlsx, int sheetIndex, CellRangeAddress range)
+            throws IOException, InvalidFormatException {
+        if (range != null) {
+            range.validate(SpreadsheetVersion.EXCEL2007);
+        }
+        this.range = range;
+        this.dataFormatter = new DataFormatter();
+        try {
+            XSSFReader reader = new XSSFReader(xlsx);
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+            PackagePart part = null;
+            for (int i = 0; i <= sheetIndex && sheets.hasNext(); i++) {
+                sheets.next().close();
+                part = i == sheetIndex ? sheets.getSheetPart() : null;
+            }
+            if (part == null) {
+                throw new IllegalArgumentException("Sheet index (" + sheetIndex + ") is out of range");
+            }
+            this.sheetPart = part;
+            this.stylesTable = reader.getStylesTable();
+            this.sharedStrings = new ReadOnlySharedStringsTable(xlsx);
+            this.date1904 = isDate1904(reader);
+        } catch (OpenXML4JException e) {
+            throw new InvalidFormatException("Can't read XLSX package", e);
+        } catch (SAXException e) {
+            throw new InvalidFormatException("Can't read shared strings", e);
+        }
+    }
+
+    /**
+     * Reads the <tt>date1904</tt> property of the workbook part
+     */
+    private static boolean isDate1904(XSSFReader reader) throws IOException, InvalidFormatException {
+        final boolean[] date1904 = new boolean[1];
+        InputStream workbook = reader.getWorkbookData();
+        try {
+            XMLReader xmlReader = SAXHelper.newXMLReader();
+            xmlReader.setContentHandler(new DefaultHandler() {
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes)
+                        throws SAXException {
+                    if (!isSpreadsheetElement(uri)) {
+                        return;
+                    }
+                    if ("workbookPr".equals(localName)) {
+                        String value = attributes.getValue("date1904");
+                        date1904[0] = "1".equals(value) || "true".equals(value);
+                        throw new StopParsingException();
+                    } else if ("sheets".equals(localName)) {
+                        throw new StopParsingException();
+                    }
+                }
+            });
+            xmlReader.parse(new InputSource(workbook));
+        } catch (StopParsingException e) {
+            // The property precedes the sheets
+        } catch (SAXException e) {
+            throw new InvalidFormatException("Can't read workbook part", e);
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        } finally {
+            workbook.close();
+        }
+        return date1904[0];
+    }
+
+    /**
+     * Returns names of all sheets of an XLSX package in the order they are stored in the workbook.
+     * @param xlsx an XLSX package, should be opened for reading
+     * @throws IOException if an error occurs while reading the package
+     * @throws InvalidFormatException if the package isn't a valid XLSX workbook
+     */
+    public static List<String> getSheetNames(OPCPackage xlsx) throws IOException, InvalidFormatException {
+        List<String> names = new ArrayList<String>();
+        try {
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) new XSSFReader(xlsx).getSheetsData();
+            while (sheets.hasNext()) {
+                sheets.next().close();
+                names.add(sheets.getSheetName());
+            }
+        } catch (OpenXML4JException e) {
+            throw new InvalidFormatException("Can't read XLSX package", e);
+        }
+        return names;
+    }
+
+    public boolean addOption(E2HOption option) {
+        return this.options.add(option);
+    }
+
+    public boolean addOption(EnumSet<E2HOption> options) {
+        return this.options.addAll(options);
+    }
+
+    public boolean removeOption(E2HOption option) {
+        return this.options.remove(option);
+    }
+
+    public boolean removeOption(EnumSet<E2HOption> options) {
+        return this.options.removeAll(options);
+    }
+
+    public boolean hasOption(E2HOption option) {
+        return this.options.contains(option);
+    }
+
+    public boolean hasOption(EnumSet<E2HOption> options) {
+        return this.options.containsAll(options);
+    }
+
+    public EnumSet<E2HOption> getOptions() {
+        return EnumSet.copyOf(this.options);
+    }
+
+    public void replaceOptions(EnumSet<E2HOption> options) {
+        this.options.clear();
+        this.options.addAll(options);
+    }
+
+    public DataFormatter getDataFormatter() {
+        return dataFormatter;
+    }
+
+    public void setDataFormatter(DataFormatter dataFormatter) {
+        this.dataFormatter = dataFormatter;
+        this.customDataFormatter = true;
+    }
+
+    public String getCssClassPrefix() {
+        return cssClassPrefix;
+    }
+
+    /**
+     * Sets a prefix for css class names generated with {@link E2HOption#CSS_CLASSES} option.
+     * @see Excel2Html#setCssClassPrefix(String)
+     */
+    public void setCssClassPrefix(String cssClassPrefix) {
+        if (cssClassPrefix == null || cssClassPrefix.length() == 0) {
+            throw new IllegalArgumentException("Css class prefix must not be empty");
+        }
+        this.cssClassPrefix = cssClassPrefix;
+    }
+
+    /**
+     * Writes an html table to the specified <tt>OutputStream</tt>
+     * <p>Note that this method uses <tt>UTF-8</tt> encoding for characters</p>
+     * @param outputStream
+     * @throws XMLStreamException
+     * @throws IOException if an error occurs while reading the sheet
+     */
+    public void writeHtml(OutputStream outputStream) throws XMLStreamException, IOException {
+        writeHtml(new HtmlWriter(outputStream));
+    }
+
+    /**
+     * Writes an html table using the specified <tt>Writer</tt>
+     * @param writer
+     * @throws XMLStreamException
+     * @throws IOException if an error occurs while reading the sheet
+     */
+    public void writeHtml(Writer writer) throws XMLStreamException, IOException {
+        writeHtml(new HtmlWriter(writer));
+    }
+
+    /**
+     * Writes an html table to the specified channel, i.e. a <tt>FileChannel</tt>, in <tt>UTF-8</tt> encoding.
+     * Characters are encoded directly into a pooled direct buffer, and may be compressed to the gzip format on the fly,
+     * i.e. for a response with <tt>Content-Encoding: gzip</tt>. The channel isn't closed.
+     * <p>A stream may be wrapped with <tt>Channels.newChannel(OutputStream)</tt> to get compressed html.</p>
+     * @param channel
+     * @param gzip whether to compress the html to the gzip format
+     * @throws XMLStreamException
+     * @throws IOException if an error occurs while reading the sheet
+     */
+    public void writeHtml(WritableByteChannel channel, boolean gzip) throws XMLStreamException, IOException {
+        HtmlWriter out = new HtmlWriter(channel, gzip);
+        try {
+            writeHtml(out);
+        } finally {
+            out.release();
+        }
+    }
+
+    private void writeHtml(HtmlWriter out) throws XMLStreamException, IOException {
+        final SheetLayout layout = new SheetLayout();
+        parseSheet(layout);
+        CellRangeAddress tableRange = range != null ? range : layout.getUsedRange();
+
+        StylingAlgorithm stylingAlgorithm = new XSSFStylingAlgorithm() {
+            @Override
+            protected float getColumnWidthInPixels(int columnIndex) {
+                return layout.getColumnWidthInPixels(columnIndex);
+            }
+        };
+        stylingAlgorithm.build(new ConversionPlan(options, cssClassPrefix), stylesTable.getNumCellStyles());
+        MergedRegionIndex mergedRegions = new MergedRegionIndex(layout.mergedRegions, tableRange);
+
+        if (hasOption(E2HOption.CSS_CLASSES)) {
+            parseSheet(new SheetWriter(tableRange, mergedRegions, stylingAlgorithm, null));
+            stylingAlgorithm.writeStyleSheet(out);
+        }
+        SheetModel.writeTableStart(hasOption(E2HOption.COLGROUP)
+                ? stylingAlgorithm.getColumnWidthsInPixels(tableRange) : null, out);
+        parseSheet(new SheetWriter(tableRange, mergedRegions, stylingAlgorithm, out));
+        out.writeEndElement();
+        out.writeEndDocument();
+        out.close();
+    }
+
+    private void parseSheet(DefaultHandler handler) throws XMLStreamException, IOException {
+        InputStream sheet = sheetPart.getInputStream();
+        try {
+            XMLReader reader = SAXHelper.newXMLReader();
+            reader.setContentHandler(handler);
+            reader.parse(new InputSource(sheet));
+        } catch (StopParsingException e) {
+            // The rest of the sheet is out of the range
+        } catch (SAXException e) {
+            if (e.getException() instanceof XMLStreamException) {
+                throw (XMLStreamException) e.getException();
+            }
+            throw new IOException("Can't parse sheet " + sheetPart.getPartName(), e);
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        } finally {
+            sheet.close();
+        }
+    }
+
+    private static int getColumnIndex(String cellReference) {
+        int column = 0;
+        for (int i = 0; i < cellReference.length(); i++) {
+            char c = cellReference.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                break;
+            }
+            column = column * 26 + (c - 'A' + 1);
+        }
+        return column - 1;
+    }
+
+    private static boolean isSpreadsheetElement(String uri) {
+        return uri == null || uri.length() == 0 || NS_SPREADSHEETML.equals(uri);
+    }
+
+    /**
+     * Thrown to stop parsing after the last row of the range
+     */
+    private static final class StopParsingException extends SAXException {
+    }
+
+    /**
+     * Collects column widths, row sizes and merged regions of a sheet
+     */
+    private static final class SheetLayout extends DefaultHandler {
+        private final List<CellRangeAddress> mergedRegions = new ArrayList<CellRangeAddress>();
+        private final List<long[]> columnRanges = new ArrayList<long[]>();
+        private final List<Double> columnWidths = new ArrayList<Double>();
+        private double defaultColumnWidth = 8;
+
+        private int nextRowNum;
+        private int firstRowNum = -1;
+        private int lastRowNum = -1;
+        private int firstCellNum = -1;
+        private int lastCellNum = -1;
+        private int nextColumn;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (!isSpreadsheetElement(uri)) {
+                return;
+            }
+            if ("row".equals(localName)) {
+                String r = attributes.getValue("r");
+                int rowNum = r != null ? Integer.parseInt(r) - 1 : nextRowNum;
+                if (firstRowNum < 0) {
+                    firstRowNum = rowNum;
+                }
+                lastRowNum = rowNum;
+                nextRowNum = rowNum + 1;
+                nextColumn = 0;
+            } else if ("c".equals(localName)) {
+                String r = attributes.getValue("r");
+                int column = r != null ? getColumnIndex(r) : nextColumn;
+                nextColumn = column + 1;
+                if (lastRowNum == firstRowNum) {
+                    if (firstCellNum < 0) {
+                        firstCellNum = column;
+                    }
+                    lastCellNum = column + 1;
+                }
+            } else if ("col".equals(localName)) {
+                String width = attributes.getValue("width");
+                if (width != null) {
+                    columnRanges.add(new long[]{Long.parseLong(attributes.getValue("min")),
+                            Long.parseLong(attributes.getValue("max"))});
+                    columnWidths.add(Double.valueOf(width));
+                }
+            } else if ("sheetFormatPr".equals(localName)) {
+                String baseColWidth = attributes.getValue("baseColWidth");
+                if (baseColWidth != null) {
+                    defaultColumnWidth = (int) Double.parseDouble(baseColWidth);
+                }
+            } else if ("mergeCell".equals(localName)) {
+                mergedRegions.add(CellRangeAddress.valueOf(attributes.getValue("ref")));
+            }
+        }
+
+        CellRangeAddress getUsedRange() {
+            if (firstRowNum < 0) {
+                throw new IllegalArgumentException("Worksheet must contain at least 1 row");
+            }
+            return new CellRangeAddress(firstRowNum, lastRowNum, firstCellNum, lastCellNum);
+        }
+
+        /**
+         * @see org.apache.poi.xssf.usermodel.XSSFSheet#getColumnWidthInPixels(int)
+         */
+        float getColumnWidthInPixels(int columnIndex) {
+            double width = defaultColumnWidth;
+            for (int i = 0; i < columnRanges.size(); i++) {
+                long[] columns = columnRanges.get(i);
+                if (columns[0] <= columnIndex + 1 && columns[1] >= columnIndex + 1) {
+                    width = columnWidths.get(i);
+                    break;
+                }
+            }
+            float widthIn256 = (int) (width * 256);
+            return (float) (widthIn256 / 256.0 * XSSFWorkbook.DEFAULT_CHARACTER_WIDTH);
+        }
+    }
+
+    /**
+     * Writes rows of a range as they are parsed. If created without <tt>HtmlWriter</tt>, only collects css
+     * rules of the cells.
+     */
+    private final class SheetWriter extends DefaultHandler implements XSSFSheetXMLHandler.SheetContentsHandler {
+        private final CellRangeAddress range;
+        private final MergedRegionIndex mergedRegions;
+        private final StylingAlgorithm stylingAlgorithm;
+        private final HtmlWriter out;
+        private final XSSFSheetXMLHandler values;
+        /**
+         * Whether formulas are written as text instead of their results
+         */
+        private final boolean formulasAsText;
+        private final XSSFCellStyle[] cellStyles;
+        private final NumberFormats numberFormats;
+        private final NumericCell numericCell = new NumericCell(date1904);
+        private final boolean sparse;
+
+        private int headerRows;
+        private float defaultRowHeight;
+
+        private int nextRowNum;
+        private int nextWrittenRow;
+        private boolean rowInRange;
+        private boolean headerRow;
+        private float rowHeight;
+        private MergedRegionIndex.RowSpans rowSpans;
+        private int nextColumn;
+        private int nextWrittenColumn;
+
+        private int cellColumn;
+        private int cellStyleIndex;
+        private CellType cellType;
+        /**
+         * The <tt>t</tt> attribute of the cell, kept apart from its type, which is {@code FORMULA} for formula cells
+         * of any result
+         */
+        private String cellDataType;
+        private String cellValue;
+        private boolean cellValueSet;
+        /**
+         * The text of the <tt>v</tt> element, which is formatted here if the value is a number
+         */
+        private final StringBuilder rawValue = new StringBuilder();
+        private boolean rawValueOpen;
+        private final StringBuilder formula = new StringBuilder();
+        private boolean formulaOpen;
+
+        SheetWriter(CellRangeAddress range, MergedRegionIndex mergedRegions, StylingAlgorithm stylingAlgorithm,
+                    HtmlWriter out) {
+            this.range = range;
+            this.mergedRegions = mergedRegions;
+            this.stylingAlgorithm = stylingAlgorithm;
+            this.out = out;
+            this.formulasAsText = !hasOption(E2HOption.EVALUATE_FORMULAS)
+                    && !hasOption(E2HOption.CACHED_FORMULA_RESULTS);
+            this.values = out == null ? null : new XSSFSheetXMLHandler(stylesTable, null, sharedStrings, this,
+                    dataFormatter, formulasAsText);
+            this.cellStyles = new XSSFCellStyle[stylesTable.getNumCellStyles()];
+            this.numberFormats = out == null || customDataFormatter
+                    ? null : new NumberFormats(dataFormatter, stylesTable.getNumCellStyles());
+            this.sparse = hasOption(E2HOption.SPARSE);
+            this.headerRows = hasOption(E2HOption.USE_TABLE_HEADERS) ? 1 : 0;
+            this.nextWrittenRow = range.getFirstRow();
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException {
+            if (values != null) {
+                values.startElement(uri, localName, qName, attributes);
+            }
+            if (!isSpreadsheetElement(uri)) {
+                return;
+            }
+            try {
+                if ("row".equals(localName)) {
+                    String r = attributes.getValue("r");
+                    int rowNum = r != null ? Integer.parseInt(r) - 1 : nextRowNum;
+                    nextRowNum = rowNum + 1;
+                    String ht = attributes.getValue("ht");
+                    startRow(rowNum, ht != null ? (float) Double.parseDouble(ht) : defaultRowHeight);
+                } else if ("c".equals(localName)) {
+                    String r = attributes.getValue("r");
+                    cellColumn = r != null ? getColumnIndex(r) : nextColumn;
+                    nextColumn = cellColumn + 1;
+                    String s = attributes.getValue("s");
+                    cellStyleIndex = s != null ? Integer.parseInt(s) : 0;
+                    String t = attributes.getValue("t");
+                    cellDataType = t;
+                    if ("s".equals(t) || "inlineStr".equals(t)) {
+                        cellType = CellType.STRING;
+                    } else if ("b".equals(t)) {
+                        cellType = CellType.BOOLEAN;
+                    } else if ("e".equals(t)) {
+                        cellType = CellType.ERROR;
+                    } else if ("str".equals(t)) {
+                        cellType = CellType.FORMULA;
+                    } else {
+                        cellType = CellType.BLANK;
+                    }
+                    cellValue = "";
+                    cellValueSet = false;
+                    formula.setLength(0);
+                    rawValue.setLength(0);
+                } else if ("v".equals(localName) || "is".equals(localName)) {
+                    if (cellType == CellType.BLANK) {
+                        cellType = CellType.NUMERIC;
+                    }
+                    rawValueOpen = "v".equals(localName);
+                } else if ("f".equals(localName)) {
+                    cellType = CellType.FORMULA;
+                    formulaOpen = true;
+                } else if ("sheetFormatPr".equals(localName)) {
+                    String height = attributes.getValue("defaultRowHeight");
+                    if (height != null) {
+                        defaultRowHeight = (float) Double.parseDouble(height);
+                    }
+                }
+            } catch (XMLStreamException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (values != null) {
+                values.endElement(uri, localName, qName);
+            }
+            if (!isSpreadsheetElement(uri)) {
+                return;
+            }
+            try {
+                if ("c".equals(localName)) {
+                    if (rowInRange) {
+                        if (cellType == CellType.FORMULA && formula.length() > 0
+                                && (formulasAsText || !cellValueSet)) {
+                            // A formula is written as text, like the one without a cached result by Excel2Html
+                            cellValue = formula.toString();
+                        }
+                        writeCell();
+                    }
+                } else if ("f".equals(localName)) {
+                    formulaOpen = false;
+                } else if ("v".equals(localName)) {
+                    rawValueOpen = false;
+                } else if ("row".equals(localName)) {
+                    if (rowInRange) {
+                        endRow();
+                    }
+                } else if ("sheetData".equals(localName)) {
+                    writeEmptyRows(range.getLastRow() + 1);
+                    throw new StopParsingException();
+                }
+            } catch (XMLStreamException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (values != null) {
+                values.characters(ch, start, length);
+                if (formulaOpen) {
+                    formula.append(ch, start, length);
+                } else if (rawValueOpen) {
+                    rawValue.append(ch, start, length);
+                }
+            }
+        }
+
+        private void startRow(int rowNum, float height) throws XMLStreamException, StopParsingException {
+            if (rowNum > range.getLastRow()) {
+                writeEmptyRows(range.getLastRow() + 1);
+                throw new StopParsingException();
+            }
+            rowInRange = rowNum >= range.getFirstRow();
+            if (!rowInRange) {
+                return;
+            }
+            writeEmptyRows(rowNum);
+            headerRow = rowNum < range.getFirstRow() + headerRows;
+            rowHeight = height;
+            rowSpans = mergedRegions.getRowSpans(rowNum);
+            nextColumn = 0;
+            nextWrittenColumn = range.getFirstColumn();
+            if (out != null) {
+                out.writeStartElement("tr");
+                if (hasOption(E2HOption.CELL_HEIGHT)) {
+                    out.writeAttribute("style", "height:" + rowHeight + "pt;");
+                }
+            }
+        }
+
+        private void endRow() throws XMLStreamException {
+            if (!headerRow) {
+                writeEmptyCells(range.getLastColumn() + 1);
+            }
+            if (out != null) {
+                out.writeEndElement();
+            }
+            nextWrittenRow++;
+            rowInRange = false;
+        }
+
+        /**
+         * Writes rows missing in the sheet up to (excluding) a given row
+         */
+        private void writeEmptyRows(int toRow) throws XMLStreamException {
+            for (; nextWrittenRow < toRow; nextWrittenRow++) {
+                if (nextWrittenRow < range.getFirstRow() + headerRows) {
+                    // A missing header row is written without cells, like the one of Excel2Html
+                    if (out != null) {
+                        out.writeStartElement("tr");
+                        out.writeAttribute("style", "height:15pt;");
+                        out.writeEndElement();
+                    }
+                    continue;
+                }
+                rowSpans = mergedRegions.getRowSpans(nextWrittenRow);
+                if (sparse && rowSpans == null) {
+                    int emptyRows = Math.min(toRow, mergedRegions.getNextCoveredRow(nextWrittenRow)) - nextWrittenRow;
+                    if (out != null) {
+                        SheetModel.writeEmptyRows(emptyRows, out);
+                    }
+                    nextWrittenRow += emptyRows - 1;
+                    continue;
+                }
+                if (out != null) {
+                    // Write an empty row with default height
+                    out.writeStartElement("tr");
+                    out.writeAttribute("style", "height:15pt;");
+                }
+                if (rowSpans != null) {
+                    nextWrittenColumn = range.getFirstColumn();
+                    writeEmptyCells(range.getLastColumn() + 1);
+                }
+                if (out != null) {
+                    out.writeEndElement();
+                }
+            }
+        }
+
+        /**
+         * Writes cells missing in the current row up to (excluding) a given column
+         */
+        private void writeEmptyCells(int toColumn) throws XMLStreamException {
+            if (nextWrittenColumn < toColumn) {
+                if (out != null) {
+                    SheetModel.writeEmptyCells(rowSpans, nextWrittenColumn, toColumn, sparse, out);
+                }
+                nextWrittenColumn = toColumn;
+            }
+        }
+
+        private void writeCell() throws XMLStreamException {
+            if (headerRow) {
+                if (rowSpans != null && rowSpans.isSpanned(cellColumn)) {
+                    return;
+                }
+                Excel2Html.CellSpans spans = rowSpans == null ? null : rowSpans.getCellSpans(cellColumn);
+                if (spans != null) {
+                    headerRows = Math.max(headerRows, spans.getRowspan());
+                }
+                writeCell("th", spans);
+                return;
+            }
+            if (cellColumn < nextWrittenColumn || cellColumn > range.getLastColumn()) {
+                return;
+            }
+            writeEmptyCells(cellColumn);
+            nextWrittenColumn = cellColumn + 1;
+            if (rowSpans != null && rowSpans.isSpanned(cellColumn)) {
+                return;
+            }
+            writeCell("td", rowSpans == null ? null : rowSpans.getCellSpans(cellColumn));
+        }
+
+        private void writeCell(String tag, Excel2Html.CellSpans cellSpans) throws XMLStreamException {
+            XSSFCellStyle cellStyle = getCellStyle();
+            int styleId = stylingAlgorithm.getStyleId(cellStyle, cellType, cellColumn, cellSpans);
+            if (out == null) {
+                return;
+            }
+            out.writeStartElement(tag);
+            writeCellSpans(cellSpans);
+            stylingAlgorithm.writeStyleAttribute(styleId, out);
+            out.writeCharacters(cellValue);
+            out.writeEndElement();
+        }
+
+        private void writeCellSpans(Excel2Html.CellSpans cellSpans) throws XMLStreamException {
+            if (cellSpans != null) {
+                if (cellSpans.getColspan() > 1) {
+                    out.writeAttribute("colspan", cellSpans.getColspan());
+                }
+                if (cellSpans.getRowspan() > 1) {
+                    out.writeAttribute("rowspan", cellSpans.getRowspan());
+                }
+            }
+        }
+
+        private XSSFCellStyle getCellStyle() {
+            int index = cellStyleIndex < cellStyles.length ? cellStyleIndex : 0;
+            XSSFCellStyle cellStyle = cellStyles[index];
+            if (cellStyle == null) {
+                cellStyle = stylesTable.getStyleAt(index);
+                cellStyles[index] = cellStyle;
+            }
+            return cellStyle;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            cellValueSet = true;
+            if (formattedValue == null) {
+                cellValue = "";
+            } else if ("e".equals(cellDataType) && formattedValue.startsWith("ERROR:")) {
+                cellValue = formattedValue.substring("ERROR:".length());
+            } else if (isNumber()) {
+                cellValue = formatNumber(Double.parseDouble(rawValue.toString()));
+            } else {
+                cellValue = formattedValue;
+            }
+        }
+
+        /**
+         * @return whether the value of the current cell is a number, which isn't replaced with the formula text
+         */
+        private boolean isNumber() {
+            return (cellDataType == null || "n".equals(cellDataType)) && rawValue.length() > 0
+                    && !(cellType == CellType.FORMULA && formulasAsText);
+        }
+
+        /**
+         * Formats a number the same as {@link Excel2Html} formats a numeric cell
+         */
+        private String formatNumber(double value) {
+            XSSFCellStyle cellStyle = getCellStyle();
+            numericCell.set(value, cellStyle);
+            String formatted = numberFormats == null ? null : numberFormats.format(numericCell, cellStyle);
+            return formatted != null ? formatted : dataFormatter.formatCellValue(numericCell);
+        }
+
+        @Override
+        public void headerFooter(String text, boolean isHeader, String tagName) {
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.usermodel.CellType;
+
+/**
+ * Identifies a distinct result of the styling algorithm: the index of a cell style plus those cell-dependent values
+ * which can change the resulting css (cell type, column index and colspan).
+ */
+final class StyleKey {
+    private final short styleIndex;
+    private final CellType cellType;
+    private final int column;
+    private final int colspan;
+
+    StyleKey(short styleIndex, CellType cellType, int column, int colspan) {
+        this.styleIndex = styleIndex;
+        this.cellType = cellType;
+        this.column = column;
+        this.colspan = colspan;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StyleKey)) {
+            return false;
+        }
+        StyleKey other = (StyleKey) o;
+        return styleIndex == other.styleIndex && cellType == other.cellType
+                && column == other.column && colspan == other.colspan;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = styleIndex;
+        result = 31 * result + (cellType != null ? cellType.hashCode() : 0);
+        result = 31 * result + column;
+        result = 31 * result + colspan;
+        return result;
+    }
+}
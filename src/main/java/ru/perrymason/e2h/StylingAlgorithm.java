@@ -0,0 +1,285 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Color;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
+import ru.perrymason.e2h.styling.*;
+import ru.perrymason.e2h.styling.font.*;
+
+import javax.xml.stream.XMLStreamException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of {@link StylingAction}s built from a {@link ConversionPlan}, which converts cell styles of a workbook to
+ * css.
+ * <p>Distinct results of the algorithm are numbered, so a cell is described by an id of its css rule. The ids are
+ * cached: if every action is style-invariant, by cell style index, otherwise by {@link StyleKey}, which includes the
+ * cell type only for actions depending on it and the column and the colspan only for actions depending on them. With
+ * {@link E2HOption#CSS_CLASSES} option the rules are written as a style sheet with one class per id.</p>
+ * <p>Implementations provide format-specific actions such as getting colors, fonts, rotation, etc.</p>
+ */
+abstract class StylingAlgorithm {
+
+    private static final int UNKNOWN = -2;
+
+    private final List<StylingAction> actions = new ArrayList<StylingAction>();
+    private boolean styleInvariant;
+    /**
+     * Whether the cell type, and the column with the colspan, are parts of {@link StyleKey}s
+     */
+    private boolean cellTypeKey;
+    private boolean columnKey;
+    private int[] idsByIndex;
+    private final Map<StyleKey, Integer> ids = new HashMap<StyleKey, Integer>();
+
+    private boolean useCssClasses;
+    private String cssClassPrefix;
+    private final Map<String, Integer> idsByRule = new HashMap<String, Integer>();
+    private final List<String> rules = new ArrayList<String>();
+    private final List<String> cssClasses = new ArrayList<String>();
+
+    private int lookups;
+    private int misses;
+
+    /**
+     * Builds the algorithm for a compiled plan, creating actions bound to the workbook. Must be called once before use.
+     * @param plan a plan of the conversion
+     * @param numCellStyles number of cell styles in the workbook
+     */
+    void build(ConversionPlan plan, int numCellStyles) {
+        build(plan, numCellStyles, null);
+    }
+
+    /**
+     * Builds the algorithm for a compiled plan, creating actions bound to the workbook. Must be called once before use.
+     * @param plan a plan of the conversion
+     * @param numCellStyles number of cell styles in the workbook
+     * @param fontCssCache a cache of css properties of fonts shared by converters of the workbook, or {@code null}
+     */
+    void build(ConversionPlan plan, int numCellStyles, FontCssCache fontCssCache) {
+        boolean evaluateFormulas = plan.hasOption(E2HOption.EVALUATE_FORMULAS)
+                || plan.hasOption(E2HOption.CACHED_FORMULA_RESULTS);
+        for (ConversionPlan.Step step : plan.getSteps()) {
+            StylingAction action = createAction(step, evaluateFormulas);
+            if (fontCssCache != null && action instanceof FontStylingAction) {
+                ((FontStylingAction) action).setFontCssCache(fontCssCache);
+            }
+            actions.add(action);
+            if (action.isStyleInvariant()) {
+                continue;
+            }
+            // Horizontal alignment depends on the cell type only, width on the column and the colspan only
+            if (step != ConversionPlan.Step.WIDTH) {
+                cellTypeKey = true;
+            }
+            if (step != ConversionPlan.Step.HORIZONTAL_ALIGNMENT) {
+                columnKey = true;
+            }
+        }
+        styleInvariant = !cellTypeKey && !columnKey;
+        idsByIndex = new int[numCellStyles];
+        Arrays.fill(idsByIndex, UNKNOWN);
+        useCssClasses = plan.hasOption(E2HOption.CSS_CLASSES);
+        this.cssClassPrefix = plan.getCssClassPrefix();
+    }
+
+    private StylingAction createAction(ConversionPlan.Step step, final boolean evaluateFormulas) {
+        switch (step) {
+            case HORIZONTAL_ALIGNMENT:
+                return new HorizontalAlignmentStylingAction() {
+                    @Override
+                    protected boolean isEvaluateFormulas() {
+                        return evaluateFormulas;
+                    }
+                };
+            case VERTICAL_ALIGNMENT:
+                return new VerticalAlignmentStylingAction();
+            case BORDER:
+                return getBorderStylingAction();
+            case BORDER_WITHOUT_COLOR:
+                return new BorderStylingAction() {
+                    @Override
+                    protected String getBorderColor(XSSFCellBorder.BorderSide border, CellStyle cellStyle) {
+                        return "";
+                    }
+                };
+            case BORDER_COLOR_ONLY:
+                return getBorderColorOnlyStylingAction();
+            case WIDTH:
+                return new WidthStylingAction() {
+                    @Override
+                    protected float getColumnWidthInPixels(int columnIndex) {
+                        return StylingAlgorithm.this.getColumnWidthInPixels(columnIndex);
+                    }
+                };
+            case BACKGROUND_COLOR:
+                return getBackgroundColorStylingAction();
+            case FULL_BUNDLED_FONT:
+                return new FullBundledFontStylingAction(getFontResolver());
+            case BUNDLED_FONT:
+                return new BundledFontStylingAction(getFontResolver());
+            case FONT_FAMILY:
+                return new FontFamilyStylingAction(getFontResolver());
+            case FONT_SIZE:
+                return new FontSizeStylingAction(getFontResolver());
+            case FONT_STYLE:
+                return new FontStyleStylingAction(getFontResolver());
+            case FONT_COLOR:
+                return getFontColorStylingAction();
+            case ROTATION:
+                return getRotationStylingAction();
+            default:
+                throw new IllegalStateException("Unknown styling step " + step);
+        }
+    }
+
+    /**
+     * @return {@code true} if the result of the algorithm depends only on a cell style
+     */
+    boolean isStyleInvariant() {
+        return styleInvariant;
+    }
+
+    private StyleKey getStyleKey(CellStyle cellStyle, CellType cellType, int columnIndex,
+                                 Excel2Html.CellSpans cellSpans) {
+        if (!columnKey) {
+            return new StyleKey(cellStyle.getIndex(), cellTypeKey ? cellType : null, -1, 0);
+        }
+        return new StyleKey(cellStyle.getIndex(), cellTypeKey ? cellType : null, columnIndex,
+                cellSpans == null ? 1 : cellSpans.colspan);
+    }
+
+    /**
+     * Returns an id of the css rule of a cell, running the styling actions only for cells which differ from all of the
+     * previous ones by {@link StyleKey}. Equal rules have the same id, and ids are assigned in the order the rules are
+     * met, starting with 0.
+     * @return an id of the rule or {@code -1} if the cell has no css properties
+     */
+    int getStyleId(CellStyle cellStyle, CellType cellType, int columnIndex, Excel2Html.CellSpans cellSpans) {
+        lookups++;
+        int styleIndex = cellStyle.getIndex() & 0xFFFF;
+        if (styleInvariant && styleIndex < idsByIndex.length) {
+            int id = idsByIndex[styleIndex];
+            if (id == UNKNOWN) {
+                misses++;
+                id = register(perform(cellStyle, cellType, columnIndex, cellSpans));
+                idsByIndex[styleIndex] = id;
+            }
+            return id;
+        }
+        StyleKey key = getStyleKey(cellStyle, cellType, columnIndex, cellSpans);
+        Integer id = ids.get(key);
+        if (id == null) {
+            misses++;
+            id = register(perform(cellStyle, cellType, columnIndex, cellSpans));
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    private String perform(CellStyle cellStyle, CellType cellType, int columnIndex, Excel2Html.CellSpans cellSpans) {
+        StringBuilder htmlStyle = new StringBuilder();
+        for (StylingAction action : actions) {
+            action.perform(cellStyle, cellType, columnIndex, cellSpans, htmlStyle);
+        }
+        return htmlStyle.toString();
+    }
+
+    private int register(String rule) {
+        if (rule.length() == 0) {
+            return -1;
+        }
+        Integer id = idsByRule.get(rule);
+        if (id == null) {
+            id = rules.size();
+            idsByRule.put(rule, id);
+            rules.add(rule);
+            cssClasses.add(cssClassPrefix + id);
+        }
+        return id;
+    }
+
+    /**
+     * @return number of calls of {@link #getStyleId}
+     */
+    int getLookups() {
+        return lookups;
+    }
+
+    /**
+     * @return number of calls of {@link #getStyleId} which ran the styling actions
+     */
+    int getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return css rules met so far by their ids
+     */
+    String[] getRules() {
+        return rules.toArray(new String[rules.size()]);
+    }
+
+    /**
+     * Writes css rules met so far as a {@code <style>} element, with {@code cssClassPrefix + id} class names
+     */
+    void writeStyleSheet(HtmlWriter out) throws XMLStreamException {
+        if (!rules.isEmpty()) {
+            StringBuilder styleSheet = new StringBuilder();
+            for (int id = 0; id < rules.size(); id++) {
+                styleSheet.append('.').append(cssClasses.get(id)).append('{').append(rules.get(id)).append('}');
+            }
+            out.writeStartElement("style");
+            out.writeCharacters(styleSheet.toString());
+            out.writeEndElement();
+        }
+    }
+
+    /**
+     * Writes either a {@code class} attribute (with {@link E2HOption#CSS_CLASSES} option) or a {@code style} attribute
+     * for a css rule with a given id.
+     */
+    void writeStyleAttribute(int styleId, HtmlWriter out) throws XMLStreamException {
+        if (styleId < 0) {
+            return;
+        }
+        if (useCssClasses) {
+            out.writeAttribute("class", cssClasses.get(styleId));
+        } else {
+            out.writeAttribute("style", rules.get(styleId));
+        }
+    }
+
+    protected abstract String getCssColor(Color color);
+
+    protected abstract StylingAction getBorderStylingAction();
+
+    protected abstract StylingAction getBorderColorOnlyStylingAction();
+
+    protected abstract StylingAction getBackgroundColorStylingAction();
+
+    protected abstract FontResolver getFontResolver();
+
+    protected abstract StylingAction getFontColorStylingAction();
+
+    protected abstract StylingAction getRotationStylingAction();
+
+    protected abstract float getColumnWidthInPixels(int columnIndex);
+
+    /**
+     * @return widths of the columns of a cell range in pixels
+     */
+    float[] getColumnWidthsInPixels(CellRangeAddress range) {
+        float[] widths = new float[range.getLastColumn() - range.getFirstColumn() + 1];
+        for (int column = Math.max(range.getFirstColumn(), 0); column <= range.getLastColumn(); column++) {
+            widths[column - range.getFirstColumn()] = getColumnWidthInPixels(column);
+        }
+        return widths;
+    }
+}
@@ -1,19 +1,22 @@
 package ru.perrymason.e2h;
 
-import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Color;
+import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.xssf.usermodel.XSSFCellStyle;
-import org.apache.poi.xssf.usermodel.XSSFColor;
-import org.apache.poi.xssf.usermodel.XSSFFont;
-import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
-import ru.perrymason.e2h.styling.*;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import ru.perrymason.e2h.styling.StylingAction;
 import ru.perrymason.e2h.styling.font.FontResolver;
-import ru.perrymason.e2h.styling.font.FontStylingAction;
 
 /**
- * Implements XSSF-specific options such as getting colors, fonts, rotation, etc.
+ * Converts XSSF-sheets using {@link XSSFStylingAlgorithm}
  */
-class XSSF2Html extends Excel2Html implements FontResolver {
+class XSSF2Html extends Excel2Html {
+
+    /**
+     * An algorithm providing format-specific actions for the hooks, created when they are called
+     */
+    private StylingAlgorithm hooks;
 
     XSSF2Html(Sheet sheet) {
         super(sheet);
@@ -24,96 +27,59 @@ class XSSF2Html extends Excel2Html implements FontResolver {
     }
 
     @Override
-    protected String getCssColor(Color color) {
-        if (color == null) {
-            return "black";
-        }
+    StylingAlgorithm createStylingAlgorithm() {
+        return new XSSFStylingAlgorithm() {
+            @Override
+            protected float getColumnWidthInPixels(int columnIndex) {
+                return XSSF2Html.this.getColumnWidthInPixels(columnIndex);
+            }
+        };
+    }
+
+    @Override
+    boolean hasCachedFormulaResult(Cell cell) {
+        return ((XSSFCell) cell).getCTCell().isSetV();
+    }
 
-        String strColor = ((XSSFColor) color).getARGBHex();
-        if (strColor == null) {
-            return "black";
+    private StylingAlgorithm getHooks() {
+        if (hooks == null) {
+            hooks = createStylingAlgorithm();
         }
-        return "#" + strColor.substring(2);
+        return hooks;
+    }
+
+    @Override
+    protected String getCssColor(Color color) {
+        return getHooks().getCssColor(color);
     }
 
     @Override
     protected StylingAction getBorderStylingAction() {
-        return new BorderStylingAction() {
-            @Override
-            protected String getBorderColor(XSSFCellBorder.BorderSide border, CellStyle cellStyle) {
-                return " " + getCssColor(((XSSFCellStyle) cellStyle).getBorderColor(border));
-            }
-        };
+        return getHooks().getBorderStylingAction();
     }
 
     @Override
     protected StylingAction getBorderColorOnlyStylingAction() {
-        return new BorderColorOnlyStylingAction() {
-            @Override
-            protected String getBorderColor(XSSFCellBorder.BorderSide border, CellStyle cellStyle) {
-                return getCssColor(((XSSFCellStyle) cellStyle).getBorderColor(border));
-            }
-        };
+        return getHooks().getBorderColorOnlyStylingAction();
     }
 
     @Override
     protected StylingAction getBackgroundColorStylingAction() {
-        return new BackgroundColorStylingAction() {
-            @Override
-            protected String getBackgroundColor(CellStyle cellStyle) {
-                XSSFCellStyle style = (XSSFCellStyle) cellStyle;
-                XSSFColor color = style.getFillBackgroundColorColor();
-                if (color != null) {
-                    String strColor = color.getARGBHex();
-                    if (strColor != null) {
-                        return "#" + strColor.substring(2);
-                    } else {
-                        color = style.getFillForegroundXSSFColor();
-                        return getCssColor(color);
-                    }
-                }
-                return "";
-            }
-        };
+        return getHooks().getBackgroundColorStylingAction();
     }
 
     @Override
     protected FontResolver getFontResolver() {
-        return this;
+        return getHooks().getFontResolver();
     }
 
     @Override
     protected StylingAction getFontColorStylingAction() {
-        return new FontStylingAction(this) {
-            @Override
-            public void perform(Cell cell, CellStyle cellStyle, CellSpans cellSpans, StringBuilder htmlStyle) {
-                XSSFFont font = (XSSFFont) getFont(cellStyle);
-                String color = getCssColor(font.getXSSFColor());
-                htmlStyle.append("color:").append(color).append(";");
-            }
-        };
+        return getHooks().getFontColorStylingAction();
     }
 
     @Override
     protected StylingAction getRotationStylingAction() {
-        return new RotationStylingAction() {
-            @Override
-            protected short getCssRotation(short rotation) {
-                if (rotation > 90) {
-                    return (short) (rotation - 90);
-                }
-                return (short) -rotation;
-            }
-        };
-    }
-
-    @Override
-    public Font getFont(CellStyle cellStyle) {
-        return ((XSSFCellStyle) cellStyle).getFont();
-    }
-
-    @Override
-    public String getDefaultFontFamilies() {
-        return XSSFFont.DEFAULT_FONT_NAME + ",sans-serif";
+        return getHooks().getRotationStylingAction();
     }
 }
@@ -0,0 +1,144 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
+import ru.perrymason.e2h.styling.*;
+import ru.perrymason.e2h.styling.font.FontResolver;
+import ru.perrymason.e2h.styling.font.FontStylingAction;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Implements XSSF-specific styling actions such as getting colors, fonts, rotation, etc.
+ */
+abstract class XSSFStylingAlgorithm extends StylingAlgorithm implements FontResolver {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Css colors by RGB value. Colors are created by every call to a style, and theme colors are resolved to RGB
+     * values by the style, so equal colors are found by the value.
+     */
+    private final Map<Integer, String> cssColors = new HashMap<Integer, String>();
+
+    @Override
+    protected String getCssColor(Color color) {
+        if (color == null) {
+            return "black";
+        }
+
+        String cssColor = toCssColor((XSSFColor) color);
+        if (cssColor == null) {
+            return "black";
+        }
+        return cssColor;
+    }
+
+    /**
+     * @return css color, or {@code null} if the color has no RGB value
+     */
+    private String toCssColor(XSSFColor color) {
+        byte[] argb = color.getARGB();
+        if (argb == null) {
+            return null;
+        }
+        if (argb.length != 4) {
+            return "#" + color.getARGBHex().substring(2);
+        }
+        int rgb = (argb[1] & 0xFF) << 16 | (argb[2] & 0xFF) << 8 | argb[3] & 0xFF;
+        String cssColor = cssColors.get(rgb);
+        if (cssColor == null) {
+            char[] chars = new char[7];
+            chars[0] = '#';
+            for (int i = 6; i > 0; i--) {
+                chars[i] = HEX_DIGITS[rgb >> (24 - 4 * i) & 0xF];
+            }
+            cssColor = new String(chars);
+            cssColors.put(rgb, cssColor);
+        }
+        return cssColor;
+    }
+
+    @Override
+    protected StylingAction getBorderStylingAction() {
+        return new BorderStylingAction() {
+            @Override
+            protected String getBorderColor(XSSFCellBorder.BorderSide border, CellStyle cellStyle) {
+                return " " + getCssColor(((XSSFCellStyle) cellStyle).getBorderColor(border));
+            }
+        };
+    }
+
+    @Override
+    protected StylingAction getBorderColorOnlyStylingAction() {
+        return new BorderColorOnlyStylingAction() {
+            @Override
+            protected String getBorderColor(XSSFCellBorder.BorderSide border, CellStyle cellStyle) {
+                return getCssColor(((XSSFCellStyle) cellStyle).getBorderColor(border));
+            }
+        };
+    }
+
+    @Override
+    protected StylingAction getBackgroundColorStylingAction() {
+        return new BackgroundColorStylingAction() {
+            @Override
+            protected String getBackgroundColor(CellStyle cellStyle) {
+                XSSFCellStyle style = (XSSFCellStyle) cellStyle;
+                XSSFColor color = style.getFillBackgroundColorColor();
+                if (color != null) {
+                    String cssColor = toCssColor(color);
+                    if (cssColor != null) {
+                        return cssColor;
+                    } else {
+                        color = style.getFillForegroundXSSFColor();
+                        return getCssColor(color);
+                    }
+                }
+                return "";
+            }
+        };
+    }
+
+    @Override
+    protected FontResolver getFontResolver() {
+        return this;
+    }
+
+    @Override
+    protected StylingAction getFontColorStylingAction() {
+        return new FontStylingAction(this) {
+            @Override
+            protected String getFontCss(Font font) {
+                return "color:" + getCssColor(((XSSFFont) font).getXSSFColor()) + ";";
+            }
+        };
+    }
+
+    @Override
+    protected StylingAction getRotationStylingAction() {
+        return new RotationStylingAction() {
+            @Override
+            protected short getCssRotation(short rotation) {
+                if (rotation > 90) {
+                    return (short) (rotation - 90);
+                }
+                return (short) -rotation;
+            }
+        };
+    }
+
+    @Override
+    public Font getFont(CellStyle cellStyle) {
+        return ((XSSFCellStyle) cellStyle).getFont();
+    }
+
+    @Override
+    public String getDefaultFontFamilies() {
+        return XSSFFont.DEFAULT_FONT_NAME + ",sans-serif";
+    }
+}
@@ -0,0 +1,313 @@
+package ru.perrymason.e2h.facade;
+
+import ru.perrymason.e2h.E2HOption;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts Excel files of directory trees and file lists to html files with {@link E2HFileFacade}, in one JVM.
+ * <p>Files are converted by a fixed pool of workers. Workbooks loaded into memory take many times the size of their
+ * files, so the number of workbooks open at once is limited by a memory budget: a worker opens a file only when the
+ * estimated size of its workbook fits into the budget. A file which fails to convert is reported and skipped.</p>
+ * <pre>
+ * java ru.perrymason.e2h.facade.E2HBatchConverter [-o dir] [-t threads] [-m megabytes] [-s] [-a]
+ *                                                 [-O OPTION,...] (file | directory | @list)...
+ * </pre>
+ */
+public final class E2HBatchConverter {
+    /**
+     * Estimated ratio of memory taken by a workbook loaded into memory to the size of its file. 2007-* files are zip
+     * archives of XML documents, so they grow much more.
+     */
+    private static final int XLSX_MEMORY_RATIO = 40;
+    private static final int XLS_MEMORY_RATIO = 8;
+    /**
+     * Estimated ratio of memory taken by a streaming converter to the size of a file, mostly for shared strings
+     */
+    private static final int STREAMING_MEMORY_RATIO = 2;
+    private static final long MB = 1024 * 1024;
+
+    private final List<Input> inputs = new ArrayList<Input>();
+    private File outputDirectory;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long memoryBudget = Runtime.getRuntime().maxMemory() / 2 / MB;
+    private boolean streaming;
+    private boolean allSheets;
+    private EnumSet<E2HOption> options = EnumSet.copyOf(E2HOption.STANDARD_OPTIONS);
+
+    private final AtomicInteger converted = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    public static void main(String[] args) throws InterruptedException {
+        E2HBatchConverter converter = new E2HBatchConverter();
+        try {
+            converter.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+        }
+        System.exit(converter.run());
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: E2HBatchConverter [options] (file | directory | @list)...");
+        System.err.println("  -o dir        write html files to a directory, keeping the structure of input directories");
+        System.err.println("                (by default next to Excel files)");
+        System.err.println("  -t threads    number of workers (default: number of processors)");
+        System.err.println("  -m megabytes  memory for workbooks open at once (default: half of the heap)");
+        System.err.println("  -s            use streaming converters");
+        System.err.println("  -a            convert all sheets to <name>.<sheet>.html files (default: the first one)");
+        System.err.println("  -O options    comma-separated E2HOption names, STANDARD_OPTIONS, FONT, CELL_SIZES,");
+        System.err.println("                BORDERS, COLORS or ALIGNMENT (default: STANDARD_OPTIONS)");
+        System.err.println("  @list         a file with paths of Excel files, one per line");
+    }
+
+    void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-o")) {
+                outputDirectory = new File(getValue(args, ++i, arg));
+            } else if (arg.equals("-t")) {
+                threads = getPositiveInt(getValue(args, ++i, arg), arg);
+            } else if (arg.equals("-m")) {
+                memoryBudget = getPositiveInt(getValue(args, ++i, arg), arg);
+            } else if (arg.equals("-s")) {
+                streaming = true;
+            } else if (arg.equals("-a")) {
+                allSheets = true;
+            } else if (arg.equals("-O")) {
+                options = parseOptions(getValue(args, ++i, arg));
+            } else if (arg.startsWith("@")) {
+                addList(new File(arg.substring(1)));
+            } else if (arg.startsWith("-")) {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            } else {
+                addInput(new File(arg));
+            }
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("No Excel files specified");
+        }
+    }
+
+    private static String getValue(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Option " + option + " requires a value");
+        }
+        return args[i];
+    }
+
+    private static int getPositiveInt(String value, String option) {
+        try {
+            int result = Integer.parseInt(value);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Option " + option + " requires a positive number");
+    }
+
+    private static EnumSet<E2HOption> parseOptions(String value) {
+        EnumSet<E2HOption> result = EnumSet.noneOf(E2HOption.class);
+        for (String name : value.split(",")) {
+            name = name.trim();
+            if (name.equals("STANDARD_OPTIONS")) {
+                result.addAll(E2HOption.STANDARD_OPTIONS);
+            } else if (name.equals("FONT")) {
+                result.addAll(E2HOption.FONT);
+            } else if (name.equals("CELL_SIZES")) {
+                result.addAll(E2HOption.CELL_SIZES);
+            } else if (name.equals("BORDERS")) {
+                result.addAll(E2HOption.BORDERS);
+            } else if (name.equals("COLORS")) {
+                result.addAll(E2HOption.COLORS);
+            } else if (name.equals("ALIGNMENT")) {
+                result.addAll(E2HOption.ALIGNMENT);
+            } else if (name.length() > 0) {
+                try {
+                    result.add(E2HOption.valueOf(name));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown converter option " + name);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void addList(File list) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(list), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() > 0) {
+                        addInput(new File(line));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't read file list " + list + ": " + e.getMessage());
+        }
+    }
+
+    private void addInput(File file) {
+        if (file.isDirectory()) {
+            addDirectory(file, "");
+        } else if (file.isFile()) {
+            inputs.add(new Input(file, file.getName()));
+        } else {
+            throw new IllegalArgumentException("File " + file + " doesn't exist");
+        }
+    }
+
+    /**
+     * Adds Excel files of a directory tree, in the order of their names
+     * @param path path of the directory relative to the root of the tree
+     */
+    private void addDirectory(File directory, String path) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                addDirectory(file, path + name + File.separator);
+            } else if (isExcelFile(name)) {
+                inputs.add(new Input(file, path + name));
+            }
+        }
+    }
+
+    private static boolean isExcelFile(String name) {
+        // Lock files of open workbooks start with "~$"
+        String lowerCase = name.toLowerCase(Locale.ROOT);
+        return !name.startsWith("~$") && (lowerCase.endsWith(".xls") || lowerCase.endsWith(".xlsx")
+                || lowerCase.endsWith(".xlsm"));
+    }
+
+    /**
+     * Converts all of the files
+     * @return exit code: {@code 0} if all of the files are converted, {@code 1} otherwise
+     */
+    int run() throws InterruptedException {
+        final Semaphore memory = new Semaphore((int) Math.min(memoryBudget, Integer.MAX_VALUE), true);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            for (final Input input : inputs) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        int permits = (int) Math.min(estimateMemory(input.file), memoryBudget);
+                        memory.acquireUninterruptibly(permits);
+                        try {
+                            convert(input);
+                            converted.incrementAndGet();
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            System.err.println("Can't convert " + input.file + ": " + e);
+                        } finally {
+                            memory.release(permits);
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        printSummary(System.nanoTime() - start);
+        return failed.get() == 0 ? 0 : 1;
+    }
+
+    /**
+     * @return estimated memory taken by a file being converted, in megabytes
+     */
+    private long estimateMemory(File file) {
+        int ratio;
+        if (streaming) {
+            ratio = STREAMING_MEMORY_RATIO;
+        } else {
+            ratio = file.getName().toLowerCase(Locale.ROOT).endsWith(".xls") ? XLS_MEMORY_RATIO : XLSX_MEMORY_RATIO;
+        }
+        return Math.max(file.length() * ratio / MB, 1);
+    }
+
+    private void convert(Input input) throws Exception {
+        bytesRead.addAndGet(input.file.length());
+        E2HFileFacade facade = new E2HFileFacade(input.file, streaming);
+        try {
+            facade.replaceOptions(options);
+            String baseName = getBaseName(input);
+            if (!allSheets) {
+                writeHtml(facade, new File(baseName + ".html"));
+                return;
+            }
+            List<String> sheetNames = facade.getSheetNames();
+            for (int i = 0; i < sheetNames.size(); i++) {
+                facade.selectSheetAt(i);
+                writeHtml(facade, new File(baseName + "." + toFileName(sheetNames.get(i)) + ".html"));
+            }
+        } finally {
+            facade.close();
+        }
+    }
+
+    private void writeHtml(E2HFileFacade facade, File html) throws Exception {
+        File directory = html.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        facade.writeHtml(html);
+        bytesWritten.addAndGet(html.length());
+    }
+
+    /**
+     * @return path of an html file without an extension
+     */
+    private String getBaseName(Input input) {
+        String path = outputDirectory == null ? input.file.getPath()
+                : new File(outputDirectory, input.path).getPath();
+        int dot = path.lastIndexOf('.');
+        return dot > path.lastIndexOf(File.separatorChar) ? path.substring(0, dot) : path;
+    }
+
+    private static String toFileName(String sheetName) {
+        return sheetName.replaceAll("[\\\\/:*?\"<>|]", "_");
+    }
+
+    private void printSummary(long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.println(String.format(Locale.ROOT,
+                "Converted %d of %d files (%d failed) in %.1f s: %.1f files/s, %.1f MB/s read, %.1f MB written",
+                converted.get(), inputs.size(), failed.get(), seconds, converted.get() / seconds,
+                bytesRead.get() / (double) MB / seconds, bytesWritten.get() / (double) MB));
+    }
+
+    /**
+     * An Excel file and its path relative to the root of its directory tree
+     */
+    private static final class Input {
+        private final File file;
+        private final String path;
+
+        private Input(File file, String path) {
+            this.file = file;
+            this.path = path;
+        }
+    }
+}
@@ -2,26 +2,84 @@ package ru.perrymason.e2h.facade;
 
 import org.apache.poi.EncryptedDocumentException;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
-import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.util.ZipInputStreamZipEntrySource;
+import org.apache.poi.openxml4j.util.ZipSecureFile;
+import org.apache.poi.poifs.filesystem.DocumentFactoryHelper;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
 import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.util.IOUtils;
+import org.apache.poi.util.LocaleUtil;
+import ru.perrymason.e2h.ConversionListener;
 import ru.perrymason.e2h.E2HOption;
 import ru.perrymason.e2h.Excel2Html;
+import ru.perrymason.e2h.SheetModel;
+import ru.perrymason.e2h.StreamingHSSF2Html;
+import ru.perrymason.e2h.StreamingXSSF2Html;
+import ru.perrymason.e2h.styling.font.FontCssCache;
 
 import javax.xml.stream.XMLStreamException;
 import java.io.*;
-import java.util.EnumSet;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipInputStream;
 
 /**
  * File facade for {@link Excel2Html} converter.
  */
 public final class E2HFileFacade implements Closeable {
-    private final Workbook workbook;
+    /**
+     * Excel file, {@code null} if the contents are held in memory
+     */
+    private final File excel;
+    /**
+     * Contents of the Excel file held in memory, a buffer with an accessible array
+     */
+    private final ByteBuffer data;
+    /**
+     * Workbook of the file, {@code null} until it's needed for the first time and if the file is converted with a
+     * streaming converter. Guarded by the lock of the facade.
+     */
+    private Workbook workbook;
+    /**
+     * Evaluator of formulas of the workbook shared by all converters, so every formula is evaluated once
+     */
+    private FormulaEvaluator formulaEvaluator;
+    /**
+     * Css properties of fonts of the workbook shared by all converters, so the properties of a font are computed once
+     */
+    private final FontCssCache fontCssCache = new FontCssCache();
+    /**
+     * XLSX package or file system of a 97-2003 file which the workbook is loaded from, until it's loaded
+     */
+    private OPCPackage workbookPackage;
+    private NPOIFSFileSystem workbookFileSystem;
+    /**
+     * XLSX package of the file, if the file is converted with a streaming converter
+     */
+    private final OPCPackage xlsx;
+    /**
+     * File system of a 97-2003 file, if the file is converted with a streaming converter
+     */
+    private final NPOIFSFileSystem xls;
+    private final List<String> sheetNames;
+    private final SpreadsheetVersion spreadsheetVersion;
+    private final ConversionListener listener;
     private final EnumSet<E2HOption> options = EnumSet.noneOf(E2HOption.class);
 
     private CellRangeAddress range;
-    private Sheet workingSheet;
+    private int workingSheet;
+    private volatile HtmlCache cache;
+    /**
+     * Hash of the contents of the file, computed when a cache is used for the first time
+     */
+    private byte[] digest;
 
     /**
      * Creates new {@link Excel2Html} converter for a given Excel file.
@@ -32,8 +90,306 @@ public final class E2HFileFacade implements Closeable {
      * @throws EncryptedDocumentException If the workbook given is password protected
      */
     public E2HFileFacade(File excel) throws IOException, InvalidFormatException {
-        workbook = WorkbookFactory.create(excel);
-        workingSheet = workbook.getSheetAt(0);
+        this(excel, false);
+    }
+
+    /**
+     * Creates new converter for a given Excel file. The file is opened for reading only, so it's never modified.
+     * <p>If {@code streaming} is {@code true}, the file will be converted with {@link StreamingXSSF2Html} (.xlsx) or
+     * {@link StreamingHSSF2Html} (.xls) converter: the workbook isn't loaded into memory and sheets are read as they
+     * are converted. Otherwise the file is loaded into memory and converted with {@link Excel2Html} converter. All
+     * converters of a loaded workbook share one formula evaluator, so with {@link E2HOption#EVALUATE_FORMULAS} option
+     * every formula is evaluated once, however many ranges and sheets are converted.</p>
+     * <p>Only names of the sheets are read when the facade is created, the workbook is loaded when a sheet is
+     * converted for the first time, so conversions found in a cache don't load it. Encrypted files are loaded at
+     * once.</p>
+     * <p>Note that {@code E2HFileFacade} should be closed after use in order to properly release resources.</p>
+     * @param excel Excel file. Must be either 97-2003 (.xls) or 2007-* (.xlsx) file
+     * @param streaming whether to use a streaming converter if it's available for the file format
+     * @throws IOException if an error occurs while reading the data
+     * @throws InvalidFormatException if the contents of the file cannot be parsed into a {@link Workbook}
+     * @throws EncryptedDocumentException If the workbook given is password protected
+     */
+    public E2HFileFacade(File excel, boolean streaming) throws IOException, InvalidFormatException {
+        this(excel, streaming, ConversionListener.NONE);
+    }
+
+    /**
+     * Creates new converter for a given Excel file, which passes metrics of opening the file and of conversions to a
+     * listener.
+     * <p>Converters of a loaded workbook report all of the metrics, and loading of the workbook is reported as one more
+     * {@link ConversionListener.Phase#OPEN} phase. Streaming converters read and write a sheet in one pass, which is
+     * reported as {@link ConversionListener.Phase#WRITE} phase along with the size of the html file.</p>
+     * @param excel Excel file. Must be either 97-2003 (.xls) or 2007-* (.xlsx) file
+     * @param streaming whether to use a streaming converter if it's available for the file format
+     * @param listener a listener receiving metrics
+     * @throws IOException if an error occurs while reading the data
+     * @throws InvalidFormatException if the contents of the file cannot be parsed into a {@link Workbook}
+     * @throws EncryptedDocumentException If the workbook given is password protected
+     * @see #E2HFileFacade(File, boolean)
+     */
+    public E2HFileFacade(File excel, boolean streaming, ConversionListener listener)
+            throws IOException, InvalidFormatException {
+        this(excel, null, streaming, listener);
+    }
+
+    /**
+     * Creates new converter for the contents of an Excel file held in memory, i.e. an uploaded file, so it doesn't
+     * have to be written to a temporary file. The array isn't copied and must not be changed while the facade is used.
+     * @param excel contents of an Excel file. Must be either 97-2003 (.xls) or 2007-* (.xlsx) file
+     * @param streaming whether to use a streaming converter if it's available for the file format
+     * @throws IOException if an error occurs while reading the data
+     * @throws InvalidFormatException if the contents of the file cannot be parsed into a {@link Workbook}
+     * @throws EncryptedDocumentException If the workbook given is password protected
+     * @see #E2HFileFacade(File, boolean)
+     */
+    public E2HFileFacade(byte[] excel, boolean streaming) throws IOException, InvalidFormatException {
+        this(excel, streaming, ConversionListener.NONE);
+    }
+
+    /**
+     * Creates new converter for the contents of an Excel file held in memory, which passes metrics to a listener
+     * @see #E2HFileFacade(byte[], boolean)
+     * @see #E2HFileFacade(File, boolean, ConversionListener)
+     */
+    public E2HFileFacade(byte[] excel, boolean streaming, ConversionListener listener)
+            throws IOException, InvalidFormatException {
+        this(null, ByteBuffer.wrap(excel), streaming, listener);
+    }
+
+    /**
+     * Creates new converter for the contents of an Excel file held in a buffer, from its position to its limit. A
+     * heap buffer isn't copied and must not be changed while the facade is used, a direct buffer is copied once.
+     * @param excel contents of an Excel file. Must be either 97-2003 (.xls) or 2007-* (.xlsx) file
+     * @param streaming whether to use a streaming converter if it's available for the file format
+     * @throws IOException if an error occurs while reading the data
+     * @throws InvalidFormatException if the contents of the file cannot be parsed into a {@link Workbook}
+     * @throws EncryptedDocumentException If the workbook given is password protected
+     * @see #E2HFileFacade(File, boolean)
+     */
+    public E2HFileFacade(ByteBuffer excel, boolean streaming) throws IOException, InvalidFormatException {
+        this(excel, streaming, ConversionListener.NONE);
+    }
+
+    /**
+     * Creates new converter for the contents of an Excel file held in a buffer, which passes metrics to a listener
+     * @see #E2HFileFacade(ByteBuffer, boolean)
+     * @see #E2HFileFacade(File, boolean, ConversionListener)
+     */
+    public E2HFileFacade(ByteBuffer excel, boolean streaming, ConversionListener listener)
+            throws IOException, InvalidFormatException {
+        this(null, toHeapBuffer(excel), streaming, listener);
+    }
+
+    /**
+     * Creates new converter for an Excel file read from a stream. The stream is read to the end into memory, but
+     * isn't closed.
+     * @param excel a stream of an Excel file. Must be either 97-2003 (.xls) or 2007-* (.xlsx) file
+     * @param streaming whether to use a streaming converter if it's available for the file format
+     * @throws IOException if an error occurs while reading the data
+     * @throws InvalidFormatException if the contents of the file cannot be parsed into a {@link Workbook}
+     * @throws EncryptedDocumentException If the workbook given is password protected
+     * @see #E2HFileFacade(File, boolean)
+     */
+    public E2HFileFacade(InputStream excel, boolean streaming) throws IOException, InvalidFormatException {
+        this(excel, streaming, ConversionListener.NONE);
+    }
+
+    /**
+     * Creates new converter for an Excel file read from a stream, which passes metrics to a listener
+     * @see #E2HFileFacade(InputStream, boolean)
+     * @see #E2HFileFacade(File, boolean, ConversionListener)
+     */
+    public E2HFileFacade(InputStream excel, boolean streaming, ConversionListener listener)
+            throws IOException, InvalidFormatException {
+        this(null, ByteBuffer.wrap(IOUtils.toByteArray(excel)), streaming, listener);
+    }
+
+    private E2HFileFacade(File excel, ByteBuffer data, boolean streaming, ConversionListener listener)
+            throws IOException, InvalidFormatException {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener must not be null");
+        }
+        long start = System.nanoTime();
+        this.excel = excel;
+        this.data = data;
+        this.listener = listener;
+        if (streaming && isXlsx()) {
+            xls = null;
+            xlsx = openPackage();
+            try {
+                sheetNames = StreamingXSSF2Html.getSheetNames(xlsx);
+            } catch (IOException e) {
+                xlsx.revert();
+                throw e;
+            } catch (InvalidFormatException e) {
+                xlsx.revert();
+                throw e;
+            }
+        } else if (streaming && isXls()) {
+            xlsx = null;
+            xls = openFileSystem();
+            try {
+                sheetNames = StreamingHSSF2Html.getSheetNames(xls.getRoot());
+            } catch (IOException e) {
+                xls.close();
+                throw e;
+            } catch (RuntimeException e) {
+                xls.close();
+                throw e;
+            }
+        } else if (isXlsx()) {
+            // The workbook is loaded from the package when it's needed
+            xlsx = null;
+            xls = null;
+            workbookPackage = openPackage();
+            try {
+                sheetNames = StreamingXSSF2Html.getSheetNames(workbookPackage);
+            } catch (IOException e) {
+                workbookPackage.revert();
+                throw e;
+            } catch (InvalidFormatException e) {
+                workbookPackage.revert();
+                throw e;
+            }
+        } else if (isXls()) {
+            xlsx = null;
+            xls = null;
+            workbookFileSystem = openFileSystem();
+            try {
+                sheetNames = StreamingHSSF2Html.getSheetNames(workbookFileSystem.getRoot());
+            } catch (IOException e) {
+                workbookFileSystem.close();
+                throw e;
+            } catch (RuntimeException e) {
+                workbookFileSystem.close();
+                throw e;
+            }
+        } else {
+            // An encrypted file or an invalid one, which is left to WorkbookFactory to decrypt or to report
+            if (excel != null) {
+                // Opened for reading only, as otherwise 2007-* files are saved when the workbook is closed
+                workbook = WorkbookFactory.create(excel, null, true);
+            } else {
+                workbook = WorkbookFactory.create(openStream());
+            }
+            formulaEvaluator = workbook.getCreationHelper().createFormulaEvaluator();
+            xlsx = null;
+            xls = null;
+            List<String> names = new ArrayList<String>();
+            for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+                names.add(workbook.getSheetName(i));
+            }
+            sheetNames = names;
+        }
+        if (workbook != null) {
+            spreadsheetVersion = workbook.getSpreadsheetVersion();
+        } else {
+            spreadsheetVersion = xlsx != null || workbookPackage != null
+                    ? SpreadsheetVersion.EXCEL2007 : SpreadsheetVersion.EXCEL97;
+        }
+        workingSheet = 0;
+        if (listener != ConversionListener.NONE) {
+            listener.phaseCompleted(ConversionListener.Phase.OPEN, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Loads the workbook of a facade which doesn't use a streaming converter, if it isn't loaded yet. The formula
+     * evaluator may be read after this method.
+     */
+    private synchronized Workbook getWorkbook() throws IOException {
+        if (workbook == null) {
+            long start = System.nanoTime();
+            try {
+                workbook = loadWorkbook(workbookPackage, workbookFileSystem);
+            } catch (InvalidFormatException e) {
+                throw new IOException(e);
+            }
+            // Closed with the workbook from now on
+            workbookPackage = null;
+            workbookFileSystem = null;
+            formulaEvaluator = workbook.getCreationHelper().createFormulaEvaluator();
+            if (listener != ConversionListener.NONE) {
+                listener.phaseCompleted(ConversionListener.Phase.OPEN, System.nanoTime() - start);
+            }
+        }
+        return workbook;
+    }
+
+    private static Workbook loadWorkbook(OPCPackage xlsx, NPOIFSFileSystem xls)
+            throws IOException, InvalidFormatException {
+        return xlsx != null ? WorkbookFactory.create(xlsx) : WorkbookFactory.create(xls);
+    }
+
+    /**
+     * Copies a direct buffer to the heap, as POI reads arrays and streams
+     */
+    private static ByteBuffer toHeapBuffer(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return buffer.slice();
+        }
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * @return a new stream of the contents of the file
+     */
+    private InputStream openStream() throws IOException {
+        if (excel != null) {
+            return new BufferedInputStream(new FileInputStream(excel));
+        }
+        return new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+
+    /**
+     * Opens a 2007-* file for reading only, so it isn't saved when the package is closed
+     */
+    private OPCPackage openPackage() throws IOException, InvalidFormatException {
+        if (excel != null) {
+            return OPCPackage.open(excel, PackageAccess.READ);
+        }
+        // Only a package of entries is opened for reading only, and the threshold protects it against zip bombs
+        ZipInputStreamZipEntrySource entries = new ZipInputStreamZipEntrySource(
+                ZipSecureFile.addThreshold(new ZipInputStream(openStream())));
+        return OPCPackage.open(entries);
+    }
+
+    /**
+     * Opens a 97-2003 file for reading only
+     */
+    private NPOIFSFileSystem openFileSystem() throws IOException {
+        return excel != null ? new NPOIFSFileSystem(excel, true) : new NPOIFSFileSystem(openStream());
+    }
+
+    private boolean isXlsx() throws IOException {
+        InputStream stream = openStream();
+        try {
+            return DocumentFactoryHelper.hasOOXMLHeader(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private boolean isXls() throws IOException {
+        InputStream stream = openStream();
+        try {
+            if (!NPOIFSFileSystem.hasPOIFSHeader(stream)) {
+                return false;
+            }
+        } finally {
+            stream.close();
+        }
+        // Encrypted 2007-* files are stored in the same file system, but have no workbook stream
+        NPOIFSFileSystem fileSystem = openFileSystem();
+        try {
+            return fileSystem.getRoot().hasEntry("Workbook");
+        } finally {
+            fileSystem.close();
+        }
     }
 
     /**
@@ -42,11 +398,20 @@ public final class E2HFileFacade implements Closeable {
      * @throws IllegalArgumentException if there is no sheet with such name
      */
     public void selectSheet(String name) {
-        Sheet temp = workbook.getSheet(name);
-        if (temp == null) {
-            throw new IllegalArgumentException("Specified sheet '" + name + "' doesn't exist in workbook");
+        workingSheet = getSheetIndex(name);
+    }
+
+    /**
+     * @return index of a sheet by its name, ignoring case like Excel does
+     * @throws IllegalArgumentException if there is no sheet with such name
+     */
+    private int getSheetIndex(String name) {
+        for (int i = 0; i < sheetNames.size(); i++) {
+            if (sheetNames.get(i).equalsIgnoreCase(name)) {
+                return i;
+            }
         }
-        workingSheet = temp;
+        throw new IllegalArgumentException("Specified sheet '" + name + "' doesn't exist in workbook");
     }
 
     /**
@@ -54,7 +419,11 @@ public final class E2HFileFacade implements Closeable {
      * @param index
      */
     public void selectSheetAt(int index) {
-        workingSheet = workbook.getSheetAt(index);
+        int sheets = sheetNames.size();
+        if (index < 0 || index >= sheets) {
+            throw new IllegalArgumentException("Sheet index (" + index + ") is out of range (0.." + (sheets - 1) + ")");
+        }
+        workingSheet = index;
     }
 
     /**
@@ -63,7 +432,7 @@ public final class E2HFileFacade implements Closeable {
      */
     public void selectCellRange(String range) {
         this.range = CellRangeAddress.valueOf(range);
-        this.range.validate(workbook.getSpreadsheetVersion());
+        this.range.validate(getSpreadsheetVersion());
     }
 
     /**
@@ -75,7 +444,7 @@ public final class E2HFileFacade implements Closeable {
      */
     public void selectCellRange(int firstRow, int lastRow, int firstCol, int lastCol) {
         this.range = new CellRangeAddress(firstRow, lastRow, firstCol, lastCol);
-        this.range.validate(workbook.getSpreadsheetVersion());
+        this.range.validate(getSpreadsheetVersion());
     }
 
     /**
@@ -118,25 +487,312 @@ public final class E2HFileFacade implements Closeable {
         this.options.addAll(options);
     }
 
+    /**
+     * Sets a cache of converted html files. Conversions found in the cache are replaced with copying of files, and the
+     * other ones are stored in the cache.
+     * @param cache a cache, or {@code null} to convert all files
+     */
+    public void setCache(HtmlCache cache) {
+        this.cache = cache;
+    }
+
+    public HtmlCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Clears results of formulas cached by the evaluator shared by converters of a loaded workbook, so that the next
+     * conversions with {@link E2HOption#EVALUATE_FORMULAS} option evaluate formulas again, i.e. volatile functions like
+     * {@code NOW()} and {@code RAND()}. Does nothing if the workbook isn't loaded or is converted with a streaming
+     * converter. Must not be called while a sheet is converted.
+     */
+    public synchronized void clearFormulaCache() {
+        if (formulaEvaluator != null) {
+            formulaEvaluator.clearAllCachedResultValues();
+        }
+    }
+
+    /**
+     * Returns names of all sheets of the workbook in the order they are stored in the workbook.
+     */
+    public List<String> getSheetNames() {
+        return new ArrayList<String>(sheetNames);
+    }
+
     /**
      * Writes an html table to a given file.
      * @param file
-     * @throws FileNotFoundException
+     * @throws IOException if the file can't be written or the sheet can't be read
+     * @throws XMLStreamException
+     */
+    public void writeHtml(File file) throws IOException, XMLStreamException {
+        writeHtml(file, false);
+    }
+
+    /**
+     * Writes an html table to a given file, which may be compressed to the gzip format on the fly, i.e. to be served
+     * with <tt>Content-Encoding: gzip</tt>.
+     * @param file
+     * @param gzip whether to compress the html to the gzip format
+     * @throws IOException if the file can't be written or the sheet can't be read
+     * @throws XMLStreamException
+     */
+    public void writeHtml(File file, boolean gzip) throws IOException, XMLStreamException {
+        HtmlCache cache = this.cache;
+        String key = cache == null ? null : getCacheKey(workingSheet, range, options, gzip);
+        if (key != null && copyFromCache(cache, key, file)) {
+            return;
+        }
+        if (xlsx != null) {
+            writeHtml(xlsx, workingSheet, range, options, listener, file, gzip);
+        } else if (xls != null) {
+            writeHtml(xls, workingSheet, range, options, listener, file, gzip);
+        } else {
+            Workbook workbook = getWorkbook();
+            writeHtml(workbook, formulaEvaluator, fontCssCache, workingSheet, range, options, listener, file, gzip);
+        }
+        if (key != null) {
+            cache.put(key, file);
+        }
+    }
+
+    /**
+     * @return a key of a conversion in a cache
+     */
+    private String getCacheKey(int sheetIndex, CellRangeAddress range, EnumSet<E2HOption> options, boolean gzip)
+            throws IOException {
+        byte[] digest;
+        synchronized (this) {
+            if (this.digest == null) {
+                this.digest = excel != null ? HtmlCache.digest(excel) : HtmlCache.digest(data);
+            }
+            digest = this.digest;
+        }
+        String converter = xlsx != null ? "StreamingXSSF2Html" : xls != null ? "StreamingHSSF2Html" : "Excel2Html";
+        // Converters format values with the locale of POI
+        return HtmlCache.getKey(digest, gzip ? converter + ";gzip" : converter, sheetIndex, range, options,
+                LocaleUtil.getUserLocale());
+    }
+
+    /**
+     * Copies a converted file from a cache, reporting it as writing of html
+     * @return {@code true} if the conversion is found in the cache
+     */
+    private boolean copyFromCache(HtmlCache cache, String key, File file) throws IOException {
+        long start = System.nanoTime();
+        if (!cache.copyTo(key, file)) {
+            return false;
+        }
+        fireHtmlWritten(listener, file, start);
+        return true;
+    }
+
+    /**
+     * Writes html tables of given sheets to given files. Sheets are converted concurrently by an executor, with the
+     * current cell range and options.
+     * <p>Sheets of a streaming facade are parsed and written concurrently. An XLSX package is opened once by the
+     * facade and shared by the sheets: converters are created one at a time, as the package isn't thread-safe, and
+     * then parse their sheets concurrently. A 97-2003 file is opened once more for every sheet, as its file system
+     * reads the file through a channel which can't be shared, while the contents held in memory are shared like a
+     * package. A workbook loaded into memory isn't thread-safe, so its sheets are read into {@link SheetModel}s one at
+     * a time, and only the models are written concurrently.</p>
+     * <p>The method returns when all of the sheets are converted. If any conversion fails, the ones which haven't
+     * started yet are cancelled.</p>
+     * @param files output files by sheet names
+     * @param executor an executor running conversions
+     * @throws IllegalArgumentException if there is no sheet with some name
+     * @throws IOException if a file can't be written or a sheet can't be read
      * @throws XMLStreamException
+     * @throws InterruptedException if the current thread is interrupted while waiting for conversions
+     */
+    public void writeHtml(Map<String, File> files, Executor executor)
+            throws IOException, XMLStreamException, InterruptedException {
+        final Map<Integer, File> sheets = new LinkedHashMap<Integer, File>();
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            sheets.put(getSheetIndex(entry.getKey()), entry.getValue());
+        }
+        final CellRangeAddress range = this.range;
+        final EnumSet<E2HOption> options = getOptions();
+
+        CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            for (final Map.Entry<Integer, File> sheet : sheets.entrySet()) {
+                futures.add(completionService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException, XMLStreamException {
+                        writeSheet(sheet.getKey(), range, options, sheet.getValue());
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    completionService.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof XMLStreamException) {
+                        throw (XMLStreamException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Converts a sheet in a worker thread
      */
-    public void writeHtml(File file) throws FileNotFoundException, XMLStreamException {
+    private void writeSheet(int sheetIndex, CellRangeAddress range, EnumSet<E2HOption> options, File file)
+            throws IOException, XMLStreamException {
+        HtmlCache cache = this.cache;
+        String key = cache == null ? null : getCacheKey(sheetIndex, range, options, false);
+        if (key != null && copyFromCache(cache, key, file)) {
+            return;
+        }
+        if (xlsx != null) {
+            writeHtml(xlsx, sheetIndex, range, options, listener, file, false);
+        } else if (xls != null && excel == null) {
+            writeHtml(xls, sheetIndex, range, options, listener, file, false);
+        } else if (xls != null) {
+            NPOIFSFileSystem fileSystem = openFileSystem();
+            try {
+                writeHtml(fileSystem, sheetIndex, range, options, listener, file, false);
+            } finally {
+                fileSystem.close();
+            }
+        } else {
+            // Only reading of the workbook must be synchronized, the model is written concurrently
+            Workbook workbook = getWorkbook();
+            SheetModel model;
+            synchronized (workbook) {
+                model = getConverter(workbook, formulaEvaluator, fontCssCache, sheetIndex, range, options, listener)
+                        .createModel();
+            }
+            long start = System.nanoTime();
+            FileOutputStream stream = new FileOutputStream(file);
+            try {
+                model.writeHtml(stream.getChannel(), false);
+            } finally {
+                stream.close();
+            }
+            fireHtmlWritten(listener, file, start);
+        }
+        if (key != null) {
+            cache.put(key, file);
+        }
+    }
+
+    /**
+     * Passes time of writing and size of an html file to the listener
+     * @param start start time of writing
+     */
+    private static void fireHtmlWritten(ConversionListener listener, File file, long start) {
+        if (listener != ConversionListener.NONE) {
+            listener.phaseCompleted(ConversionListener.Phase.WRITE, System.nanoTime() - start);
+            listener.htmlWritten(file.length());
+        }
+    }
+
+    private static void writeHtml(OPCPackage xlsx, int sheetIndex, CellRangeAddress range,
+                                  EnumSet<E2HOption> options, ConversionListener listener, File file, boolean gzip)
+            throws IOException, XMLStreamException {
+        long start = System.nanoTime();
+        StreamingXSSF2Html streaming;
+        // Parts of a package are looked up by one thread at a time, the sheet is parsed concurrently
+        synchronized (xlsx) {
+            try {
+                streaming = new StreamingXSSF2Html(xlsx, sheetIndex, range);
+            } catch (InvalidFormatException e) {
+                throw new IOException(e);
+            }
+        }
+        streaming.replaceOptions(options);
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            streaming.writeHtml(stream.getChannel(), gzip);
+        } finally {
+            stream.close();
+        }
+        fireHtmlWritten(listener, file, start);
+    }
+
+    private static void writeHtml(NPOIFSFileSystem xls, int sheetIndex, CellRangeAddress range,
+                                  EnumSet<E2HOption> options, ConversionListener listener, File file, boolean gzip)
+            throws IOException, XMLStreamException {
+        long start = System.nanoTime();
+        StreamingHSSF2Html streaming;
+        // A file system of contents held in memory is shared by the sheets like a package
+        synchronized (xls) {
+            streaming = new StreamingHSSF2Html(xls.getRoot(), sheetIndex, range);
+        }
+        streaming.replaceOptions(options);
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            streaming.writeHtml(stream.getChannel(), gzip);
+        } finally {
+            stream.close();
+        }
+        fireHtmlWritten(listener, file, start);
+    }
+
+    private static Excel2Html getConverter(Workbook workbook, FormulaEvaluator formulaEvaluator,
+                                           FontCssCache fontCssCache, int sheetIndex, CellRangeAddress range,
+                                           EnumSet<E2HOption> options, ConversionListener listener) {
         Excel2Html excel2Html;
         if (range == null) {
-            excel2Html = Excel2Html.getConverter(workingSheet);
+            excel2Html = Excel2Html.getConverter(workbook.getSheetAt(sheetIndex));
         } else {
-            excel2Html = Excel2Html.getConverter(workingSheet, range);
+            excel2Html = Excel2Html.getConverter(workbook.getSheetAt(sheetIndex), range);
         }
         excel2Html.replaceOptions(options);
-        excel2Html.writeHtml(new FileOutputStream(file));
+        excel2Html.setFormulaEvaluator(formulaEvaluator);
+        excel2Html.setFontCssCache(fontCssCache);
+        excel2Html.setListener(listener);
+        return excel2Html;
+    }
+
+    private static void writeHtml(Workbook workbook, FormulaEvaluator formulaEvaluator, FontCssCache fontCssCache,
+                                  int sheetIndex, CellRangeAddress range, EnumSet<E2HOption> options,
+                                  ConversionListener listener, File file, boolean gzip)
+            throws IOException, XMLStreamException {
+        Excel2Html excel2Html = getConverter(workbook, formulaEvaluator, fontCssCache, sheetIndex, range, options,
+                listener);
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            excel2Html.writeHtml(stream.getChannel(), gzip);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private SpreadsheetVersion getSpreadsheetVersion() {
+        return spreadsheetVersion;
     }
 
     @Override
-    public void close() throws IOException {
-        workbook.close();
+    public synchronized void close() throws IOException {
+        if (xlsx != null) {
+            // The package is opened for reading only, so it mustn't be saved
+            xlsx.revert();
+        } else if (xls != null) {
+            xls.close();
+        } else if (workbook != null) {
+            workbook.close();
+        } else if (workbookPackage != null) {
+            workbookPackage.revert();
+        } else {
+            workbookFileSystem.close();
+        }
     }
 }
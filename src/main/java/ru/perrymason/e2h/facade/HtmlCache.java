@@ -0,0 +1,310 @@
+package ru.perrymason.e2h.facade;
+
+import org.apache.poi.ss.util.CellRangeAddress;
+import ru.perrymason.e2h.E2HOption;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A directory of html files converted by {@link E2HFileFacade}s, so repeated conversions are replaced with copying of
+ * files.
+ * <p>Files are stored by a hash of the contents of an Excel file, the sheet, the cell range, the options, the locale
+ * of formatting and the kind of the converter, so a changed Excel file never hits an old entry. Entries are written
+ * to temporary files and renamed, so a reader never sees a partly written entry. On platforms which can't rename a
+ * file to an existing one, an entry is replaced by deleting it first, so while it's replaced a reader may miss it,
+ * which is a miss of the cache rather than an error. When the total size of the entries exceeds the maximum
+ * size, the least recently used entries are deleted; the order of use survives restarts as modification times of the
+ * files.</p>
+ * <p>The cache is thread-safe and may be shared by many facades, but not by several processes.</p>
+ */
+public final class HtmlCache {
+    /**
+     * Version of the keys, changed when converters write different html for the same parameters
+     */
+    private static final int KEY_VERSION = 2;
+    private static final String SUFFIX = ".html";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final long maxSize;
+    /**
+     * Sizes of the entries by their keys, from the least recently used one
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache in a directory, which is created if it doesn't exist. Entries already stored in the directory are
+     * kept.
+     * @param directory a directory used only by the cache
+     * @param maxSize maximum total size of the entries in bytes
+     * @throws IOException if the directory can't be created
+     */
+    public HtmlCache(File directory, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Can't read directory " + directory);
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                long modified1 = file1.lastModified();
+                long modified2 = file2.lastModified();
+                return modified1 < modified2 ? -1 : modified1 == modified2 ? 0 : 1;
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                long length = file.length();
+                entries.put(name.substring(0, name.length() - SUFFIX.length()), length);
+                size += length;
+            } else if (name.endsWith(".tmp")) {
+                // Left by a process which has been stopped while writing an entry
+                file.delete();
+            }
+        }
+        evict();
+    }
+
+    /**
+     * @return number of conversions replaced with copying of a stored file
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of conversions which weren't found in the cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return share of conversions found in the cache, from 0 to 1
+     */
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long requests = hits + misses.get();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * @return total size of the entries in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Deletes all of the entries
+     */
+    public synchronized void clear() {
+        for (String key : entries.keySet()) {
+            getFile(key).delete();
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Computes a hash of the contents of a file, which is a part of the keys of its conversions
+     */
+    static byte[] digest(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream stream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = stream.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            stream.close();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Computes a hash of the contents of a file held in a buffer, from its position to its limit
+     */
+    static byte[] digest(ByteBuffer data) {
+        MessageDigest digest = newDigest();
+        digest.update(data.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * @param fileDigest a hash of an Excel file computed by {@link #digest(File)}
+     * @param converter the kind of a converter, as converters may write different html for the same parameters
+     * @param sheetIndex index of a sheet
+     * @param range a cell range or {@code null} for the whole sheet
+     * @param options options of the converter
+     * @param locale locale of formatting of cell values
+     * @return a key of a conversion
+     */
+    static String getKey(byte[] fileDigest, String converter, int sheetIndex, CellRangeAddress range,
+                         EnumSet<E2HOption> options, Locale locale) {
+        MessageDigest digest = newDigest();
+        digest.update(fileDigest);
+        StringBuilder parameters = new StringBuilder();
+        parameters.append(KEY_VERSION).append(';').append(converter).append(';').append(sheetIndex).append(';')
+                .append(range == null ? "" : range.formatAsString()).append(';').append(locale);
+        for (E2HOption option : options) {
+            parameters.append(';').append(option.name());
+        }
+        try {
+            digest.update(parameters.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] hash = digest.digest();
+        char[] key = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            key[i * 2] = HEX_DIGITS[hash[i] >> 4 & 0xF];
+            key[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+        return new String(key);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies a stored entry to a file
+     * @return {@code true} if the entry is found, {@code false} otherwise
+     */
+    boolean copyTo(String key, File file) throws IOException {
+        FileInputStream entry;
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                misses.incrementAndGet();
+                return false;
+            }
+            File entryFile = getFile(key);
+            try {
+                entry = new FileInputStream(entryFile);
+            } catch (FileNotFoundException e) {
+                // Deleted by someone else
+                size -= entries.remove(key);
+                misses.incrementAndGet();
+                return false;
+            }
+            entryFile.setLastModified(System.currentTimeMillis());
+        }
+        // The entry is copied after it's opened, so it may be evicted in the meantime
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                transfer(entry.getChannel(), out.getChannel());
+            } finally {
+                out.close();
+            }
+        } finally {
+            entry.close();
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stores a copy of a file as an entry. Files larger than the maximum size aren't stored.
+     */
+    void put(String key, File file) throws IOException {
+        long length = file.length();
+        if (length > maxSize) {
+            return;
+        }
+        File temp = File.createTempFile("e2h", ".tmp", directory);
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileOutputStream out = new FileOutputStream(temp);
+                try {
+                    transfer(in.getChannel(), out.getChannel());
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            synchronized (this) {
+                File entryFile = getFile(key);
+                // Some platforms can't rename a file to an existing one
+                if (!temp.renameTo(entryFile) && !(entryFile.delete() && temp.renameTo(entryFile))) {
+                    if (!entryFile.exists() && entries.containsKey(key)) {
+                        size -= entries.remove(key);
+                    }
+                    throw new IOException("Can't rename " + temp + " to " + entryFile);
+                }
+                Long previous = entries.put(key, length);
+                size += length - (previous == null ? 0 : previous);
+                evict();
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the size of the cache doesn't exceed the maximum size
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            getFile(entry.getKey()).delete();
+            size -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    /**
+     * Copies a file channel to another one, without copying the bytes into the memory of the JVM where the platform
+     * allows it
+     */
+    private static void transfer(FileChannel from, FileChannel to) throws IOException {
+        long length = from.size();
+        long position = 0;
+        while (position < length) {
+            long n = from.transferTo(position, length - position, to);
+            if (n <= 0) {
+                // The file has been truncated
+                break;
+            }
+            position += n;
+        }
+    }
+}
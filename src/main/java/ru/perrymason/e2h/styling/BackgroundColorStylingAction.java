@@ -1,17 +1,23 @@
 package ru.perrymason.e2h.styling;
 
-import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
 import ru.perrymason.e2h.Excel2Html;
 
 public abstract class BackgroundColorStylingAction implements StylingAction {
     @Override
-    public void perform(Cell cell, CellStyle cellStyle, Excel2Html.CellSpans cellSpans, StringBuilder htmlStyle) {
+    public void perform(CellStyle cellStyle, CellType cellType, int columnIndex, Excel2Html.CellSpans cellSpans,
+                        StringBuilder htmlStyle) {
         String cssColor = getBackgroundColor(cellStyle);
         if (cssColor.length() > 0) {
             htmlStyle.append("background-color:").append(cssColor).append(";");
         }
     }
 
+    @Override
+    public boolean isStyleInvariant() {
+        return true;
+    }
+
     protected abstract String getBackgroundColor(CellStyle cellStyle);
 }
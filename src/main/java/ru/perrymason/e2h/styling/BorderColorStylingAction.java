@@ -4,5 +4,11 @@ import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
 
 abstract class BorderColorStylingAction implements StylingAction {
+
+    @Override
+    public boolean isStyleInvariant() {
+        return true;
+    }
+
     protected abstract String getBorderColor(XSSFCellBorder.BorderSide border, CellStyle cellStyle);
 }
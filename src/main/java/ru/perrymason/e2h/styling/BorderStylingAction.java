@@ -1,15 +1,16 @@
 package ru.perrymason.e2h.styling;
 
 import org.apache.poi.ss.usermodel.BorderStyle;
-import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
 import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
 import ru.perrymason.e2h.Excel2Html;
 
 public abstract class BorderStylingAction extends BorderColorStylingAction {
 
     @Override
-    public void perform(Cell cell, CellStyle cellStyle, Excel2Html.CellSpans cellSpans, StringBuilder htmlStyle) {
+    public void perform(CellStyle cellStyle, CellType cellType, int columnIndex, Excel2Html.CellSpans cellSpans,
+                        StringBuilder htmlStyle) {
         htmlStyle.append(getBorderStyle(XSSFCellBorder.BorderSide.TOP, cellStyle.getBorderTopEnum(), cellStyle));
         htmlStyle.append(getBorderStyle(XSSFCellBorder.BorderSide.RIGHT, cellStyle.getBorderRightEnum(), cellStyle));
         htmlStyle.append(getBorderStyle(XSSFCellBorder.BorderSide.BOTTOM, cellStyle.getBorderBottomEnum(), cellStyle));
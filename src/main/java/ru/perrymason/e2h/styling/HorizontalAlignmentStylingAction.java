@@ -1,13 +1,14 @@
 package ru.perrymason.e2h.styling;
 
-import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
 import ru.perrymason.e2h.Excel2Html;
 
 public abstract class HorizontalAlignmentStylingAction implements StylingAction {
 
     @Override
-    public void perform(Cell cell, CellStyle cellStyle, Excel2Html.CellSpans cellSpans, StringBuilder htmlStyle) {
+    public void perform(CellStyle cellStyle, CellType cellType, int columnIndex, Excel2Html.CellSpans cellSpans,
+                        StringBuilder htmlStyle) {
         switch (cellStyle.getAlignmentEnum()) {
             case LEFT:
                 htmlStyle.append("text-align:left;");
@@ -23,7 +24,7 @@ public abstract class HorizontalAlignmentStylingAction implements StylingAction
                 break;
             case GENERAL:
             default:
-                switch (cell.getCellTypeEnum()) {
+                switch (cellType) {
                     case NUMERIC:
                         htmlStyle.append("text-align:right;");
                         break;
@@ -42,5 +43,10 @@ public abstract class HorizontalAlignmentStylingAction implements StylingAction
         }
     }
 
+    @Override
+    public boolean isStyleInvariant() {
+        return false;
+    }
+
     protected abstract boolean isEvaluateFormulas();
 }
@@ -1,13 +1,14 @@
 package ru.perrymason.e2h.styling;
 
-import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
 import ru.perrymason.e2h.Excel2Html;
 
 public abstract class RotationStylingAction implements StylingAction {
 
     @Override
-    public void perform(Cell cell, CellStyle cellStyle, Excel2Html.CellSpans cellSpans, StringBuilder htmlStyle) {
+    public void perform(CellStyle cellStyle, CellType cellType, int columnIndex, Excel2Html.CellSpans cellSpans,
+                        StringBuilder htmlStyle) {
         short degree = getCssRotation(cellStyle.getRotation());
         if (degree != 0) {
             htmlStyle.append("transform:rotate(").append(degree).append("deg);");
@@ -17,5 +18,10 @@ public abstract class RotationStylingAction implements StylingAction {
         }
     }
 
+    @Override
+    public boolean isStyleInvariant() {
+        return true;
+    }
+
     protected abstract short getCssRotation(short rotation);
 }
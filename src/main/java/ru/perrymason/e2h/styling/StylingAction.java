@@ -1,9 +1,32 @@
 package ru.perrymason.e2h.styling;
 
-import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
 import ru.perrymason.e2h.Excel2Html;
 
+/**
+ * Appends css properties of a cell style to the css of cells.
+ * <p>Actions don't get a <tt>Cell</tt> after 0.1.0, as the streaming converters have no cells. An action of 0.1.0
+ * reading its cell has to get the value it needs from the arguments, i.e. the type of the cell, and to tell whether
+ * its result depends on them with {@link #isStyleInvariant()}.</p>
+ */
 public interface StylingAction {
-    void perform(Cell cell, CellStyle cellStyle, Excel2Html.CellSpans cellSpans, StringBuilder htmlStyle);
+
+    /**
+     * Appends css properties for a cell to {@code htmlStyle}. The result must depend only on given arguments, so it can
+     * be cached by the converter.
+     * @param cellStyle style of the cell
+     * @param cellType type of the cell
+     * @param columnIndex index of the cell column
+     * @param cellSpans spans of the cell or {@code null} if the cell is not merged
+     * @param htmlStyle css properties of the cell
+     */
+    void perform(CellStyle cellStyle, CellType cellType, int columnIndex, Excel2Html.CellSpans cellSpans,
+                 StringBuilder htmlStyle);
+
+    /**
+     * Returns {@code true} if the result of {@link #perform} depends only on a {@link CellStyle}, so it may be computed
+     * once for every cell style. Otherwise the result depends also on the cell type, the column and the spans.
+     */
+    boolean isStyleInvariant();
 }
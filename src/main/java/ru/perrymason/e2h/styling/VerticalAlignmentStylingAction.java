@@ -1,12 +1,13 @@
 package ru.perrymason.e2h.styling;
 
-import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
 import ru.perrymason.e2h.Excel2Html;
 
 public class VerticalAlignmentStylingAction implements StylingAction {
     @Override
-    public void perform(Cell cell, CellStyle cellStyle, Excel2Html.CellSpans cellSpans, StringBuilder htmlStyle) {
+    public void perform(CellStyle cellStyle, CellType cellType, int columnIndex, Excel2Html.CellSpans cellSpans,
+                        StringBuilder htmlStyle) {
         switch (cellStyle.getVerticalAlignmentEnum()) {
             case TOP:
                 htmlStyle.append("vertical-align:top;");
@@ -19,4 +20,9 @@ public class VerticalAlignmentStylingAction implements StylingAction {
                 htmlStyle.append("vertical-align:bottom;");
         }
     }
+
+    @Override
+    public boolean isStyleInvariant() {
+        return true;
+    }
 }
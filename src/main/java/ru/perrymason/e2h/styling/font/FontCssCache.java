@@ -0,0 +1,43 @@
+package ru.perrymason.e2h.styling.font;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Css properties of fonts of a workbook computed by {@link FontStylingAction}s, shared by converters of the workbook,
+ * so the properties of a font are computed once per workbook rather than once per conversion.
+ * <p>The properties are cached by the class of an action and the font index, so converters sharing a cache must
+ * convert the same workbook with the same hooks. The cache must be cleared if fonts of the workbook are changed.</p>
+ * <p>The cache is thread-safe.</p>
+ */
+public final class FontCssCache {
+
+    private final Map<Class<?>, String[]> fontCss = new HashMap<Class<?>, String[]>();
+
+    /**
+     * @return cached css properties of a font, {@code null} if they aren't cached
+     */
+    synchronized String get(Class<?> action, int fontIndex) {
+        String[] css = fontCss.get(action);
+        return css != null && fontIndex < css.length ? css[fontIndex] : null;
+    }
+
+    synchronized void put(Class<?> action, int fontIndex, String css) {
+        String[] actionCss = fontCss.get(action);
+        if (actionCss == null) {
+            actionCss = new String[fontIndex + 1];
+        } else if (fontIndex >= actionCss.length) {
+            actionCss = Arrays.copyOf(actionCss, Math.max(fontIndex + 1, actionCss.length * 2));
+        }
+        actionCss[fontIndex] = css;
+        fontCss.put(action, actionCss);
+    }
+
+    /**
+     * Forgets all of the cached properties
+     */
+    public synchronized void clear() {
+        fontCss.clear();
+    }
+}
@@ -1,9 +1,6 @@
 package ru.perrymason.e2h.styling.font;
 
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.Font;
-import ru.perrymason.e2h.Excel2Html;
 
 public class FontSizeStylingAction extends FontStylingAction {
 
@@ -12,9 +9,8 @@ public class FontSizeStylingAction extends FontStylingAction {
     }
 
     @Override
-    public void perform(Cell cell, CellStyle cellStyle, Excel2Html.CellSpans cellSpans, StringBuilder htmlStyle) {
-        Font font = fontResolver.getFont(cellStyle);
-        htmlStyle.append("font-size:").append(font.getFontHeightInPoints()).append("pt;");
+    protected String getFontCss(Font font) {
+        return "font-size:" + font.getFontHeightInPoints() + "pt;";
     }
 
 }
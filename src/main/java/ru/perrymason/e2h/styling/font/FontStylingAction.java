@@ -1,16 +1,68 @@
 package ru.perrymason.e2h.styling.font;
 
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
 import org.apache.poi.ss.usermodel.Font;
+import ru.perrymason.e2h.Excel2Html;
 import ru.perrymason.e2h.styling.StylingAction;
 
+import java.util.Arrays;
+
+/**
+ * An action whose css properties depend only on the font of a cell style. The properties are computed once per font
+ * index and are reused for all cell styles with the same font. With a {@link FontCssCache} they are also reused by
+ * actions of other converters of the workbook.
+ */
 public abstract class FontStylingAction implements StylingAction {
 
     protected final FontResolver fontResolver;
 
+    private String[] fontCss = new String[0];
+    private FontCssCache fontCssCache;
+
     protected FontStylingAction(FontResolver fontResolver) {
         this.fontResolver = fontResolver;
     }
 
+    /**
+     * Sets a cache of css properties shared by converters of the workbook
+     * @param fontCssCache a cache, or {@code null} to compute the properties for this action only
+     */
+    public void setFontCssCache(FontCssCache fontCssCache) {
+        this.fontCssCache = fontCssCache;
+    }
+
+    @Override
+    public boolean isStyleInvariant() {
+        return true;
+    }
+
+    @Override
+    public void perform(CellStyle cellStyle, CellType cellType, int columnIndex, Excel2Html.CellSpans cellSpans,
+                        StringBuilder htmlStyle) {
+        int fontIndex = cellStyle.getFontIndex() & 0xFFFF;
+        if (fontIndex >= fontCss.length) {
+            fontCss = Arrays.copyOf(fontCss, Math.max(fontIndex + 1, fontCss.length * 2));
+        }
+        String css = fontCss[fontIndex];
+        if (css == null) {
+            css = fontCssCache == null ? null : fontCssCache.get(getClass(), fontIndex);
+            if (css == null) {
+                css = getFontCss(fontResolver.getFont(cellStyle));
+                if (fontCssCache != null) {
+                    fontCssCache.put(getClass(), fontIndex, css);
+                }
+            }
+            fontCss[fontIndex] = css;
+        }
+        htmlStyle.append(css);
+    }
+
+    /**
+     * @return css properties of a font, an empty string if there are none
+     */
+    protected abstract String getFontCss(Font font);
+
     protected final String getFontFamilies(Font font) {
         String fontName = font.getFontName();
         if (fontName.length() == 0) {
@@ -0,0 +1,132 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class ConversionPlanTest {
+
+    @Test
+    public void compilesOptionsToSteps() {
+        assertEquals(Arrays.asList(ConversionPlan.Step.BORDER_COLOR_ONLY),
+                new ConversionPlan(EnumSet.of(E2HOption.BORDER_COLOR)).getSteps());
+        assertEquals(Arrays.asList(ConversionPlan.Step.BORDER_WITHOUT_COLOR, ConversionPlan.Step.WIDTH),
+                new ConversionPlan(EnumSet.of(E2HOption.BORDER_STYLE, E2HOption.CELL_WIDTH)).getSteps());
+        // Widths are written by the colgroup
+        assertEquals(Arrays.asList(ConversionPlan.Step.BORDER),
+                new ConversionPlan(EnumSet.of(E2HOption.BORDER_STYLE, E2HOption.BORDER_COLOR, E2HOption.CELL_WIDTH,
+                        E2HOption.COLGROUP)).getSteps());
+        assertEquals(Arrays.asList(ConversionPlan.Step.FULL_BUNDLED_FONT, ConversionPlan.Step.FONT_COLOR),
+                new ConversionPlan(E2HOption.FONT).getSteps());
+        assertEquals(Arrays.asList(ConversionPlan.Step.FONT_SIZE, ConversionPlan.Step.FONT_STYLE),
+                new ConversionPlan(EnumSet.of(E2HOption.FONT_STYLE, E2HOption.FONT_SIZE)).getSteps());
+    }
+
+    @Test
+    public void isImmutable() {
+        EnumSet<E2HOption> options = EnumSet.of(E2HOption.FONT_SIZE);
+        ConversionPlan plan = new ConversionPlan(options, "c");
+        options.add(E2HOption.CSS_CLASSES);
+        plan.getOptions().add(E2HOption.CSS_CLASSES);
+        assertEquals(EnumSet.of(E2HOption.FONT_SIZE), plan.getOptions());
+        try {
+            new ConversionPlan(options, "");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void converterRecompilesPlanOnlyWhenOptionsChange() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Excel2Html converter = Excel2Html.getConverter(workbook.createSheet(), CellRangeAddress.valueOf("A1:B2"));
+        converter.addOption(E2HOption.FONT_SIZE);
+        ConversionPlan plan = converter.getPlan();
+        assertSame(plan, converter.getPlan());
+        converter.setCssClassPrefix("c");
+        assertNotSame(plan, converter.getPlan());
+        plan = converter.getPlan();
+        converter.addOption(E2HOption.FONT_SIZE);
+        assertSame(plan, converter.getPlan());
+
+        ConversionPlan shared = new ConversionPlan(EnumSet.of(E2HOption.CSS_CLASSES), "p");
+        converter.setPlan(shared);
+        assertSame(shared, converter.getPlan());
+        assertEquals(EnumSet.of(E2HOption.CSS_CLASSES), converter.getOptions());
+        assertEquals("p", converter.getCssClassPrefix());
+        workbook.close();
+    }
+
+    private static String convert(Excel2Html converter) throws Exception {
+        StringWriter html = new StringWriter();
+        converter.writeHtml(html);
+        return html.toString();
+    }
+
+    @Test
+    public void sharedPlanConvertsLikeSingleConverter() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        final Sheet sheet = workbook.createSheet();
+        CellStyle bold = workbook.createCellStyle();
+        Font font = workbook.createFont();
+        font.setBold(true);
+        bold.setFont(font);
+        for (int rowNum = 0; rowNum < 200; rowNum++) {
+            Row row = sheet.createRow(rowNum);
+            row.createCell(0).setCellValue(rowNum);
+            row.createCell(1).setCellValue("r" + rowNum);
+            row.getCell(rowNum % 2).setCellStyle(bold);
+        }
+        sheet.addMergedRegion(CellRangeAddress.valueOf("A10:B12"));
+        EnumSet<E2HOption> options = EnumSet.copyOf(E2HOption.STANDARD_OPTIONS);
+        options.add(E2HOption.CSS_CLASSES);
+        final ConversionPlan plan = new ConversionPlan(options);
+
+        Excel2Html converter = plan.getConverter(sheet, CellRangeAddress.valueOf("A1:B200"));
+        String expected = convert(converter);
+        // A converter doesn't keep state of a conversion
+        assertEquals(expected, convert(converter));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        // Sheets of a workbook are read by one thread at a time
+                        synchronized (sheet) {
+                            return convert(plan.getConverter(sheet, CellRangeAddress.valueOf("A1:B200")));
+                        }
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        workbook.close();
+    }
+}
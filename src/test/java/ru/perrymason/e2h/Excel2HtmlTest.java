@@ -0,0 +1,394 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Color;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+import ru.perrymason.e2h.styling.StylingAction;
+import ru.perrymason.e2h.styling.font.FontResolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Excel2HtmlTest {
+
+    @Test
+    public void customConverterGetsActionsFromHooks() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet();
+        sheet.createRow(0).createCell(0).setCellValue("a");
+
+        Excel2Html converter = new Excel2Html(sheet, CellRangeAddress.valueOf("A1")) {
+            @Override
+            protected String getCssColor(Color color) {
+                return "black";
+            }
+
+            @Override
+            protected StylingAction getBorderStylingAction() {
+                return null;
+            }
+
+            @Override
+            protected StylingAction getBorderColorOnlyStylingAction() {
+                return null;
+            }
+
+            @Override
+            protected StylingAction getBackgroundColorStylingAction() {
+                return null;
+            }
+
+            @Override
+            protected FontResolver getFontResolver() {
+                return null;
+            }
+
+            @Override
+            protected StylingAction getFontColorStylingAction() {
+                return null;
+            }
+
+            @Override
+            protected StylingAction getRotationStylingAction() {
+                return new StylingAction() {
+                    @Override
+                    public void perform(CellStyle cellStyle, CellType cellType, int columnIndex,
+                                        Excel2Html.CellSpans cellSpans, StringBuilder htmlStyle) {
+                        htmlStyle.append("transform:none;");
+                    }
+
+                    @Override
+                    public boolean isStyleInvariant() {
+                        return true;
+                    }
+                };
+            }
+        };
+        converter.addOption(E2HOption.TEXT_ROTATION);
+        StringWriter html = new StringWriter();
+        converter.writeHtml(html);
+        assertEquals("<table style=\"border-collapse: collapse;\"><tr><td style=\"transform:none;\">a</td></tr>"
+                + "</table>", html.toString());
+        workbook.close();
+    }
+
+    @Test
+    public void writesRowsLikeModel() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet();
+        CellStyle bold = workbook.createCellStyle();
+        Font font = workbook.createFont();
+        font.setBold(true);
+        bold.setFont(font);
+        sheet.createRow(0).createCell(0).setCellValue("Header");
+        // Rows in several bands, with a run of empty rows crossing the bounds of bands
+        for (int rowNum = 1; rowNum < 6000; rowNum += rowNum < 1000 || rowNum > 5000 ? 7 : 1000) {
+            Row row = sheet.createRow(rowNum);
+            row.createCell(rowNum % 3).setCellValue(rowNum);
+            if (rowNum > 5000) {
+                row.createCell(3).setCellValue("b" + rowNum);
+                row.getCell(3).setCellStyle(bold);
+            }
+        }
+        sheet.addMergedRegion(CellRangeAddress.valueOf("B2040:C2060"));
+
+        List<EnumSet<E2HOption>> profiles = new ArrayList<EnumSet<E2HOption>>();
+        EnumSet<E2HOption> sparse = EnumSet.of(E2HOption.SPARSE, E2HOption.CSS_CLASSES,
+                E2HOption.HORIZONTAL_ALIGNMENT, E2HOption.USE_TABLE_HEADERS);
+        sparse.addAll(E2HOption.FONT);
+        profiles.add(sparse);
+        profiles.add(EnumSet.copyOf(E2HOption.STANDARD_OPTIONS));
+        for (EnumSet<E2HOption> options : profiles) {
+            Excel2Html converter = Excel2Html.getConverter(sheet, CellRangeAddress.valueOf("A1:E6000"));
+            converter.replaceOptions(options);
+            StringWriter model = new StringWriter();
+            converter.createModel().writeHtml(model);
+            final int[] rows = new int[1];
+            converter.setListener(new ConversionListener() {
+                @Override
+                public void rangeRead(int rowCount, int cellCount, int mergedRegionCount) {
+                    rows[0] = rowCount;
+                }
+            });
+            StringWriter html = new StringWriter();
+            converter.writeHtml(html);
+            assertEquals(model.toString(), html.toString());
+            assertEquals(sheet.getPhysicalNumberOfRows(), rows[0]);
+        }
+        workbook.close();
+    }
+
+    @Test
+    public void concurrentModelIsSameAsSingleThreaded() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet();
+        CellStyle[] styles = new CellStyle[5];
+        for (int i = 0; i < styles.length; i++) {
+            styles[i] = workbook.createCellStyle();
+            Font font = workbook.createFont();
+            font.setFontHeightInPoints((short) (10 + i));
+            styles[i].setFont(font);
+        }
+        sheet.createRow(0).createCell(0).setCellValue("Header");
+        for (int rowNum = 1; rowNum < 7000; rowNum++) {
+            Row row = sheet.createRow(rowNum);
+            row.createCell(0).setCellValue(rowNum);
+            row.createCell(1).setCellFormula("A" + (rowNum + 1) + "*2");
+            // Styles are met by bands in a different order than by rows
+            row.createCell(2).setCellValue("c" + rowNum);
+            row.getCell(2).setCellStyle(styles[(7000 - rowNum) / 1500]);
+        }
+        // Regions crossing the bounds of bands
+        sheet.addMergedRegion(CellRangeAddress.valueOf("D2040:E2060"));
+        sheet.addMergedRegion(CellRangeAddress.valueOf("D4090:D4100"));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            EnumSet<E2HOption> options = EnumSet.copyOf(E2HOption.STANDARD_OPTIONS);
+            options.add(E2HOption.CSS_CLASSES);
+            options.add(E2HOption.EVALUATE_FORMULAS);
+            for (int i = 0; i < 2; i++) {
+                Excel2Html converter = Excel2Html.getConverter(sheet, CellRangeAddress.valueOf("A1:E7000"));
+                converter.replaceOptions(options);
+                if (i == 1) {
+                    // A formatter set by an application is shared by the bands
+                    converter.setDataFormatter(new DataFormatter());
+                }
+                StringWriter expected = new StringWriter();
+                converter.createModel().writeHtml(expected);
+                StringWriter html = new StringWriter();
+                converter.createModel(executor).writeHtml(html);
+                assertEquals(expected.toString(), html.toString());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        workbook.close();
+    }
+
+    /**
+     * Creates formulas with results cached before their argument was changed, and a formula without a cached result
+     * in a workbook
+     */
+    private static byte[] createStaleFormulas(Workbook workbook) throws Exception {
+        Row row = workbook.createSheet().createRow(0);
+        row.createCell(0).setCellValue(2);
+        row.createCell(1).setCellFormula("A1*3");
+        row.createCell(2).setCellFormula("\"x\"&A1");
+        FormulaEvaluator evaluator = workbook.getCreationHelper().createFormulaEvaluator();
+        evaluator.evaluateFormulaCell(row.getCell(1));
+        evaluator.evaluateFormulaCell(row.getCell(2));
+        row.getCell(0).setCellValue(5);
+        row.createCell(3).setCellFormula("A1+100");
+        return TestWorkbooks.toBytes(workbook);
+    }
+
+    @Test
+    public void displaysCachedFormulaResults() throws Exception {
+        byte[] xlsx = createStaleFormulas(new XSSFWorkbook());
+        String table = "<table style=\"border-collapse: collapse;\"><tr><td>5</td>";
+        assertEquals(table + "<td>6</td><td>x2</td><td>A1+100</td></tr></table>",
+                TestWorkbooks.excel2Html(xlsx, "A1:D1", EnumSet.of(E2HOption.CACHED_FORMULA_RESULTS)));
+        // Formulas without a cached result are evaluated
+        assertEquals(table + "<td>6</td><td>x2</td><td>105</td></tr></table>", TestWorkbooks.excel2Html(xlsx, "A1:D1",
+                EnumSet.of(E2HOption.CACHED_FORMULA_RESULTS, E2HOption.EVALUATE_FORMULAS)));
+        assertEquals(table + "<td>15</td><td>x5</td><td>105</td></tr></table>",
+                TestWorkbooks.excel2Html(xlsx, "A1:D1", EnumSet.of(E2HOption.EVALUATE_FORMULAS)));
+        assertEquals(TestWorkbooks.excel2Html(xlsx, "A1:C1", EnumSet.of(E2HOption.CACHED_FORMULA_RESULTS)),
+                TestWorkbooks.streamingXssf2Html(xlsx, "A1:C1", EnumSet.of(E2HOption.CACHED_FORMULA_RESULTS)));
+
+        byte[] xls = createStaleFormulas(new HSSFWorkbook());
+        assertEquals(table + "<td>6</td><td>x2</td></tr></table>",
+                TestWorkbooks.excel2Html(xls, "A1:C1", EnumSet.of(E2HOption.CACHED_FORMULA_RESULTS)));
+        assertEquals(TestWorkbooks.excel2Html(xls, "A1:C1", EnumSet.of(E2HOption.CACHED_FORMULA_RESULTS)),
+                TestWorkbooks.streamingHssf2Html(xls, "A1:C1", EnumSet.of(E2HOption.CACHED_FORMULA_RESULTS)));
+    }
+
+    private static byte[] createColumns(Workbook workbook) throws Exception {
+        Sheet sheet = workbook.createSheet();
+        sheet.setColumnWidth(0, 2000);
+        sheet.setColumnWidth(2, 6000);
+        for (int rowNum = 0; rowNum < 3; rowNum++) {
+            Row row = sheet.createRow(rowNum);
+            for (int column = 0; column < 3; column++) {
+                row.createCell(column).setCellValue(rowNum + ":" + column);
+            }
+        }
+        return TestWorkbooks.toBytes(workbook);
+    }
+
+    @Test
+    public void writesColumnWidthsOnceInColgroup() throws Exception {
+        byte[] xlsx = createColumns(new XSSFWorkbook());
+        String cellWidths = TestWorkbooks.excel2Html(xlsx, "A1:C3", EnumSet.of(E2HOption.CELL_WIDTH));
+        Matcher width = Pattern.compile("<td style=\"width:([0-9.]+)px;\">").matcher(cellWidths);
+        StringBuilder colgroup = new StringBuilder("<colgroup>");
+        float tableWidth = 0;
+        for (int column = 0; column < 3; column++) {
+            assertTrue(width.find());
+            colgroup.append("<col style=\"width:").append(width.group(1)).append("px;\"/>");
+            tableWidth += Float.parseFloat(width.group(1));
+        }
+        colgroup.append("</colgroup>");
+
+        EnumSet<E2HOption> options = EnumSet.of(E2HOption.CELL_WIDTH, E2HOption.COLGROUP);
+        String html = TestWorkbooks.excel2Html(xlsx, "A1:C3", options);
+        assertTrue(html, html.startsWith("<table style=\"border-collapse: collapse;table-layout:fixed;width:"
+                + tableWidth + "px;\">" + colgroup + "<tr><td>0:0</td>"));
+        assertFalse(html, html.contains("<td style="));
+        assertEquals(html, TestWorkbooks.streamingXssf2Html(xlsx, "A1:C3", options));
+
+        byte[] xls = createColumns(new HSSFWorkbook());
+        assertEquals(TestWorkbooks.excel2Html(xls, "A1:C3", options),
+                TestWorkbooks.streamingHssf2Html(xls, "A1:C3", options));
+    }
+
+    /**
+     * Records metrics of a conversion
+     */
+    private static final class RecordingListener extends ConversionListener {
+        final EnumSet<Phase> phases = EnumSet.noneOf(Phase.class);
+        final List<Integer> counts = new ArrayList<Integer>();
+        long size = -1;
+
+        @Override
+        public void phaseCompleted(Phase phase, long nanos) {
+            assertTrue(nanos >= 0);
+            phases.add(phase);
+        }
+
+        @Override
+        public void rangeRead(int rows, int cells, int mergedRegions) {
+            counts.add(rows);
+            counts.add(cells);
+            counts.add(mergedRegions);
+        }
+
+        @Override
+        public void stylesResolved(int lookups, int misses) {
+            counts.add(lookups);
+            counts.add(misses);
+        }
+
+        @Override
+        public void htmlWritten(long size) {
+            this.size = size;
+        }
+    }
+
+    @Test
+    public void reportsMetricsToListener() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet();
+        for (int rowNum = 0; rowNum < 5; rowNum++) {
+            Row row = sheet.createRow(rowNum);
+            for (int column = 0; column < 3; column++) {
+                row.createCell(column).setCellValue("\u00e9" + rowNum + column);
+            }
+        }
+        sheet.addMergedRegion(CellRangeAddress.valueOf("E1:F2"));
+        Excel2Html converter = Excel2Html.getConverter(sheet, CellRangeAddress.valueOf("A1:F5"));
+        converter.addOption(E2HOption.FONT_SIZE);
+        converter.addOption(E2HOption.HORIZONTAL_ALIGNMENT);
+        // 5 rows, 15 cells and 1 region, 15 lookups of 1 style and cell type
+        List<Integer> counts = Arrays.asList(5, 15, 1, 15, 1);
+        EnumSet<ConversionListener.Phase> phases = EnumSet.range(ConversionListener.Phase.READ,
+                ConversionListener.Phase.WRITE);
+
+        RecordingListener listener = new RecordingListener();
+        converter.setListener(listener);
+        StringWriter html = new StringWriter();
+        converter.writeHtml(html);
+        assertEquals(counts, listener.counts);
+        assertEquals(phases, listener.phases);
+        assertEquals(html.toString().length(), listener.size);
+
+        // Style lookups of the pass resolving css classes aren't counted
+        converter.addOption(E2HOption.CSS_CLASSES);
+        listener = new RecordingListener();
+        converter.setListener(listener);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        converter.writeHtml(bytes);
+        assertEquals(counts, listener.counts);
+        assertEquals(bytes.size(), listener.size);
+
+        listener = new RecordingListener();
+        converter.setListener(listener);
+        converter.createModel();
+        assertEquals(counts, listener.counts);
+        assertEquals(EnumSet.range(ConversionListener.Phase.READ, ConversionListener.Phase.EVALUATE_FORMULAS),
+                listener.phases);
+        workbook.close();
+    }
+
+    @Test
+    public void writesWindowsLikeRangesOfTheirRows() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet();
+        CellStyle bold = workbook.createCellStyle();
+        Font font = workbook.createFont();
+        font.setBold(true);
+        bold.setFont(font);
+        for (int rowNum = 0; rowNum < 30; rowNum++) {
+            if (rowNum == 15) {
+                continue;
+            }
+            Row row = sheet.createRow(rowNum);
+            for (int column = 0; column < 4; column++) {
+                row.createCell(column).setCellValue(rowNum * 10 + column);
+            }
+            row.getCell(rowNum % 4).setCellStyle(bold);
+        }
+        sheet.addMergedRegion(CellRangeAddress.valueOf("B5:C12"));
+        sheet.addMergedRegion(CellRangeAddress.valueOf("A20:D21"));
+
+        Excel2Html converter = Excel2Html.getConverter(sheet, CellRangeAddress.valueOf("A1:D30"));
+        converter.addOption(E2HOption.STANDARD_OPTIONS);
+        // Windows have no style sheet and no header rows
+        converter.addOption(E2HOption.CSS_CLASSES);
+        converter.addOption(E2HOption.USE_TABLE_HEADERS);
+        int[][] windows = {{0, 9}, {10, 19}, {5, 14}, {19, 19}, {20, 29}, {0, 29}};
+        for (int[] window : windows) {
+            Excel2Html rows = Excel2Html.getConverter(sheet, new CellRangeAddress(window[0], window[1], 0, 3));
+            rows.addOption(E2HOption.STANDARD_OPTIONS);
+            StringWriter table = new StringWriter();
+            rows.writeHtml(table);
+            String expected = table.toString();
+            expected = expected.substring(expected.indexOf('>') + 1, expected.length() - "</table>".length());
+
+            StringWriter html = new StringWriter();
+            converter.writeRows(window[0], window[1], html);
+            assertEquals(expected, html.toString());
+        }
+        try {
+            converter.writeRows(25, 30, new StringWriter());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        workbook.close();
+    }
+}
@@ -0,0 +1,124 @@
+package ru.perrymason.e2h;
+
+import org.junit.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HtmlWriterTest {
+
+    /**
+     * Writes a table with enough rows to fill several buffers
+     */
+    private static void writeTable(HtmlWriter out) throws XMLStreamException {
+        out.writeStartElement("table");
+        for (int i = 0; i < 20000; i++) {
+            out.writeStartElement("tr");
+            out.writeAttribute("style", "height:" + i + "pt;");
+            out.writeStartElement("td");
+            out.writeCharacters("cell <" + i + "> \u00e9\u4e2d");
+            out.writeEndElement();
+            out.writeEndElement();
+        }
+        out.writeEndDocument();
+        out.close();
+    }
+
+    private static String read(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = stream.read(buffer)) >= 0; ) {
+            bytes.write(buffer, 0, n);
+        }
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
+
+    @Test
+    public void writesGzipToChannel() throws Exception {
+        StringWriter expected = new StringWriter();
+        writeTable(new HtmlWriter(expected));
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        writeTable(new HtmlWriter(Channels.newChannel(gzip), true));
+        assertEquals(expected.toString(),
+                read(new GZIPInputStream(new ByteArrayInputStream(gzip.toByteArray()))));
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        writeTable(new HtmlWriter(Channels.newChannel(plain), false));
+        assertEquals(expected.toString(), new String(plain.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void releasesBufferOfFailedChannel() throws Exception {
+        WritableByteChannel failing = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        for (int i = 0; i < 100; i++) {
+            HtmlWriter out = new HtmlWriter(failing, true);
+            try {
+                writeTable(out);
+                fail();
+            } catch (XMLStreamException e) {
+                assertEquals("Disk full", e.getNestedException().getMessage());
+            } finally {
+                out.release();
+            }
+            // Releasing twice doesn't pool the buffer twice
+            out.release();
+        }
+        // Pooled buffers are cleared, so the output doesn't get bytes of the failed writers
+        StringWriter expected = new StringWriter();
+        writeTable(new HtmlWriter(expected));
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        writeTable(new HtmlWriter(Channels.newChannel(plain), false));
+        assertEquals(expected.toString(), new String(plain.toByteArray(), "UTF-8"));
+    }
+
+    private static void writeSurrogates(HtmlWriter out) throws XMLStreamException {
+        out.writeStartElement("td");
+        out.writeAttribute("title", "\"\ud83d\ude00\"");
+        out.writeCharacters("<\ud83d\ude00&\ud83d>\"\ude00");
+        out.writeEndElement();
+        out.close();
+    }
+
+    @Test
+    public void writesSurrogatePairsAsSingleReferences() throws Exception {
+        StringWriter writer = new StringWriter();
+        writeSurrogates(new HtmlWriter(writer));
+        assertEquals("<td title=\"&quot;\ud83d\ude00&quot;\">&lt;\ud83d\ude00&amp;\ud83d&gt;\"\ude00</td>",
+                writer.toString());
+
+        String encoded = "<td title=\"&quot;&#x1f600;&quot;\">&lt;&#x1f600;&amp;&#xd83d;&gt;\"&#xde00;</td>";
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeSurrogates(new HtmlWriter(stream));
+        assertEquals(encoded, new String(stream.toByteArray(), "UTF-8"));
+
+        ByteArrayOutputStream channel = new ByteArrayOutputStream();
+        writeSurrogates(new HtmlWriter(Channels.newChannel(channel), false));
+        assertEquals(encoded, new String(channel.toByteArray(), "UTF-8"));
+    }
+}
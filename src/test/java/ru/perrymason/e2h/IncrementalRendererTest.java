@@ -0,0 +1,60 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalRendererTest {
+
+    private static SheetModel createModel(Sheet sheet) {
+        Excel2Html converter = Excel2Html.getConverter(sheet, CellRangeAddress.valueOf("A1:C20"));
+        converter.addOption(E2HOption.SPARSE);
+        converter.addOption(E2HOption.USE_TABLE_HEADERS);
+        return converter.createModel();
+    }
+
+    private static String toHtml(SheetModel model) throws Exception {
+        StringWriter html = new StringWriter();
+        model.writeHtml(html);
+        return html.toString();
+    }
+
+    @Test
+    public void rendersOnlyChangedRows() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet();
+        sheet.createRow(0).createCell(0).setCellValue("Header");
+        for (int rowNum = 1; rowNum < 10; rowNum++) {
+            Row row = sheet.createRow(rowNum);
+            row.createCell(0).setCellValue(rowNum);
+            row.createCell(2).setCellValue("r" + rowNum);
+        }
+        sheet.addMergedRegion(CellRangeAddress.valueOf("A12:B13"));
+        IncrementalRenderer renderer = new IncrementalRenderer();
+        SheetModel first = createModel(sheet);
+        assertTrue(renderer.update(first).isFull());
+
+        sheet.getRow(5).getCell(2).setCellValue("changed");
+        SheetModel second = createModel(sheet);
+        for (int rowNum = second.getFirstBodyRow(); rowNum < 20; rowNum++) {
+            assertEquals(String.valueOf(rowNum), rowNum != 5, second.rowEquals(rowNum, first));
+        }
+        IncrementalRenderer.Patch patch = renderer.update(second);
+        assertFalse(patch.isFull());
+        assertEquals(Collections.singleton(5), patch.getRows().keySet());
+
+        StringWriter html = new StringWriter();
+        renderer.writeHtml(second, html);
+        assertEquals(toHtml(second), html.toString());
+        workbook.close();
+    }
+}
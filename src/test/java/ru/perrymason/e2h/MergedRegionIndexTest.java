@@ -0,0 +1,110 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MergedRegionIndexTest {
+
+    /**
+     * Creates regions which don't overlap, one in every 5x5 block of cells, some of them covering a single row
+     */
+    private static List<CellRangeAddress> createRegions(Random random) {
+        List<CellRangeAddress> regions = new ArrayList<CellRangeAddress>();
+        for (int row = 0; row < 100; row += 5) {
+            for (int column = 0; column < 50; column += 5) {
+                if (random.nextInt(3) == 0) {
+                    continue;
+                }
+                int firstRow = row + random.nextInt(5);
+                int firstColumn = column + random.nextInt(5);
+                int lastRow = firstRow + random.nextInt(row + 5 - firstRow);
+                int lastColumn = firstColumn + random.nextInt(column + 5 - firstColumn);
+                if (lastRow > firstRow || lastColumn > firstColumn) {
+                    regions.add(new CellRangeAddress(firstRow, lastRow, firstColumn, lastColumn));
+                }
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Checks every cell of a range against a linear scan of the regions cut by the range
+     */
+    private static void assertIndexed(List<CellRangeAddress> regions, CellRangeAddress range,
+                                      MergedRegionIndex index) {
+        int count = 0;
+        for (CellRangeAddress region : regions) {
+            if (range.intersects(region)) {
+                count++;
+            }
+        }
+        assertEquals(count, index.size());
+        for (int row = range.getFirstRow(); row <= range.getLastRow(); row++) {
+            for (int column = range.getFirstColumn(); column <= range.getLastColumn(); column++) {
+                CellRangeAddress cut = null;
+                for (CellRangeAddress region : regions) {
+                    if (range.intersects(region) && region.isInRange(row, column)) {
+                        cut = new CellRangeAddress(Math.max(region.getFirstRow(), range.getFirstRow()),
+                                Math.min(region.getLastRow(), range.getLastRow()),
+                                Math.max(region.getFirstColumn(), range.getFirstColumn()),
+                                Math.min(region.getLastColumn(), range.getLastColumn()));
+                    }
+                }
+                String cell = row + ":" + column;
+                Excel2Html.CellSpans spans = index.getCellSpans(row, column);
+                if (cut == null) {
+                    assertNull(cell, spans);
+                    assertEquals(cell, false, index.isSpanned(row, column));
+                } else if (cut.getFirstRow() == row && cut.getFirstColumn() == column) {
+                    assertEquals(cell, cut.getLastColumn() - column + 1, spans.getColspan());
+                    assertEquals(cell, cut.getLastRow() - row + 1, spans.getRowspan());
+                    assertEquals(cell, false, index.isSpanned(row, column));
+                } else {
+                    assertNull(cell, spans);
+                    assertEquals(cell, true, index.isSpanned(row, column));
+                }
+            }
+            boolean covered = false;
+            for (CellRangeAddress region : regions) {
+                covered |= range.intersects(region) && region.getFirstRow() <= row && row <= region.getLastRow();
+            }
+            assertEquals(covered, index.getRowSpans(row) != null);
+        }
+    }
+
+    @Test
+    public void findsCellsOfRegionsLikeLinearScan() {
+        Random random = new Random(3);
+        for (int i = 0; i < 5; i++) {
+            List<CellRangeAddress> regions = createRegions(random);
+            CellRangeAddress range = CellRangeAddress.valueOf("C3:AG90");
+            MergedRegionIndex index = new MergedRegionIndex(regions, range);
+            assertIndexed(regions, range, index);
+            // Windows cut regions crossing their bounds
+            CellRangeAddress window = new CellRangeAddress(11, 43, range.getFirstColumn(), range.getLastColumn());
+            assertIndexed(regions, window, index.getWindow(window));
+        }
+    }
+
+    @Test
+    public void findsNextCoveredRow() {
+        List<CellRangeAddress> regions = new ArrayList<CellRangeAddress>();
+        regions.add(CellRangeAddress.valueOf("B3:C4"));
+        regions.add(CellRangeAddress.valueOf("A10:A12"));
+        regions.add(CellRangeAddress.valueOf("D50:E50"));
+        MergedRegionIndex index = new MergedRegionIndex(regions, CellRangeAddress.valueOf("A1:F40"));
+        assertEquals(2, index.getNextCoveredRow(0));
+        assertEquals(3, index.getNextCoveredRow(3));
+        assertEquals(9, index.getNextCoveredRow(4));
+        assertEquals(11, index.getNextCoveredRow(11));
+        // Regions outside of the range aren't indexed
+        assertEquals(Integer.MAX_VALUE, index.getNextCoveredRow(12));
+    }
+}
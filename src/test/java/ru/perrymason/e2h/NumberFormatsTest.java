@@ -0,0 +1,82 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NumberFormatsTest {
+    private static final String[] FORMATS = {"General", "0", "0.00", "#,##0", "#,##0.00", "0.0"};
+
+    /**
+     * Generates values of different magnitudes, with fixed seed, and values rounded differently by formats
+     */
+    private static List<Double> generateValues() {
+        List<Double> values = new ArrayList<Double>();
+        double[] special = {0, -0.0, 0.5, -0.5, 1.5, 2.5, 0.125, 0.005, 0.015, 99999999999d, 100000000000d,
+                999999999999999d, 1E15, 1E16, -1E16, 123456789012.5, 1E-10, Long.MAX_VALUE, Integer.MIN_VALUE};
+        for (double value : special) {
+            values.add(value);
+        }
+        Random random = new Random(20170101);
+        for (int i = 0; i < 2000; i++) {
+            double magnitude = Math.pow(10, random.nextInt(20) - 4);
+            double value = random.nextDouble() * magnitude;
+            if (random.nextBoolean()) {
+                value = -value;
+            }
+            values.add(value);
+            values.add((double) Math.round(value));
+            values.add(Math.round(value) + 0.5);
+        }
+        return values;
+    }
+
+    private static void assertSameAsDataFormatter(Locale locale) throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet();
+        List<Double> values = generateValues();
+        DataFormatter dataFormatter = new DataFormatter(locale);
+        NumberFormats numberFormats = new NumberFormats(dataFormatter, workbook.getNumCellStyles());
+        int formatted = 0;
+        for (int column = 0; column < FORMATS.length; column++) {
+            CellStyle style = workbook.createCellStyle();
+            style.setDataFormat(workbook.createDataFormat().getFormat(FORMATS[column]));
+            for (int i = 0; i < values.size(); i++) {
+                Row row = sheet.getRow(i) != null ? sheet.getRow(i) : sheet.createRow(i);
+                Cell cell = row.createCell(column);
+                cell.setCellValue(values.get(i));
+                cell.setCellStyle(style);
+                String value = numberFormats.format(cell, style);
+                if (value != null) {
+                    formatted++;
+                    assertEquals(FORMATS[column] + " " + values.get(i), dataFormatter.formatCellValue(cell), value);
+                }
+            }
+        }
+        // Most of the formats are compiled, not left to the formatter
+        assertTrue(formatted > values.size());
+        workbook.close();
+    }
+
+    @Test
+    public void formatsNumbersLikeDataFormatter() throws Exception {
+        assertSameAsDataFormatter(Locale.US);
+    }
+
+    @Test
+    public void formatsNumbersLikeGermanDataFormatter() throws Exception {
+        assertSameAsDataFormatter(Locale.GERMANY);
+    }
+}
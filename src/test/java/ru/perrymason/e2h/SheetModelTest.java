@@ -0,0 +1,72 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SheetModelTest {
+
+    /**
+     * Fills a sheet with gaps of rows and cells, and merged regions starting in existing and missing cells
+     */
+    private static byte[] createSparseWorkbook(Workbook workbook) throws Exception {
+        Sheet sheet = workbook.createSheet();
+        sheet.createRow(0).createCell(0).setCellValue("Header");
+        Row row = sheet.createRow(3);
+        row.createCell(1).setCellValue("b4");
+        row.createCell(6).setCellValue("g4");
+        sheet.addMergedRegion(CellRangeAddress.valueOf("C4:E5"));
+        // A region starting in a missing row
+        sheet.addMergedRegion(CellRangeAddress.valueOf("B8:C9"));
+        row = sheet.createRow(8);
+        row.createCell(0).setCellValue("a9");
+        row.createCell(5).setCellValue("f9");
+        sheet.createRow(14).createCell(7).setCellValue("h15");
+        return TestWorkbooks.toBytes(workbook);
+    }
+
+    @Test
+    public void sparseModelWritesMergedCellsLikeStreamingConverters() throws Exception {
+        EnumSet<E2HOption> options = EnumSet.of(E2HOption.SPARSE);
+        byte[] xlsx = createSparseWorkbook(new XSSFWorkbook());
+        String html = TestWorkbooks.excel2Html(xlsx, "A1:J20", options);
+        assertEquals(TestWorkbooks.streamingXssf2Html(xlsx, "A1:J20", options), html);
+        assertTrue(html, html.contains("<td colspan=\"3\" rowspan=\"2\"></td>"));
+        assertTrue(html, html.contains("<td colspan=\"2\" rowspan=\"2\"></td>"));
+
+        byte[] xls = createSparseWorkbook(new HSSFWorkbook());
+        assertEquals(TestWorkbooks.streamingHssf2Html(xls, "A1:J20", options),
+                TestWorkbooks.excel2Html(xls, "A1:J20", options));
+        // The range starts and ends inside merged regions
+        assertEquals(TestWorkbooks.streamingXssf2Html(xlsx, "D5:I8", options),
+                TestWorkbooks.excel2Html(xlsx, "D5:I8", options));
+    }
+
+    @Test
+    public void sparseModelOfWholeSheetStoresExistingCellsOnly() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet();
+        sheet.createRow(0).createCell(0).setCellValue("first");
+        sheet.createRow(1048575).createCell(16383).setCellValue("last");
+        sheet.addMergedRegion(CellRangeAddress.valueOf("B10:C11"));
+
+        Excel2Html converter = Excel2Html.getConverter(sheet, CellRangeAddress.valueOf("A1:XFD1048576"));
+        converter.addOption(E2HOption.SPARSE);
+        SheetModel model = converter.createModel();
+        workbook.close();
+        StringWriter html = new StringWriter();
+        model.writeHtml(html);
+        assertTrue(html.toString(), html.toString().endsWith("<td colspan=\"16383\"></td><td>last</td></tr></table>"));
+        assertTrue(html.toString(), html.toString().length() < 1000);
+    }
+}
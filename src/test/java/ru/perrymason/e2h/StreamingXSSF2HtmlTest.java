@@ -0,0 +1,113 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingXSSF2HtmlTest {
+
+    @Test
+    public void writesFormulaCellsLikeExcel2Html() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Row row = workbook.createSheet().createRow(0);
+        row.createCell(0).setCellValue(1);
+        row.createCell(1).setCellValue(0);
+        Cell error = row.createCell(2);
+        error.setCellFormula("A1/B1");
+        workbook.getCreationHelper().createFormulaEvaluator().evaluateFormulaCellEnum(error);
+        // A formula without a cached result
+        row.createCell(3).setCellFormula("A1+1");
+        byte[] xlsx = TestWorkbooks.toBytes(workbook);
+
+        EnumSet<E2HOption> cached = EnumSet.of(E2HOption.CACHED_FORMULA_RESULTS, E2HOption.HORIZONTAL_ALIGNMENT);
+        String html = TestWorkbooks.streamingXssf2Html(xlsx, "A1:D2", cached);
+        assertEquals(TestWorkbooks.excel2Html(xlsx, "A1:D2", cached), html);
+        assertTrue(html, html.contains(">#DIV/0!</td>"));
+        assertTrue(html, html.contains(">A1+1</td>"));
+
+        EnumSet<E2HOption> formulas = EnumSet.of(E2HOption.HORIZONTAL_ALIGNMENT);
+        html = TestWorkbooks.streamingXssf2Html(xlsx, "A1:D2", formulas);
+        assertEquals(TestWorkbooks.excel2Html(xlsx, "A1:D2", formulas), html);
+        assertTrue(html, html.contains(">A1/B1</td>"));
+    }
+
+    private static CellStyle createStyle(XSSFWorkbook workbook, String format) {
+        CellStyle style = workbook.createCellStyle();
+        style.setDataFormat(workbook.createDataFormat().getFormat(format));
+        return style;
+    }
+
+    private static byte[] createNumbers(boolean date1904) throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        workbook.getCTWorkbook().getWorkbookPr().setDate1904(date1904);
+        Sheet sheet = workbook.createSheet();
+        String[] formats = {"General", "#,##0.00", "0.00", "0.000%", "#,##0.00;[Red]-#,##0.00", "yyyy-mm-dd hh:mm"};
+        double[] values = {30864.195, -30864.195, 0.1 + 0.2, 1234567.8912345678, 12345678901234567d, 43000.5};
+        for (int rowNum = 0; rowNum < values.length; rowNum++) {
+            Row row = sheet.createRow(rowNum);
+            for (int column = 0; column < formats.length; column++) {
+                Cell cell = row.createCell(column);
+                cell.setCellValue(values[rowNum]);
+                cell.setCellStyle(createStyle(workbook, formats[column]));
+            }
+            // A formula with a cached numeric result
+            Cell formula = row.createCell(formats.length);
+            formula.setCellFormula("B" + (rowNum + 1) + "*1");
+            formula.setCellStyle(createStyle(workbook, "#,##0.00"));
+            workbook.getCreationHelper().createFormulaEvaluator().evaluateFormulaCellEnum(formula);
+        }
+        return TestWorkbooks.toBytes(workbook);
+    }
+
+    @Test
+    public void formatsNumbersLikeExcel2Html() throws Exception {
+        byte[] xlsx = createNumbers(false);
+        EnumSet<E2HOption> options = EnumSet.copyOf(E2HOption.STANDARD_OPTIONS);
+        options.add(E2HOption.CACHED_FORMULA_RESULTS);
+        String html = TestWorkbooks.streamingXssf2Html(xlsx, "A1:G6", options);
+        assertEquals(TestWorkbooks.excel2Html(xlsx, "A1:G6", options), html);
+        // Numbers aren't rounded to 15 significant digits before formatting
+        assertTrue(html, html.contains(">30,864.19</td>"));
+
+        options = EnumSet.of(E2HOption.CSS_CLASSES, E2HOption.HORIZONTAL_ALIGNMENT);
+        assertEquals(TestWorkbooks.excel2Html(xlsx, "A1:G6", options),
+                TestWorkbooks.streamingXssf2Html(xlsx, "A1:G6", options));
+
+        xlsx = createNumbers(true);
+        assertEquals(TestWorkbooks.excel2Html(xlsx, "A1:G6", options),
+                TestWorkbooks.streamingXssf2Html(xlsx, "A1:G6", options));
+    }
+
+    @Test
+    public void writesMissingHeaderRowsLikeExcel2Html() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet();
+        Row header = sheet.createRow(0);
+        header.createCell(0).setCellValue("Header");
+        header.createCell(2).setCellValue("C");
+        sheet.addMergedRegion(CellRangeAddress.valueOf("A1:B2"));
+        sheet.createRow(2).createCell(0).setCellValue(1);
+        byte[] xlsx = TestWorkbooks.toBytes(workbook);
+
+        EnumSet<E2HOption> options = EnumSet.of(E2HOption.USE_TABLE_HEADERS);
+        String html = TestWorkbooks.streamingXssf2Html(xlsx, "A1:C3", options);
+        assertEquals(TestWorkbooks.excel2Html(xlsx, "A1:C3", options), html);
+        assertTrue(html, html.contains("<tr style=\"height:15pt;\"></tr>"));
+
+        options.add(E2HOption.SPARSE);
+        assertEquals(TestWorkbooks.excel2Html(xlsx, "A1:C3", options),
+                TestWorkbooks.streamingXssf2Html(xlsx, "A1:C3", options));
+        // The first row of the range is missing, and isn't collapsed with the next missing row
+        assertEquals(TestWorkbooks.excel2Html(xlsx, "A2:C4", options),
+                TestWorkbooks.streamingXssf2Html(xlsx, "A2:C4", options));
+    }
+}
@@ -0,0 +1,202 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.hssf.util.HSSFColor;
+import org.apache.poi.ss.usermodel.BorderStyle;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+import ru.perrymason.e2h.styling.font.FontCssCache;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StylingAlgorithmTest {
+
+    /**
+     * Runs a conversion of a 4x4 range of numbers and strings with a single cell style
+     * @return number of cells which ran the styling actions
+     */
+    private static int countMisses(EnumSet<E2HOption> options) throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet();
+        for (int rowNum = 0; rowNum < 4; rowNum++) {
+            Row row = sheet.createRow(rowNum);
+            for (int column = 0; column < 4; column++) {
+                if (column % 2 == 0) {
+                    row.createCell(column).setCellValue(rowNum * column);
+                } else {
+                    row.createCell(column).setCellValue("r" + rowNum);
+                }
+            }
+        }
+        Excel2Html converter = Excel2Html.getConverter(sheet, CellRangeAddress.valueOf("A1:D4"));
+        converter.replaceOptions(options);
+        final int[] misses = new int[1];
+        converter.setListener(new ConversionListener() {
+            @Override
+            public void stylesResolved(int lookups, int cacheMisses) {
+                misses[0] = cacheMisses;
+            }
+        });
+        converter.writeHtml(new StringWriter());
+        workbook.close();
+        return misses[0];
+    }
+
+    @Test
+    public void styleInvariantActionsRunOncePerStyle() throws Exception {
+        assertEquals(1, countMisses(EnumSet.of(E2HOption.VERTICAL_ALIGNMENT, E2HOption.FONT_SIZE)));
+    }
+
+    @Test
+    public void horizontalAlignmentRunsOncePerCellType() throws Exception {
+        assertEquals(2, countMisses(EnumSet.of(E2HOption.HORIZONTAL_ALIGNMENT, E2HOption.VERTICAL_ALIGNMENT)));
+    }
+
+    @Test
+    public void widthRunsOncePerColumn() throws Exception {
+        assertEquals(4, countMisses(EnumSet.of(E2HOption.CELL_WIDTH, E2HOption.HORIZONTAL_ALIGNMENT)));
+        // Column widths are written once by the colgroup
+        assertEquals(2, countMisses(EnumSet.of(E2HOption.CELL_WIDTH, E2HOption.COLGROUP,
+                E2HOption.HORIZONTAL_ALIGNMENT)));
+    }
+
+    private static String convert(Sheet sheet, FontCssCache fontCssCache) throws Exception {
+        Excel2Html converter = Excel2Html.getConverter(sheet, CellRangeAddress.valueOf("A1:A1"));
+        converter.addOption(E2HOption.FONT_SIZE);
+        converter.setFontCssCache(fontCssCache);
+        StringWriter html = new StringWriter();
+        converter.writeHtml(html);
+        return html.toString();
+    }
+
+    @Test
+    public void fontCssIsSharedByConvertersOfWorkbook() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet();
+        Font font = workbook.createFont();
+        font.setFontHeightInPoints((short) 12);
+        CellStyle style = workbook.createCellStyle();
+        style.setFont(font);
+        Cell cell = sheet.createRow(0).createCell(0);
+        cell.setCellValue("text");
+        cell.setCellStyle(style);
+
+        FontCssCache fontCssCache = new FontCssCache();
+        assertTrue(convert(sheet, fontCssCache).contains("font-size:12pt;"));
+        // The size of the changed font is computed by a converter with its own cache only
+        font.setFontHeightInPoints((short) 20);
+        assertTrue(convert(sheet, fontCssCache).contains("font-size:12pt;"));
+        assertTrue(convert(sheet, null).contains("font-size:20pt;"));
+        fontCssCache.clear();
+        assertTrue(convert(sheet, fontCssCache).contains("font-size:20pt;"));
+        workbook.close();
+    }
+
+    private static List<String> findAll(Pattern pattern, String html) {
+        List<String> found = new ArrayList<String>();
+        Matcher matcher = pattern.matcher(html);
+        while (matcher.find()) {
+            found.add(matcher.group(1));
+        }
+        return found;
+    }
+
+    @Test
+    public void cssClassesReplaceEqualInlineStyles() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        Sheet sheet = workbook.createSheet();
+        Font font = workbook.createFont();
+        font.setBold(true);
+        CellStyle bold = workbook.createCellStyle();
+        bold.setFont(font);
+        for (int rowNum = 0; rowNum < 10; rowNum++) {
+            Row row = sheet.createRow(rowNum);
+            row.createCell(0).setCellValue(rowNum);
+            row.createCell(1).setCellValue("r" + rowNum);
+            row.getCell(rowNum % 2).setCellStyle(bold);
+        }
+        Excel2Html converter = Excel2Html.getConverter(sheet, CellRangeAddress.valueOf("A1:B10"));
+        converter.addOption(E2HOption.FONT_STYLE);
+        converter.addOption(E2HOption.HORIZONTAL_ALIGNMENT);
+        StringWriter inline = new StringWriter();
+        converter.writeHtml(inline);
+        converter.addOption(E2HOption.CSS_CLASSES);
+        converter.setCssClassPrefix("c");
+        StringWriter classes = new StringWriter();
+        converter.writeHtml(classes);
+        workbook.close();
+
+        List<String> styles = findAll(Pattern.compile("<td style=\"([^\"]*)\""), inline.toString());
+        List<String> cssClasses = findAll(Pattern.compile("<td class=\"([^\"]*)\""), classes.toString());
+        assertEquals(styles.size(), cssClasses.size());
+        assertTrue(styles.size() > 10);
+        String html = classes.toString();
+        assertEquals(html.indexOf("<style>"), html.lastIndexOf("<style>"));
+        Map<String, String> rules = new HashMap<String, String>();
+        Matcher rule = Pattern.compile("\\.(c\\d+)\\{([^}]*)\\}").matcher(html.substring(0, html.indexOf("</style>")));
+        while (rule.find()) {
+            assertNull(rules.put(rule.group(1), rule.group(2)));
+        }
+        // One rule per distinct style, and every cell has the style of its inline attribute
+        assertEquals(new HashSet<String>(styles).size(), rules.size());
+        for (int i = 0; i < styles.size(); i++) {
+            assertEquals(styles.get(i), rules.get(cssClasses.get(i)));
+        }
+    }
+
+    @Test
+    public void convertsColorsToCss() throws Exception {
+        XSSFWorkbook xlsx = new XSSFWorkbook();
+        XSSFFont xlsxFont = xlsx.createFont();
+        xlsxFont.setColor(new XSSFColor(new byte[]{(byte) 0x12, (byte) 0xA4, (byte) 0x0F}));
+        XSSFCellStyle xlsxStyle = xlsx.createCellStyle();
+        xlsxStyle.setFont(xlsxFont);
+        xlsxStyle.setBorderTop(BorderStyle.THIN);
+        xlsxStyle.setTopBorderColor(new XSSFColor(new byte[]{(byte) 0xFF, 0, (byte) 0x80}));
+        Cell cell = xlsx.createSheet().createRow(0).createCell(0);
+        cell.setCellValue("a");
+        cell.setCellStyle(xlsxStyle);
+        // Equal colors of different styles get equal css
+        cell = cell.getRow().createCell(1);
+        cell.setCellValue("b");
+        cell.setCellStyle(xlsx.createCellStyle());
+        cell.getCellStyle().cloneStyleFrom(xlsxStyle);
+        String html = TestWorkbooks.excel2Html(TestWorkbooks.toBytes(xlsx), "A1:B1",
+                EnumSet.of(E2HOption.FONT_COLOR, E2HOption.BORDER_COLOR));
+        assertEquals(2, html.split("color:#12A40F;", -1).length - 1);
+        assertEquals(2, html.split("#FF0080", -1).length - 1);
+
+        HSSFWorkbook xls = new HSSFWorkbook();
+        xls.getCustomPalette().setColorAtIndex(HSSFColor.LAVENDER.index, (byte) 0x12, (byte) 0xA4, (byte) 0x0F);
+        Font xlsFont = xls.createFont();
+        xlsFont.setColor(HSSFColor.LAVENDER.index);
+        CellStyle xlsStyle = xls.createCellStyle();
+        xlsStyle.setFont(xlsFont);
+        cell = xls.createSheet().createRow(0).createCell(0);
+        cell.setCellValue("a");
+        cell.setCellStyle(xlsStyle);
+        html = TestWorkbooks.excel2Html(TestWorkbooks.toBytes(xls), "A1", EnumSet.of(E2HOption.FONT_COLOR));
+        assertTrue(html, html.contains("color:rgb(18,164,15);"));
+    }
+}
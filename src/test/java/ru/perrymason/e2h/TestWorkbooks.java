@@ -0,0 +1,79 @@
+package ru.perrymason.e2h;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.EnumSet;
+
+/**
+ * Converts workbooks created by tests with different converters
+ */
+final class TestWorkbooks {
+
+    private TestWorkbooks() {
+    }
+
+    static byte[] toBytes(Workbook workbook) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            workbook.write(bytes);
+        } finally {
+            workbook.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Converts a range of the first sheet of a workbook with {@link Excel2Html}
+     */
+    static String excel2Html(byte[] workbookBytes, String range, EnumSet<E2HOption> options) throws Exception {
+        Workbook workbook = WorkbookFactory.create(new ByteArrayInputStream(workbookBytes));
+        try {
+            Excel2Html converter = Excel2Html.getConverter(workbook.getSheetAt(0), CellRangeAddress.valueOf(range));
+            converter.replaceOptions(options);
+            StringWriter html = new StringWriter();
+            converter.writeHtml(html);
+            return html.toString();
+        } finally {
+            workbook.close();
+        }
+    }
+
+    /**
+     * Converts a range of the first sheet of an XLSX workbook with {@link StreamingXSSF2Html}
+     */
+    static String streamingXssf2Html(byte[] xlsxBytes, String range, EnumSet<E2HOption> options) throws Exception {
+        OPCPackage xlsx = OPCPackage.open(new ByteArrayInputStream(xlsxBytes));
+        try {
+            StreamingXSSF2Html converter = new StreamingXSSF2Html(xlsx, 0, CellRangeAddress.valueOf(range));
+            converter.replaceOptions(options);
+            StringWriter html = new StringWriter();
+            converter.writeHtml(html);
+            return html.toString();
+        } finally {
+            xlsx.revert();
+        }
+    }
+
+    /**
+     * Converts a range of the first sheet of an XLS workbook with {@link StreamingHSSF2Html}
+     */
+    static String streamingHssf2Html(byte[] xlsBytes, String range, EnumSet<E2HOption> options) throws Exception {
+        NPOIFSFileSystem xls = new NPOIFSFileSystem(new ByteArrayInputStream(xlsBytes));
+        try {
+            StreamingHSSF2Html converter = new StreamingHSSF2Html(xls.getRoot(), 0, CellRangeAddress.valueOf(range));
+            converter.replaceOptions(options);
+            StringWriter html = new StringWriter();
+            converter.writeHtml(html);
+            return html.toString();
+        } finally {
+            xls.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ru.perrymason.e2h.facade;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.perrymason.e2h.E2HOption;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class E2HBatchConverterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static File write(File file, byte[] contents) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(contents);
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    private static File createFile(Workbook workbook, File file) throws IOException {
+        workbook.createSheet("First").createRow(0).createCell(0).setCellValue("a");
+        workbook.createSheet("Second|2").createRow(1).createCell(1).setCellValue(2);
+        file.getParentFile().mkdirs();
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            workbook.write(stream);
+        } finally {
+            stream.close();
+            workbook.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += stream.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            stream.close();
+        }
+        return bytes;
+    }
+
+    private static int run(String... args) throws Exception {
+        E2HBatchConverter converter = new E2HBatchConverter();
+        converter.parseArguments(args);
+        return converter.run();
+    }
+
+    @Test
+    public void convertsDirectoryTree() throws Exception {
+        File input = folder.newFolder("in");
+        File xlsx = createFile(new XSSFWorkbook(), new File(input, "a.xlsx"));
+        createFile(new HSSFWorkbook(), new File(input, "sub/b.xls"));
+        // A lock file of an open workbook and a file of another format are skipped
+        write(new File(input, "sub/~$b.xlsx"), new byte[]{1, 2, 3});
+        write(new File(input, "notes.txt"), new byte[]{1, 2, 3});
+        File output = new File(folder.getRoot(), "out");
+
+        assertEquals(0, run("-o", output.getPath(), "-t", "2", "-a", "-O", "FONT,CSS_CLASSES", input.getPath()));
+        String[] names = output.list();
+        Arrays.sort(names);
+        assertArrayEquals(new String[]{"a.First.html", "a.Second_2.html", "sub"}, names);
+        names = new File(output, "sub").list();
+        Arrays.sort(names);
+        assertArrayEquals(new String[]{"b.First.html", "b.Second_2.html"}, names);
+
+        File expected = folder.newFile();
+        E2HFileFacade facade = new E2HFileFacade(xlsx);
+        try {
+            EnumSet<E2HOption> options = EnumSet.copyOf(E2HOption.FONT);
+            options.add(E2HOption.CSS_CLASSES);
+            facade.replaceOptions(options);
+            facade.selectSheetAt(1);
+            facade.writeHtml(expected);
+        } finally {
+            facade.close();
+        }
+        assertArrayEquals(read(expected), read(new File(output, "a.Second_2.html")));
+    }
+
+    @Test
+    public void reportsFailedFilesAndConvertsOthers() throws Exception {
+        File xlsx = createFile(new XSSFWorkbook(), new File(folder.getRoot(), "in/a.xlsx"));
+        File broken = write(new File(folder.getRoot(), "in/broken.xlsx"), new byte[]{1, 2, 3});
+        File list = write(new File(folder.getRoot(), "list.txt"),
+                (broken.getPath() + "\n\n" + xlsx.getPath() + "\n").getBytes("UTF-8"));
+        File output = new File(folder.getRoot(), "out");
+
+        assertEquals(1, run("-o", output.getPath(), "-s", "@" + list.getPath()));
+        assertTrue(new File(output, "a.html").isFile());
+        assertFalse(new File(output, "broken.html").exists());
+    }
+
+    @Test
+    public void rejectsInvalidArguments() throws Exception {
+        File xlsx = createFile(new XSSFWorkbook(), folder.newFile("a.xlsx"));
+        String[][] invalid = {
+                {},
+                {"-x", xlsx.getPath()},
+                {"-t", "0", xlsx.getPath()},
+                {"-O", "FONT,NO_SUCH_OPTION", xlsx.getPath()},
+                {xlsx.getPath(), "-o"},
+                {new File(folder.getRoot(), "missing.xlsx").getPath()}
+        };
+        for (String[] args : invalid) {
+            try {
+                new E2HBatchConverter().parseArguments(args);
+                fail(Arrays.toString(args));
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}
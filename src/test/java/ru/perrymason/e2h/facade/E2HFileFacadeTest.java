@@ -0,0 +1,231 @@
+package ru.perrymason.e2h.facade;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.perrymason.e2h.ConversionListener;
+import ru.perrymason.e2h.E2HOption;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+public class E2HFileFacadeTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Counts files opened and workbooks loaded by a facade
+     */
+    private static final class OpenCounter extends ConversionListener {
+        private int opened;
+
+        @Override
+        public void phaseCompleted(Phase phase, long nanos) {
+            if (phase == Phase.OPEN) {
+                opened++;
+            }
+        }
+    }
+
+    private File createFile(Workbook workbook, String name) throws IOException {
+        workbook.createSheet("First").createRow(0).createCell(0).setCellValue("a");
+        workbook.createSheet("Second").createRow(1).createCell(1).setCellValue(2);
+        File file = folder.newFile(name);
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            workbook.write(stream);
+        } finally {
+            stream.close();
+            workbook.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += stream.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            stream.close();
+        }
+        return bytes;
+    }
+
+    private void assertCacheHitDoesNotLoadWorkbook(File excel) throws Exception {
+        HtmlCache cache = new HtmlCache(folder.newFolder(), 1024 * 1024);
+        File converted = folder.newFile();
+        File copied = folder.newFile();
+
+        OpenCounter counter = new OpenCounter();
+        E2HFileFacade facade = new E2HFileFacade(excel, false, counter);
+        facade.addOption(E2HOption.STANDARD_OPTIONS);
+        facade.setCache(cache);
+        assertEquals(Arrays.asList("First", "Second"), facade.getSheetNames());
+        assertEquals(1, counter.opened);
+        facade.selectSheet("second");
+        facade.writeHtml(converted);
+        // The workbook is loaded to convert the sheet
+        assertEquals(2, counter.opened);
+        facade.close();
+
+        counter = new OpenCounter();
+        facade = new E2HFileFacade(excel, false, counter);
+        facade.addOption(E2HOption.STANDARD_OPTIONS);
+        facade.setCache(cache);
+        facade.selectSheet("Second");
+        facade.writeHtml(copied);
+        assertEquals(1, counter.opened);
+        facade.close();
+
+        assertEquals(1, cache.getHits());
+        assertEquals(new String(read(converted), "UTF-8"), new String(read(copied), "UTF-8"));
+    }
+
+    @Test
+    public void cacheHitDoesNotLoadXlsxWorkbook() throws Exception {
+        assertCacheHitDoesNotLoadWorkbook(createFile(new XSSFWorkbook(), "test.xlsx"));
+    }
+
+    @Test
+    public void cacheHitDoesNotLoadXlsWorkbook() throws Exception {
+        assertCacheHitDoesNotLoadWorkbook(createFile(new HSSFWorkbook(), "test.xls"));
+    }
+
+    @Test
+    public void formulasAreEvaluatedOnceUntilCacheIsCleared() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        workbook.createSheet().createRow(0).createCell(0).setCellFormula("RAND()");
+        File excel = folder.newFile("random.xlsx");
+        FileOutputStream stream = new FileOutputStream(excel);
+        try {
+            workbook.write(stream);
+        } finally {
+            stream.close();
+            workbook.close();
+        }
+        File first = folder.newFile();
+        File second = folder.newFile();
+        File third = folder.newFile();
+
+        E2HFileFacade facade = new E2HFileFacade(excel);
+        facade.addOption(E2HOption.EVALUATE_FORMULAS);
+        facade.writeHtml(first);
+        // Results are cached by the evaluator shared by converters
+        facade.writeHtml(second);
+        facade.clearFormulaCache();
+        facade.writeHtml(third);
+        facade.close();
+
+        String html = new String(read(first), "UTF-8");
+        assertEquals(html, new String(read(second), "UTF-8"));
+        assertNotEquals(html, new String(read(third), "UTF-8"));
+    }
+
+    /**
+     * Converts all sheets of a facade concurrently and checks the files against the ones converted one by one
+     */
+    private void assertConcurrentSheetsLikeSingle(E2HFileFacade facade) throws Exception {
+        facade.addOption(E2HOption.STANDARD_OPTIONS);
+        Map<String, File> files = new HashMap<String, File>();
+        for (String sheetName : facade.getSheetNames()) {
+            files.put(sheetName, folder.newFile());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            facade.writeHtml(files, executor);
+        } finally {
+            executor.shutdown();
+        }
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            File single = folder.newFile();
+            facade.selectSheet(entry.getKey());
+            facade.writeHtml(single);
+            assertEquals(new String(read(single), "UTF-8"), new String(read(entry.getValue()), "UTF-8"));
+        }
+        facade.close();
+    }
+
+    @Test
+    public void convertsSheetsOfStreamingFacadeConcurrently() throws Exception {
+        File xlsx = createFile(new XSSFWorkbook(), "sheets.xlsx");
+        File xls = createFile(new HSSFWorkbook(), "sheets.xls");
+        assertConcurrentSheetsLikeSingle(new E2HFileFacade(read(xlsx), true));
+        assertConcurrentSheetsLikeSingle(new E2HFileFacade(read(xls), true));
+        assertConcurrentSheetsLikeSingle(new E2HFileFacade(xlsx, true));
+        assertConcurrentSheetsLikeSingle(new E2HFileFacade(xls, true));
+        assertConcurrentSheetsLikeSingle(new E2HFileFacade(xls));
+    }
+
+    /**
+     * Converts the second sheet with a facade, which is closed
+     * @return the html
+     */
+    private String convertSecondSheet(E2HFileFacade facade) throws Exception {
+        File html = folder.newFile();
+        try {
+            facade.addOption(E2HOption.STANDARD_OPTIONS);
+            facade.selectSheetAt(1);
+            facade.writeHtml(html);
+        } finally {
+            facade.close();
+        }
+        return new String(read(html), "UTF-8");
+    }
+
+    private void assertContentsConvertedLikeFile(File excel) throws Exception {
+        byte[] contents = read(excel);
+        for (boolean streaming : new boolean[]{false, true}) {
+            String expected = convertSecondSheet(new E2HFileFacade(excel, streaming));
+            assertEquals(expected, convertSecondSheet(new E2HFileFacade(contents, streaming)));
+
+            // Contents between the position and the limit of a buffer
+            byte[] array = new byte[contents.length + 10];
+            System.arraycopy(contents, 0, array, 7, contents.length);
+            ByteBuffer buffer = ByteBuffer.wrap(array, 7, contents.length);
+            assertEquals(expected, convertSecondSheet(new E2HFileFacade(buffer, streaming)));
+            ByteBuffer direct = ByteBuffer.allocateDirect(contents.length);
+            direct.put(contents).flip();
+            assertEquals(expected, convertSecondSheet(new E2HFileFacade(direct, streaming)));
+
+            final boolean[] closed = new boolean[1];
+            InputStream stream = new ByteArrayInputStream(contents) {
+                @Override
+                public void close() throws IOException {
+                    closed[0] = true;
+                }
+            };
+            assertEquals(expected, convertSecondSheet(new E2HFileFacade(stream, streaming)));
+            assertFalse(closed[0]);
+        }
+        // The file is opened for reading only
+        assertArrayEquals(contents, read(excel));
+    }
+
+    @Test
+    public void convertsContentsInMemoryLikeFile() throws Exception {
+        assertContentsConvertedLikeFile(createFile(new XSSFWorkbook(), "memory.xlsx"));
+        assertContentsConvertedLikeFile(createFile(new HSSFWorkbook(), "memory.xls"));
+    }
+}
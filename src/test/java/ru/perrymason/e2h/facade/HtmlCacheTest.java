@@ -0,0 +1,59 @@
+package ru.perrymason.e2h.facade;
+
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.perrymason.e2h.E2HOption;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HtmlCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String name, String contents) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(contents.getBytes("UTF-8"));
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void keyDependsOnLocale() {
+        byte[] digest = {1, 2, 3};
+        EnumSet<E2HOption> options = EnumSet.copyOf(E2HOption.FONT);
+        CellRangeAddress range = CellRangeAddress.valueOf("A1:B2");
+        assertEquals(HtmlCache.getKey(digest, "Excel2Html", 0, range, options, Locale.US),
+                HtmlCache.getKey(digest, "Excel2Html", 0, range, options, Locale.US));
+        assertNotEquals(HtmlCache.getKey(digest, "Excel2Html", 0, range, options, Locale.US),
+                HtmlCache.getKey(digest, "Excel2Html", 0, range, options, Locale.GERMANY));
+    }
+
+    @Test
+    public void putReplacesEntry() throws Exception {
+        HtmlCache cache = new HtmlCache(folder.newFolder("cache"), 1024);
+        File copy = new File(folder.getRoot(), "copy.html");
+        assertFalse(cache.copyTo("key", copy));
+
+        cache.put("key", write("first.html", "<table>1</table>"));
+        cache.put("key", write("second.html", "<table>22</table>"));
+        assertTrue(cache.copyTo("key", copy));
+        assertEquals("<table>22</table>".length(), copy.length());
+        assertEquals(copy.length(), cache.getSize());
+        assertEquals(0.5, cache.getHitRate(), 0);
+    }
+}